@@ -0,0 +1,154 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the core's share of the editor's hot paths, on
+ * res/cuahsitree.stc and on generated trees of 10k, 100k and 1M nodes:
+ * <ul>
+ * <li>parse, reading an STC file into an {@link OntologyStore};
+ * <li>save, writing one out with {@link STCTreeWriter}, to nowhere;
+ * <li>snapshot, reading one back from an {@link OntologySnapshot};
+ * <li>drop, finding the node of an _ST_n id and checking it can be moved
+ * under another;
+ * <li>edit, inserting a node and removing it again;
+ * <li>version, the same edit made to a {@link PersistentOntology}.
+ * </ul>
+ * Built and run with the jmh profile, from core:
+ * <pre>
+ * mvn -P jmh package
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ * -prof gc adds the allocation rate and bytes per operation.  The tree
+ * parameter takes node counts and STC file names; the file name is
+ * relative to the directory the benchmarks run in.  Loading into the
+ * editor's model and subtree views need the StarTree classes, and are
+ * timed by OntologyBenchmark instead.  baseline.txt beside this file holds
+ * the results of one run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class CoreBenchmark {
+
+    @Param({ "../res/cuahsitree.stc", "10000", "100000", "1000000" })
+    public String tree;
+
+    private File file;
+    private URL url;
+    private OntologyStore store;
+    private byte[] snapshot;
+    private int[] ids;
+    private int spare;
+    private PersistentOntology version;
+    private int spareId;
+    private final Random random = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (tree.matches("\\d+")) {
+            file = File.createTempFile("benchmark", ".stc");
+            OntologyBatch.write(new OntologyGenerator(Integer.parseInt(tree)).generate(), file);
+        } else {
+            file = new File(tree);
+        }
+        url = file.toURI().toURL();
+        store = OntologyStore.read(url);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new OntologySnapshot(file.getPath(), 0, 0, null, store).write(bytes);
+        snapshot = bytes.toByteArray();
+
+        ids = new int[store.getNodeCount()];
+        int k = 0;
+        for (int node = 0; node < store.getSlotCount() && k < ids.length; node++) {
+            if (store.isInTree(node))
+                ids[k++] = store.getId(node);
+        }
+        spare = store.createNode("Child");
+        version = PersistentOntology.of(store);
+        spareId = version.getMaxId() + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (tree.matches("\\d+"))
+            file.delete();
+    }
+
+    @Benchmark
+    public OntologyStore parse() throws IOException {
+        return OntologyStore.read(url);
+    }
+
+    @Benchmark
+    public int save() throws IOException {
+        return new STCTreeWriter().write(store, new BufferedWriter(new NullWriter(), 1 << 16));
+    }
+
+    @Benchmark
+    public OntologySnapshot snapshot() throws IOException {
+        return OntologySnapshot.read(new ByteArrayInputStream(snapshot));
+    }
+
+    @Benchmark
+    public boolean drop() {
+        int node = store.getNode(ids[random.nextInt(ids.length)]);
+        int parent = store.getNode(ids[random.nextInt(ids.length)]);
+        return node != OntologyStore.NONE && node != store.getRoot()
+            && !store.isAncestor(node, parent);
+    }
+
+    @Benchmark
+    public int edit() {
+        store.insertChild(store.getNode(ids[random.nextInt(ids.length)]), spare, 0);
+        store.remove(spare);
+        return store.getNodeCount();
+    }
+
+    @Benchmark
+    public void version(Blackhole hole) {
+        PersistentOntology v = version.insert(ids[random.nextInt(ids.length)], 0, spareId, "Child", null);
+        hole.consume(v);
+        hole.consume(v.remove(spareId));
+    }
+
+    /** Swallows what is written to it. */
+    private static class NullWriter extends Writer {
+
+        public void write(char[] buf, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
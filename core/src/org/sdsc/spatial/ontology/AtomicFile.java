@@ -0,0 +1,90 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Replaces a file in one step, so that a crash or a failed write leaves
+ * either the old contents or the new, never a mixture.
+ * <p>
+ * {@link #startWrite()} opens a temporary file in the target's directory;
+ * {@link #finishWrite(FileOutputStream)} syncs it to disk and renames it
+ * over the target.  Where the platform will not rename over an existing
+ * file, the target is first moved aside to a .bak file, which is removed
+ * once the new file is in place and left behind if that fails.
+ */
+public class AtomicFile {
+
+    private final File target;
+    private File temp;
+
+    public AtomicFile(File target) {
+        this.target = target.getAbsoluteFile();
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /** Opens a temporary file next to the target for writing. */
+    public FileOutputStream startWrite() throws IOException {
+        File dir = target.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        temp = File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+        try {
+            return new FileOutputStream(temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Flushes out to disk, closes it and moves the temporary file over the
+     * target.  If anything goes wrong the target is left as it was.
+     */
+    public void finishWrite(FileOutputStream out) throws IOException {
+        try {
+            out.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            failWrite(out);
+            throw e;
+        }
+        out.close();
+        if (temp.renameTo(target)) {
+            temp = null;
+            return;
+        }
+        File backup = new File(target.getPath() + ".bak");
+        backup.delete();
+        if (target.exists() && !target.renameTo(backup)) {
+            failWrite(null);
+            throw new IOException("Cannot replace " + target);
+        }
+        if (!temp.renameTo(target)) {
+            backup.renameTo(target);
+            failWrite(null);
+            throw new IOException("Cannot rename " + temp + " to " + target);
+        }
+        temp = null;
+        backup.delete();
+    }
+
+    /** Closes out, if it is not null, and throws the temporary file away. */
+    public void failWrite(FileOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Being thrown away anyway.
+            }
+        }
+        if (temp != null) {
+            temp.delete();
+            temp = null;
+        }
+    }
+}
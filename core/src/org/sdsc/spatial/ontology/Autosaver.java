@@ -0,0 +1,371 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes the tree being edited to a recovery file now and then, on a
+ * thread of its own, so that a crash loses no more than the last few
+ * seconds of work.  Each tree being edited has an autosaver and a file of
+ * its own, named for it by {@link #newFile} in the recovery directory.
+ * <p>
+ * The tree is watched as {@link OntologyVersions}, which the editor keeps
+ * anyway, so an edit costs the editor nothing more.  The autosaver looks
+ * at the version number a few times a second; once the edits have stopped
+ * for {@link #QUIET_MILLIS}, or have gone on for {@link #MAX_MILLIS}
+ * without a write, it takes the latest version, copies it and writes it
+ * through an {@link AtomicFile}, so the recovery file is always whole.  A
+ * copy with the same {@link ContentHash} as the last one written is not
+ * written again, and one the same as the file the tree was read from or
+ * saved to removes the recovery file, as there is nothing to recover.
+ * <p>
+ * The recovery file says in its header which file the tree was read from
+ * or last saved to, and that file's size and time then, as the
+ * {@link #SOURCE} properties.  It is only offered back while that file is
+ * unchanged: edits to a file that has been replaced since would undo
+ * whatever replaced it.  {@link #findRecoveries} lists the ones that can
+ * be offered; one the user does not want is {@link #decline declined},
+ * which moves it aside rather than deleting it.
+ * <p>
+ * Copying and writing take time in proportion to the tree, so a write
+ * waits {@link #BACKOFF} times as long as the last one took, which keeps
+ * the autosaver's share of one processor the same however big the tree.
+ */
+public class Autosaver {
+
+    /** How long the edits must stop for before the tree is written. */
+    public static final long QUIET_MILLIS = 2000;
+
+    /** The longest the tree goes unwritten while the edits keep coming. */
+    public static final long MAX_MILLIS = 30000;
+
+    /** How many times as long as the last write took to wait before the next. */
+    public static final int BACKOFF = 10;
+
+    /**
+     * The header properties of a recovery file giving the path, size and
+     * modification time of the file the tree came from; left out for a
+     * tree that came from no local file.
+     */
+    public static final String SOURCE = "recovery.source";
+    public static final String SOURCE_SIZE = "recovery.sourcesize";
+    public static final String SOURCE_MODIFIED = "recovery.sourcemodified";
+
+    /** Added to the name of a recovery file the user chose not to restore. */
+    public static final String DECLINED_SUFFIX = ".declined";
+
+    private static final long TICK_MILLIS = 250;
+
+    /* The files of the autosavers not yet closed, and those handed out for them. */
+    private static final Set<File> claimed = new HashSet<File>();
+
+    private final File file;
+    private final ScheduledExecutorService thread;
+
+    /* Only the autosaver's thread reads or writes these. */
+    private OntologyVersions versions;
+    private Map<String, String> properties;
+    private long cleanHash;
+    private long writtenHash;
+    private long seenNumber = -1;
+    private long writtenNumber = -1;
+    private long changedAt;
+    private long pendingSince;
+    private long nextWrite;
+    private String failure;
+
+    /** An autosaver that writes to file, idle until given a tree to watch. */
+    public Autosaver(File file) {
+        this.file = file.getAbsoluteFile();
+        synchronized (claimed) {
+            claimed.add(this.file);
+        }
+        this.thread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Autosaver");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        thread.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                tick(false);
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the directory of recovery files under the user's home
+     * directory, or the one the ontology.recovery system property names.
+     */
+    public static File getDefaultDirectory() {
+        String name = System.getProperty("ontology.recovery");
+        if (name != null)
+            return new File(name).getAbsoluteFile();
+        return new File(System.getProperty("user.home"),
+                ".ontologyeditor" + File.separator + "recovery");
+    }
+
+    /**
+     * Returns a recovery file in dir for a tree called name, such as the
+     * name of the file it was read from, that no other file or autosaver
+     * has; name.stc if it is free, or else name-2.stc and so on.
+     */
+    public static File newFile(File dir, String name) {
+        if (name.endsWith(".stc"))
+            name = name.substring(0, name.length() - 4);
+        synchronized (claimed) {
+            for (int n = 1;; n++) {
+                File f = new File(dir, (n == 1 ? name : name + "-" + n) + ".stc").getAbsoluteFile();
+                if (!f.exists() && claimed.add(f))
+                    return f;
+            }
+        }
+    }
+
+    /**
+     * Returns the recovery files in dir that can be offered back: those of
+     * a tree read from no file, or from a file that is as it was then.
+     * Those of an autosaver still open are left out.
+     */
+    public static List<File> findRecoveries(File dir) {
+        List<File> found = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return found;
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i].getAbsoluteFile();
+            if (!f.getName().endsWith(".stc") || !f.isFile())
+                continue;
+            synchronized (claimed) {
+                if (claimed.contains(f))
+                    continue;
+            }
+            try {
+                Map<String, String> properties = readProperties(f);
+                String source = properties.get(SOURCE);
+                if (isFrom(properties, source == null ? null : new File(source)))
+                    found.add(f);
+            } catch (IOException e) {
+                // Unreadable, so nothing to offer.
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Moves the recovery file f aside, in place of any declined before, so
+     * it is not offered again but can still be found by hand.
+     */
+    public static void decline(File f) throws IOException {
+        File aside = new File(f.getPath() + DECLINED_SUFFIX);
+        aside.delete();
+        if (!f.renameTo(aside))
+            throw new IOException("Cannot rename " + f + " to " + aside);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if there is a recovery file holding edits to source, as
+     * source is now, that were never saved; or edits to a tree read from
+     * no file if source is null.
+     */
+    public boolean hasRecovery(File source) {
+        if (!file.isFile())
+            return false;
+        try {
+            return isFrom(readProperties(file), source);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Returns true if properties give source with its present size and
+     * time, or give no source if source is null.
+     */
+    private static boolean isFrom(Map<String, String> properties, File source) {
+        String path = properties.get(SOURCE);
+        if (source == null || path == null)
+            return source == null && path == null;
+        return path.equals(source.getAbsolutePath())
+            && String.valueOf(source.length()).equals(properties.get(SOURCE_SIZE))
+            && String.valueOf(source.lastModified()).equals(properties.get(SOURCE_MODIFIED));
+    }
+
+    /** Reads the header properties of the STC file f, without its rows. */
+    public static Map<String, String> readProperties(File f) throws IOException {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(f), "UTF-8"));
+        try {
+            // The first line is the STC= header.
+            in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith("[")) {
+                int eq = line.indexOf('=');
+                if (eq >= 0)
+                    properties.put(line.substring(0, eq), line.substring(eq + 1));
+            }
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /** Takes the {@link #SOURCE} properties out of properties. */
+    public static void removeSource(Map<String, String> properties) {
+        properties.remove(SOURCE);
+        properties.remove(SOURCE_SIZE);
+        properties.remove(SOURCE_MODIFIED);
+    }
+
+    /* Puts source, as it is now, into properties. */
+    private static void putSource(Map<String, String> properties, File source) {
+        properties.put(SOURCE, source.getAbsolutePath());
+        properties.put(SOURCE_SIZE, String.valueOf(source.length()));
+        properties.put(SOURCE_MODIFIED, String.valueOf(source.lastModified()));
+    }
+
+    /**
+     * Watches versions from now on, in place of any tree watched before;
+     * it is written once it is next edited.  cleanHash is the content hash
+     * of source, the local file it was read from, or 0 if there is none or
+     * that file is the recovery file itself; properties are the STC header
+     * properties to write with it, which for a tree read from a recovery
+     * file already give the file it came from.
+     */
+    public void watch(OntologyVersions versions, Map<String, String> properties,
+            final long cleanHash, File source) {
+        final OntologyVersions v = versions;
+        final Map<String, String> p = new LinkedHashMap<String, String>(properties);
+        if (source != null)
+            putSource(p, source);
+        thread.execute(new Runnable() {
+            public void run() {
+                Autosaver.this.versions = v;
+                Autosaver.this.properties = p;
+                Autosaver.this.cleanHash = cleanHash;
+                writtenHash = cleanHash;
+                seenNumber = writtenNumber = v.getNumber();
+                pendingSince = 0;
+            }
+        });
+    }
+
+    /**
+     * Tells the autosaver the tree has been saved to file with content hash
+     * hash, so a recovery file holding no more than that can go, and one
+     * holding more now goes with file.
+     */
+    public void saved(final long hash, File file) {
+        final Map<String, String> source = new HashMap<String, String>();
+        putSource(source, file);
+        thread.execute(new Runnable() {
+            public void run() {
+                cleanHash = hash;
+                // Written again, if at all, to name file.
+                writtenHash = 0;
+                if (properties != null)
+                    properties.putAll(source);
+                // Looked at again, to remove the recovery file if it is now clean.
+                seenNumber = writtenNumber = -1;
+                pendingSince = changedAt = System.currentTimeMillis();
+            }
+        });
+    }
+
+    /**
+     * Writes any edits not yet written, without waiting for them to go
+     * quiet, stops the thread and returns once it has, or after timeout
+     * milliseconds.  Call before exiting.
+     */
+    public void close(long timeout) {
+        if (thread.isShutdown())
+            return;
+        try {
+            thread.submit(new Runnable() {
+                public void run() {
+                    tick(true);
+                }
+            }).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already reported.
+        } catch (TimeoutException e) {
+            // Then the recovery file is the last one written.
+        }
+        thread.shutdownNow();
+        synchronized (claimed) {
+            claimed.remove(file);
+        }
+    }
+
+    /* Writes the latest version if it is time to; now says not to wait. */
+    private void tick(boolean now) {
+        if (versions == null)
+            return;
+        long time = System.currentTimeMillis();
+        long number = versions.getNumber();
+        if (number == writtenNumber)
+            return;
+        if (number != seenNumber) {
+            seenNumber = number;
+            changedAt = time;
+            if (pendingSince == 0)
+                pendingSince = time;
+        }
+        if (!now && (time - changedAt < QUIET_MILLIS && time - pendingSince < MAX_MILLIS
+                || time < nextWrite))
+            return;
+
+        // The number first, so the version is at least as new as it says.
+        PersistentOntology version = versions.getCurrent();
+        OntologyStore store = version.toStore();
+        store.getProperties().putAll(properties);
+        long hash = ContentHash.of(store);
+        try {
+            if (hash == cleanHash) {
+                file.delete();
+            } else if (hash != writtenHash || !file.isFile()) {
+                File dir = file.getParentFile();
+                if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Cannot create " + dir);
+                OntologyBatch.write(store, file);
+            }
+            writtenHash = hash;
+            writtenNumber = number;
+            pendingSince = 0;
+            failure = null;
+        } catch (IOException e) {
+            // Said once, not on every try.
+            if (!e.toString().equals(failure))
+                System.err.println("Cannot autosave to " + file + ": " + e.getMessage());
+            failure = e.toString();
+        }
+        nextWrite = System.currentTimeMillis() + BACKOFF * (System.currentTimeMillis() - time);
+    }
+}
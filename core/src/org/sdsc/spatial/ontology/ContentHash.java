@@ -0,0 +1,99 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * A 64 bit hash of the content of a subtree: the label and columns of its
+ * top node and, in order, the hashes of its children.  Two subtrees with the
+ * same content have the same hash, wherever they sit and whatever their
+ * ids, and subtrees that differ almost certainly do not.
+ * <p>
+ * The child count column is left out, since the children are counted
+ * anyway and a file written with {@link STCTreeWriter} fills it in, and an
+ * empty column counts the same as a missing one.  So a tree hashes the same
+ * before it is saved and after it is read back.
+ * <p>
+ * The editor's OntologyTreeModel keeps these for every node of a model;
+ * {@link #of(OntologyStore)} works one out for a store.
+ */
+public final class ContentHash {
+
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private ContentHash() {
+    }
+
+    /** Returns the hash of the tree of store, or 0 if it is empty. */
+    public static long of(OntologyStore store) {
+        int root = store.getRoot();
+        if (root == OntologyStore.NONE)
+            return 0;
+        // Post order: a node is hashed once its children have been.
+        long[] hashes = new long[store.getSlotCount()];
+        int[] stack = new int[64];
+        boolean[] expanded = new boolean[store.getSlotCount()];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[top - 1];
+            if (!expanded[node]) {
+                expanded[node] = true;
+                if (top + store.getChildCount(node) > stack.length) {
+                    int[] grown = new int[Math.max(top + store.getChildCount(node), stack.length << 1)];
+                    System.arraycopy(stack, 0, grown, 0, top);
+                    stack = grown;
+                }
+                for (int c = store.getFirstChild(node); c != OntologyStore.NONE;
+                        c = store.getNextSibling(c))
+                    stack[top++] = c;
+                continue;
+            }
+            top--;
+            long h = node(store.getLabel(node), store.getAttributes(node));
+            for (int c = store.getFirstChild(node); c != OntologyStore.NONE;
+                    c = store.getNextSibling(c))
+                h = child(h, hashes[c]);
+            hashes[node] = finish(h, store.getChildCount(node));
+        }
+        return hashes[root];
+    }
+
+    /** Starts the hash of a node from its label and STC columns, which may be null. */
+    static long node(String label, String attributes) {
+        long h = string(SEED, label, 0, label.length());
+        if (attributes == null)
+            return h;
+        int column = STCTreeHandler.COLUMN_ATTRIBUTES;
+        int start = 0;
+        for (int i = 0; i <= attributes.length(); i++) {
+            if (i < attributes.length() && attributes.charAt(i) != ',')
+                continue;
+            if (i > start && column != STCTreeHandler.COLUMN_CHILD_COUNT)
+                h = string(mix(h + column), attributes, start, i);
+            column++;
+            start = i + 1;
+        }
+        return h;
+    }
+
+    /** Adds the hash of the next child. */
+    static long child(long h, long child) {
+        return mix(h * PRIME + child);
+    }
+
+    /** Finishes the hash of a node with count children. */
+    static long finish(long h, int count) {
+        return mix(h ^ count);
+    }
+
+    private static long string(long h, String s, int from, int to) {
+        for (int i = from; i < to; i++)
+            h = (h ^ s.charAt(i)) * PRIME;
+        return mix(h ^ (to - from));
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
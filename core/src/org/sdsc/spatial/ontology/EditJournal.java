@@ -0,0 +1,566 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the edits made to a tree since its STC file was
+ * last written, kept next to the file as <i>file</i>.journal.
+ * <p>
+ * Each insert, remove, move and rename is appended as a small record of
+ * node ids and synced to disk, so an edit is saved in time proportional to
+ * the edit rather than to the file.  Opening the journal replays it onto
+ * the tree just read from the base file.  Once the journal grows past
+ * {@link #needsCompaction() a threshold} the tree is written out in full
+ * and the journal starts again empty.
+ * <p>
+ * The header records the size and modification time of the base file the
+ * records apply to.  A journal whose base has since changed by other means
+ * is not replayed but set aside as <i>file</i>.journal.stale.  Records carry
+ * a length and a CRC32, so a record torn by a crash is recognised and
+ * dropped along with anything after it.  The records of a
+ * {@link #beginBatch() batch} are written as one, so a crash keeps all of
+ * them or none.
+ * <p>
+ * Compaction runs alongside further editing.  {@link #startCompaction()}
+ * moves the journal aside to <i>file</i>.journal.old and starts a new one
+ * whose base is not yet known; once the base file has been rewritten,
+ * {@link #finishCompaction()} fills in the new base and deletes the old
+ * journal.  Whichever step a crash interrupts, {@link #open} can tell from
+ * the two headers which records the base file already holds.
+ * <p>
+ * A journal is not thread safe; the editor uses it on the EDT.
+ */
+public class EditJournal {
+
+    /** Applies replayed records to a tree; each returns false if it cannot. */
+    public interface Target {
+
+        /** attributes are the node's STC columns after the label, or null. */
+        boolean insert(int parentId, int index, int id, String label,
+                String attributes);
+
+        boolean remove(int id);
+
+        boolean move(int id, int parentId, int index);
+
+        boolean rename(int id, String label);
+    }
+
+    public static final String SUFFIX = ".journal";
+    private static final String OLD_SUFFIX = ".journal.old";
+    private static final String STALE_SUFFIX = ".journal.stale";
+
+    /* "STCJ" */
+    private static final int MAGIC = 0x5354434A;
+    private static final int FORMAT_VERSION = 2;
+
+    /* The first version, without batch records, which is still read. */
+    private static final int OLDEST_VERSION = 1;
+
+    /* Magic, version, base size and base time; rewritten in place. */
+    private static final int HEADER_SIZE = 24;
+    private static final int BASE_OFFSET = 8;
+
+    /* Base size and time of a journal started by a compaction not yet done. */
+    private static final long PENDING = -1;
+
+    private static final int INSERT = 1;
+    private static final int REMOVE = 2;
+    private static final int MOVE = 3;
+    private static final int RENAME = 4;
+    private static final int INSERT_COLUMNS = 5;
+
+    /* Whole records, length and CRC included, that are applied together. */
+    private static final int BATCH = 6;
+
+    private static final int MAX_RECORD_BYTES = 1 << 24;
+
+    /**
+     * The journal may grow to this, or to a quarter of the base file if that
+     * is more, before it is compacted; so the cost of rewriting the file is
+     * spread over edits that together are a fair fraction of its size.
+     */
+    private static final long COMPACT_BYTES = 1 << 18;
+
+    private final File base;
+    private final File file;
+    private final File oldFile;
+    private FileOutputStream out;
+    private long length;
+    private boolean compacting;
+    private int replayed;
+    private int batch;
+
+    /* The records of the batch under way, kept until it ends. */
+    private final ByteArrayOutputStream batched = new ByteArrayOutputStream(256);
+
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream data = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private EditJournal(File base) {
+        this.base = base.getAbsoluteFile();
+        this.file = new File(this.base.getPath() + SUFFIX);
+        this.oldFile = new File(this.base.getPath() + OLD_SUFFIX);
+    }
+
+    /**
+     * Opens the journal of base, creating it if there is none, and replays
+     * into target the edits it holds that base does not.  Call once base has
+     * been read into target.
+     */
+    public static EditJournal open(File base, Target target) throws IOException {
+        EditJournal j = new EditJournal(base);
+        long size = j.base.length();
+        long modified = j.base.lastModified();
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        boolean rewrite = false;
+
+        // An old journal means a compaction was cut short.  If the base file
+        // is still the one it applies to, its records come first.
+        if (j.oldFile.exists()) {
+            long[] h = readHeader(j.oldFile);
+            if (h != null && h[0] == size && h[1] == modified)
+                j.replayed += scan(j.oldFile, target, kept);
+            rewrite = true;
+        }
+        if (j.file.exists()) {
+            long[] h = readHeader(j.file);
+            if (h != null && (h[0] == PENDING || (h[0] == size && h[1] == modified))) {
+                int before = kept.size();
+                j.replayed += scan(j.file, target, kept);
+                if (h[0] == PENDING || h[2] != FORMAT_VERSION
+                        || j.file.length() != HEADER_SIZE + kept.size() - before)
+                    rewrite = true;
+            } else {
+                File stale = new File(j.base.getPath() + STALE_SUFFIX);
+                stale.delete();
+                if (!j.file.renameTo(stale))
+                    throw new IOException("Cannot move " + j.file + " aside");
+            }
+        }
+        if (rewrite || !j.file.exists()) {
+            AtomicFile journal = new AtomicFile(j.file);
+            FileOutputStream o = journal.startWrite();
+            try {
+                writeHeader(o, size, modified);
+                kept.writeTo(o);
+            } catch (IOException e) {
+                journal.failWrite(o);
+                throw e;
+            }
+            journal.finishWrite(o);
+            j.oldFile.delete();
+        }
+        j.out = new FileOutputStream(j.file, true);
+        j.length = kept.size();
+        return j;
+    }
+
+    /**
+     * Applies the records of the journal file f to target, whatever base
+     * file it was written against, and returns the number applied.  This
+     * replays a recorded editing session onto any copy of the tree.
+     */
+    public static int replay(File f, Target target) throws IOException {
+        return scan(f, target, null);
+    }
+
+    /**
+     * Applies to target the journal of base, if there is one that goes with
+     * base as it is now, and returns the number of records applied.  Unlike
+     * {@link #open} it writes nothing, so it suits a reader of a file that
+     * an editor may have open.
+     */
+    public static int replayCurrent(File base, Target target) throws IOException {
+        File f = new File(base.getAbsoluteFile().getPath() + SUFFIX);
+        if (!f.exists())
+            return 0;
+        long[] h = readHeader(f);
+        if (h == null || h[0] != base.length() || h[1] != base.lastModified())
+            return 0;
+        return scan(f, target, null);
+    }
+
+    /** Returns the STC file the journal belongs to. */
+    public File getBase() {
+        return base;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the number of edits {@link #open} replayed. */
+    public int getReplayedCount() {
+        return replayed;
+    }
+
+    /** Returns the number of bytes of records in the current journal. */
+    public long length() {
+        return length;
+    }
+
+    /** Records that node id, labelled label, was added as parentId's index-th child. */
+    public void insert(int parentId, int index, int id, String label) throws IOException {
+        begin(INSERT);
+        data.writeInt(parentId);
+        data.writeInt(index);
+        data.writeInt(id);
+        OntologyStore.writeString(data, label);
+        append();
+    }
+
+    /**
+     * Records an insert of a node that has STC columns, as when a removed
+     * subtree is put back; the subtree is recorded node by node, parents
+     * first, best between {@link #beginBatch()} and {@link #endBatch()}.
+     */
+    public void insert(int parentId, int index, int id, String label,
+            String attributes) throws IOException {
+        if (attributes == null) {
+            insert(parentId, index, id, label);
+            return;
+        }
+        begin(INSERT_COLUMNS);
+        data.writeInt(parentId);
+        data.writeInt(index);
+        data.writeInt(id);
+        OntologyStore.writeString(data, label);
+        OntologyStore.writeString(data, attributes);
+        append();
+    }
+
+    /** Records that node id and its subtree were removed. */
+    public void remove(int id) throws IOException {
+        begin(REMOVE);
+        data.writeInt(id);
+        append();
+    }
+
+    /** Records that node id and its subtree became parentId's index-th child. */
+    public void move(int id, int parentId, int index) throws IOException {
+        begin(MOVE);
+        data.writeInt(id);
+        data.writeInt(parentId);
+        data.writeInt(index);
+        append();
+    }
+
+    /** Records that node id was renamed to label. */
+    public void rename(int id, String label) throws IOException {
+        begin(RENAME);
+        data.writeInt(id);
+        OntologyStore.writeString(data, label);
+        append();
+    }
+
+    private void begin(int type) throws IOException {
+        if (out == null)
+            throw new IOException(file + " is closed");
+        record.reset();
+        data.writeInt(0);
+        data.writeByte(type);
+    }
+
+    /*
+     * Fills in the length and adds the CRC, then writes and syncs the
+     * record in one go, or keeps it for the end of the batch.
+     */
+    private void append() throws IOException {
+        data.writeInt(0);
+        byte[] b = record.toByteArray();
+        seal(b);
+        if (batch > 0) {
+            batched.write(b);
+            return;
+        }
+        out.write(b);
+        out.getFD().sync();
+        length += b.length;
+    }
+
+    /* Fills in the length and CRC of b, which has room for them. */
+    private void seal(byte[] b) {
+        int n = b.length - 8;
+        putInt(b, 0, n);
+        crc.reset();
+        crc.update(b, 4, n);
+        putInt(b, 4 + n, (int) crc.getValue());
+    }
+
+    /**
+     * Starts a run of records that are written by {@link #endBatch()} as
+     * one, so they are replayed all together or, if a crash tears them,
+     * not at all.  Batches nest; a batch that has not ended when the
+     * journal is closed is dropped.
+     */
+    public void beginBatch() {
+        batch++;
+    }
+
+    public void endBatch() throws IOException {
+        if (batch == 0 || --batch > 0)
+            return;
+        byte[] records = batched.toByteArray();
+        batched.reset();
+        if (records.length == 0 || out == null)
+            return;
+        byte[] b;
+        if (records.length + 1 > MAX_RECORD_BYTES) {
+            // Too big to replay as one; each record is still whole.
+            b = records;
+        } else {
+            b = new byte[records.length + 9];
+            b[4] = BATCH;
+            System.arraycopy(records, 0, b, 5, records.length);
+            seal(b);
+        }
+        out.write(b);
+        out.getFD().sync();
+        length += b.length;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+            | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /** Returns true once the journal is big enough to be worth compacting. */
+    public boolean needsCompaction() {
+        return !compacting && length > Math.max(COMPACT_BYTES, base.length() / 4);
+    }
+
+    public boolean isCompacting() {
+        return compacting;
+    }
+
+    /**
+     * Moves the journal aside and starts an empty one for the edits that
+     * follow.  Call when the tree has been copied for writing to the base
+     * file, and call {@link #finishCompaction()} or
+     * {@link #abortCompaction()} when that is over.
+     */
+    public void startCompaction() throws IOException {
+        if (compacting)
+            throw new IllegalStateException("Already compacting " + file);
+        closeOut();
+        oldFile.delete();
+        if (!file.renameTo(oldFile)) {
+            out = new FileOutputStream(file, true);
+            throw new IOException("Cannot move " + file + " aside");
+        }
+        FileOutputStream o = new FileOutputStream(file);
+        try {
+            writeHeader(o, PENDING, PENDING);
+            o.getFD().sync();
+        } catch (IOException e) {
+            o.close();
+            file.delete();
+            oldFile.renameTo(file);
+            out = new FileOutputStream(file, true);
+            throw e;
+        }
+        out = o;
+        length = 0;
+        compacting = true;
+    }
+
+    /** Makes the rewritten base file the base of the journal, and drops the old one. */
+    public void finishCompaction() throws IOException {
+        if (!compacting)
+            return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(BASE_OFFSET);
+            raf.writeLong(base.length());
+            raf.writeLong(base.lastModified());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        oldFile.delete();
+        compacting = false;
+    }
+
+    /**
+     * Puts the records set aside by {@link #startCompaction()} back in front
+     * of the ones written since, for when the base file could not be written.
+     */
+    public void abortCompaction() throws IOException {
+        if (!compacting)
+            return;
+        boolean open = out != null;
+        closeOut();
+        long[] h = readHeader(oldFile);
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        if (h != null)
+            scan(oldFile, null, kept);
+        else
+            h = new long[] { PENDING, PENDING };
+        scan(file, null, kept);
+        AtomicFile journal = new AtomicFile(file);
+        FileOutputStream o = journal.startWrite();
+        try {
+            writeHeader(o, h[0], h[1]);
+            kept.writeTo(o);
+        } catch (IOException e) {
+            journal.failWrite(o);
+            throw e;
+        }
+        journal.finishWrite(o);
+        oldFile.delete();
+        compacting = false;
+        length = kept.size();
+        if (open)
+            out = new FileOutputStream(file, true);
+    }
+
+    /** Closes the journal; it stays on disk to be replayed next time. */
+    public void close() throws IOException {
+        closeOut();
+    }
+
+    private void closeOut() throws IOException {
+        batch = 0;
+        batched.reset();
+        if (out != null) {
+            FileOutputStream o = out;
+            out = null;
+            o.close();
+        }
+    }
+
+    private static void writeHeader(OutputStream o, long size, long modified)
+            throws IOException {
+        DataOutputStream d = new DataOutputStream(o);
+        d.writeInt(MAGIC);
+        d.writeInt(FORMAT_VERSION);
+        d.writeLong(size);
+        d.writeLong(modified);
+        d.flush();
+    }
+
+    /* Returns the base size and time and the format version, or null if f is not a journal. */
+    private static long[] readHeader(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            if (in.readInt() != MAGIC)
+                return null;
+            int version = in.readInt();
+            if (version < OLDEST_VERSION || version > FORMAT_VERSION)
+                return null;
+            return new long[] { in.readLong(), in.readLong(), version };
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the records of f up to the first that is torn or corrupt,
+     * applying them to target unless it is null and copying them to kept
+     * unless that is.  Returns the number applied.
+     */
+    private static int scan(File f, Target target, ByteArrayOutputStream kept)
+            throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+        DataInputStream in = new DataInputStream(raw);
+        CRC32 check = new CRC32();
+        int applied = 0;
+        try {
+            if (in.skip(HEADER_SIZE) != HEADER_SIZE)
+                return 0;
+            while (true) {
+                int n;
+                byte[] b;
+                try {
+                    n = in.readInt();
+                    if (n < 1 || n > MAX_RECORD_BYTES)
+                        break;
+                    b = new byte[n];
+                    in.readFully(b);
+                    check.reset();
+                    check.update(b, 0, n);
+                    if (in.readInt() != (int) check.getValue())
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                if (target != null)
+                    applied += apply(b, 0, n, target);
+                if (kept == null)
+                    continue;
+                DataOutputStream d = new DataOutputStream(kept);
+                d.writeInt(n);
+                d.write(b);
+                d.writeInt((int) check.getValue());
+            }
+        } finally {
+            in.close();
+        }
+        return applied;
+    }
+
+    /* Applies the record in b[off..off+n) and returns how many edits took. */
+    private static int apply(byte[] b, int off, int n, Target target) throws IOException {
+        if (b[off] == BATCH) {
+            int applied = 0;
+            // Whole records, each checked already by the batch's CRC.
+            for (int i = off + 1; i + 8 <= off + n;) {
+                int m = getInt(b, i);
+                if (m < 1 || i + 8 + m > off + n)
+                    break;
+                applied += apply(b, i + 4, m, target);
+                i += m + 8;
+            }
+            return applied;
+        }
+        return applyEdit(new DataInputStream(new ByteArrayInputStream(b, off, n)), target) ? 1 : 0;
+    }
+
+    private static boolean applyEdit(DataInputStream in, Target target) throws IOException {
+        try {
+            switch (in.readByte()) {
+            case INSERT:
+                return target.insert(in.readInt(), in.readInt(), in.readInt(),
+                        OntologyStore.readString(in), null);
+            case INSERT_COLUMNS:
+                return target.insert(in.readInt(), in.readInt(), in.readInt(),
+                        OntologyStore.readString(in), OntologyStore.readString(in));
+            case REMOVE:
+                return target.remove(in.readInt());
+            case MOVE:
+                return target.move(in.readInt(), in.readInt(), in.readInt());
+            case RENAME:
+                return target.rename(in.readInt(), OntologyStore.readString(in));
+            default:
+                return false;
+            }
+        } catch (EOFException e) {
+            // A well formed record of some other kind; nothing to do.
+            return false;
+        }
+    }
+}
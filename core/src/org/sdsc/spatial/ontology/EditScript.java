@@ -0,0 +1,271 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of edits to apply to an {@link OntologyStore}, read from a text
+ * file with one edit per line:
+ * <pre>
+ * add    parent label [index]
+ * remove node
+ * move   node parent [index]
+ * rename node label
+ * </pre>
+ * A node is named by its id, as in _ST_12, or by a path of labels down from
+ * the root, as in "/Biological/Biological taxa", where / alone is the root
+ * and each step goes to the first child with that label.  A word with spaces is put
+ * in double quotes; a backslash keeps the next character as it is, so a
+ * label with a / in it is written with \/ in a path.  An index counts the
+ * children the parent has once the node is taken out, and is the end if
+ * left out.  Blank lines and lines starting with # are skipped.
+ * <p>
+ * A script is read once and can be applied to any number of stores, from
+ * any number of threads.
+ */
+public class EditScript {
+
+    private static final int ADD = 0;
+    private static final int REMOVE = 1;
+    private static final int MOVE = 2;
+    private static final int RENAME = 3;
+
+    /* The words for each edit, and how many words each takes, the edit's included. */
+    private static final String[] OPS = { "add", "remove", "move", "rename" };
+    private static final int[] MIN_WORDS = { 3, 2, 3, 3 };
+    private static final int[] MAX_WORDS = { 4, 2, 4, 3 };
+
+    private final String name;
+    private final List<Edit> edits;
+
+    private EditScript(String name, List<Edit> edits) {
+        this.name = name;
+        this.edits = edits;
+    }
+
+    /** Reads the script in file, which is UTF-8. */
+    public static EditScript read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return parse(in, file.getPath());
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Reads a script from in; name is used in error messages. */
+    public static EditScript parse(Reader in, String name) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<Edit> edits = new ArrayList<Edit>();
+        String line;
+        for (int n = 1; (line = reader.readLine()) != null; n++) {
+            List<String> words = split(line, name, n);
+            if (words.isEmpty() || words.get(0).startsWith("#"))
+                continue;
+            edits.add(parseEdit(words, name, n));
+        }
+        return new EditScript(name, edits);
+    }
+
+    /** Returns the number of edits in the script. */
+    public int size() {
+        return edits.size();
+    }
+
+    /**
+     * Applies the edits to store in order.  Stops at the first edit that
+     * cannot be made, such as one naming a node that is not there, with an
+     * IllegalArgumentException giving its line; the edits before it stay
+     * made.
+     */
+    public void apply(OntologyStore store) {
+        for (int i = 0; i < edits.size(); i++) {
+            Edit edit = edits.get(i);
+            try {
+                edit.apply(store);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(name + ":" + edit.line + ": "
+                        + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static Edit parseEdit(List<String> words, String name, int line)
+            throws IOException {
+        String op = words.get(0);
+        int type = OPS.length - 1;
+        while (type >= 0 && !OPS[type].equals(op))
+            type--;
+        if (type < 0)
+            throw new IOException(name + ":" + line + ": Unknown edit " + op);
+        int min = MIN_WORDS[type];
+        int max = MAX_WORDS[type];
+        if (words.size() < min || words.size() > max)
+            throw new IOException(name + ":" + line + ": " + op + " takes "
+                    + (min - 1) + (max > min ? " or " + (max - 1) : "") + " arguments");
+        int index = -1;
+        if (words.size() == 4) {
+            try {
+                index = Integer.parseInt(words.get(3));
+            } catch (NumberFormatException e) {
+                index = -2;
+            }
+            if (index < 0)
+                throw new IOException(name + ":" + line + ": Bad index " + words.get(3));
+        }
+        return new Edit(line, type, words.get(1), min > 2 ? words.get(2) : null, index);
+    }
+
+    /* Splits line into words, taking the quotes out but leaving the backslashes. */
+    private static List<String> split(String line, String name, int n) throws IOException {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                // Kept escaped, so a path can tell \/ from /.
+                word.append(c).append(line.charAt(++i));
+                inWord = true;
+            } else if (c == '"') {
+                quoted = !quoted;
+                inWord = true;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (inWord)
+                    words.add(word.toString());
+                word.setLength(0);
+                inWord = false;
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted)
+            throw new IOException(name + ":" + n + ": Unclosed quote");
+        if (inWord)
+            words.add(word.toString());
+        return words;
+    }
+
+    /* Drops the backslashes from word. */
+    private static String unescape(String word) {
+        if (word.indexOf('\\') < 0)
+            return word;
+        StringBuilder b = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '\\' && i + 1 < word.length())
+                c = word.charAt(++i);
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    /** Returns the node word names in store, or throws if there is none. */
+    static int resolve(OntologyStore store, String word) {
+        int node;
+        if (word.startsWith(STCRow.ID_PREFIX)) {
+            int id;
+            try {
+                id = Integer.parseInt(word.substring(STCRow.ID_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad id " + word);
+            }
+            node = store.getNode(id);
+            if (node == OntologyStore.NONE || !store.isInTree(node))
+                throw new IllegalArgumentException("No node " + word);
+            return node;
+        }
+        if (!word.startsWith("/"))
+            throw new IllegalArgumentException("Not an id or a path: " + unescape(word));
+        node = store.getRoot();
+        if (node == OntologyStore.NONE)
+            throw new IllegalArgumentException("The ontology is empty");
+        int start = 1;
+        while (start < word.length()) {
+            int end = start;
+            while (end < word.length() && word.charAt(end) != '/')
+                end += word.charAt(end) == '\\' ? 2 : 1;
+            String label = unescape(word.substring(start, Math.min(end, word.length())));
+            int child = store.getFirstChild(node);
+            while (child != OntologyStore.NONE && !label.equals(store.getLabel(child)))
+                child = store.getNextSibling(child);
+            if (child == OntologyStore.NONE)
+                throw new IllegalArgumentException("No node " + unescape(word));
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /** Returns the path of labels that names node in store, the inverse of resolve. */
+    static String path(OntologyStore store, int node) {
+        StringBuilder path = new StringBuilder();
+        for (int n = node; n != store.getRoot() && n != OntologyStore.NONE; n = store.getParent(n)) {
+            String label = store.getLabel(n);
+            StringBuilder step = new StringBuilder(label.length() + 1).append('/');
+            for (int i = 0; i < label.length(); i++) {
+                char c = label.charAt(i);
+                if (c == '/' || c == '\\')
+                    step.append('\\');
+                step.append(c);
+            }
+            path.insert(0, step);
+        }
+        return path.length() == 0 ? "/" : path.toString();
+    }
+
+    private static final class Edit {
+
+        final int line;
+        final int type;
+        final String node;
+        final String arg;
+        final int index;
+
+        Edit(int line, int type, String node, String arg, int index) {
+            this.line = line;
+            this.type = type;
+            this.node = node;
+            this.arg = arg;
+            this.index = index;
+        }
+
+        void apply(OntologyStore store) {
+            int n = resolve(store, node);
+            if (type == ADD) {
+                int at = position(index, store.getChildCount(n));
+                store.insertChild(n, store.createNode(unescape(arg)), at);
+            } else if (type == REMOVE) {
+                if (n == store.getRoot())
+                    throw new IllegalArgumentException("Cannot remove the root");
+                store.remove(n);
+            } else if (type == MOVE) {
+                int parent = resolve(store, arg);
+                if (n == store.getRoot() || store.isAncestor(n, parent))
+                    throw new IllegalArgumentException("Cannot move " + unescape(node)
+                            + " below itself");
+                int count = store.getChildCount(parent)
+                    - (store.getParent(n) == parent ? 1 : 0);
+                int at = position(index, count);
+                store.remove(n);
+                store.insertChild(parent, n, at);
+            } else {
+                store.setLabel(n, unescape(arg));
+            }
+        }
+
+        private static int position(int index, int count) {
+            if (index > count)
+                throw new IllegalArgumentException("Index " + index + " of " + count);
+            return index < 0 ? count : index;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.Arrays;
+
+/**
+ * Times of one kind of operation, in nanoseconds, for reporting
+ * percentiles.  Not thread safe; each thread keeps its own and they are
+ * added together at the end.
+ */
+class Latencies {
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+    /** The column heads for {@link #format()}. */
+    static final String HEADINGS = String.format(" %10s %10s %10s %10s %10s",
+            "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+
+    private long[] nanos = new long[1024];
+    private int count;
+    private boolean sorted = true;
+
+    void add(long t) {
+        if (count == nanos.length)
+            nanos = Arrays.copyOf(nanos, count << 1);
+        nanos[count++] = t;
+        sorted = false;
+    }
+
+    void addAll(Latencies other) {
+        if (count + other.count > nanos.length)
+            nanos = Arrays.copyOf(nanos, Math.max(count + other.count, nanos.length << 1));
+        System.arraycopy(other.nanos, 0, nanos, count, other.count);
+        count += other.count;
+        sorted = false;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /** Returns the p-th percentile by nearest rank, or 0 if there are no times. */
+    long percentile(double p) {
+        if (count == 0)
+            return 0;
+        if (!sorted) {
+            Arrays.sort(nanos, 0, count);
+            sorted = true;
+        }
+        int rank = (int) Math.ceil(p / 100 * count);
+        return nanos[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * Returns the 50th, 90th, 99th and 99.9th percentiles and the longest
+     * time in microseconds, in columns under {@link #HEADINGS}.
+     */
+    String format() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            if (count == 0)
+                b.append(String.format(" %10s", "-"));
+            else
+                b.append(String.format(" %10.1f", percentile(PERCENTILES[i]) / 1000.0));
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,331 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An STC file mapped into memory, with an index of where each node row
+ * starts.
+ * <p>
+ * Opening the file makes one pass over its bytes to find the node rows and
+ * to pick out the two or three columns that make up the tree: the id, the
+ * child count and, for links, the parent and child ids.  Labels and
+ * attributes are left in the mapped file until {@link #readRow(int)} decodes
+ * a row on request.  The heap cost is the {@link STCStructure} plus one int
+ * per row, whatever the size of the file; the file's pages are brought in by
+ * the operating system as they are touched.
+ * <p>
+ * The encoding named in the header must be a single byte superset of ASCII,
+ * or UTF-8, so that commas and newlines can be found without decoding.
+ * Files over 2 GB cannot be mapped in one piece and are refused.
+ */
+public class MappedSTCFile {
+
+    private static final byte[] HEADER = { 'S', 'T', 'C', '=' };
+    private static final int SPARSE_ID_SLACK = 1 << 16;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int limit;
+    private Charset charset;
+    private String version;
+    private String encoding;
+    private final Map<String, String> properties =
+        new LinkedHashMap<String, String>();
+
+    private final STCStructure structure = new STCStructure();
+    private int[] rowOffsets = new int[1024];
+
+    /* Ids that are not of the _ST_n form, only used to resolve links. */
+    private Map<String, Integer> foreignRows;
+
+    private final STCRow row = new STCRow();
+    private CharsetDecoder decoder;
+    private CharBuffer chars = CharBuffer.allocate(1024);
+
+    /** Maps file and indexes its node rows. */
+    public static MappedSTCFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to map ("
+                        + size + " bytes)");
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            MappedSTCFile mapped = new MappedSTCFile(file, buffer);
+            mapped.scan();
+            return mapped;
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    private MappedSTCFile(File file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+    }
+
+    private void scan() throws IOException {
+        int pos = 0;
+        if (limit >= 3 && (buffer.get(0) & 0xff) == 0xef
+                && (buffer.get(1) & 0xff) == 0xbb && (buffer.get(2) & 0xff) == 0xbf)
+            pos = 3;
+        int end = lineEnd(pos);
+        header(pos, end);
+        pos = end + 1;
+
+        int[] provisional = new int[0];
+        int provisionalCount = 0;
+        boolean inNodes = false;
+        boolean inLinks = false;
+        boolean inSections = false;
+        while (pos < limit) {
+            end = lineEnd(pos);
+            int stop = trim(pos, end);
+            if (stop > pos) {
+                byte b = buffer.get(pos);
+                if (b == '[') {
+                    inSections = true;
+                    String name = decode(pos + 1, stop).replace("]", "");
+                    inNodes = name.equals(STCParser.SECTION_NODES);
+                    inLinks = name.equals(STCParser.SECTION_LINKS);
+                } else if (inNodes) {
+                    int r = node(pos, stop);
+                    if (r >= 0) {
+                        if (provisionalCount == provisional.length)
+                            provisional = Arrays.copyOf(provisional,
+                                    Math.max(16, provisionalCount << 1));
+                        provisional[provisionalCount++] = r;
+                    }
+                } else if (inLinks) {
+                    link(pos, stop);
+                } else if (!inSections) {
+                    property(pos, stop);
+                }
+            }
+            pos = end + 1;
+        }
+        for (int k = 0; k < provisionalCount; k++)
+            structure.assignId(provisional[k], structure.getMaxId() + 1);
+        structure.resolve();
+    }
+
+    private void header(int start, int end) throws IOException {
+        int stop = trim(start, end);
+        for (int i = 0; i < HEADER.length; i++) {
+            if (start + i >= stop || buffer.get(start + i) != HEADER[i])
+                throw new IOException("Not an STC file: " + file);
+        }
+        String h = decodeAscii(start + HEADER.length, stop);
+        int comma = h.indexOf(',');
+        version = comma < 0 ? h : h.substring(0, comma);
+        encoding = comma < 0 ? null : h.substring(comma + 1);
+        charset = Charset.forName("UTF-8");
+        if (encoding != null && encoding.length() > 0) {
+            try {
+                charset = Charset.forName(encoding.trim());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown encoding " + encoding + " in " + file);
+            }
+        }
+        byte[] probe = ",\n\\".getBytes(charset.name());
+        if (!Arrays.equals(probe, new byte[] { ',', '\n', '\\' }))
+            throw new IOException("Cannot map " + file + ": encoding "
+                    + charset.name() + " is not ASCII compatible");
+        decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private void property(int start, int end) throws IOException {
+        String line = decode(start, end);
+        int eq = line.indexOf('=');
+        if (eq >= 0)
+            properties.put(line.substring(0, eq), line.substring(eq + 1));
+    }
+
+    /* Adds a node row; returns its row number if it needs an id assigned. */
+    private int node(int start, int end) throws IOException {
+        int idEnd = field(start, end);
+        int id = parseId(start, idEnd);
+        int count = 0;
+        int f = start;
+        for (int col = 0; col < STCTreeHandler.COLUMN_CHILD_COUNT && f < end; col++)
+            f = field(f, end) + 1;
+        if (f < end)
+            count = parseInt(f, field(f, end), 0);
+
+        int r;
+        boolean provisional = false;
+        if (id > (structure.getRowCount() << 2) + SPARSE_ID_SLACK)
+            id = -1;
+        if (id >= 0 && structure.getRow(id) < 0) {
+            r = structure.addRow(id, count);
+        } else {
+            r = structure.addRow(-1, count);
+            if (foreignRows == null)
+                foreignRows = new HashMap<String, Integer>();
+            String key = decode(start, idEnd);
+            if (!foreignRows.containsKey(key))
+                foreignRows.put(key, r);
+            provisional = true;
+        }
+        if (r == rowOffsets.length)
+            rowOffsets = Arrays.copyOf(rowOffsets, r << 1);
+        rowOffsets[r] = start;
+        return provisional ? r : -1;
+    }
+
+    private void link(int start, int end) throws IOException {
+        int parentEnd = field(start, end);
+        if (parentEnd >= end)
+            return;
+        int childEnd = field(parentEnd + 1, end);
+        int parent = rowOf(start, parentEnd);
+        int child = rowOf(parentEnd + 1, childEnd);
+        if (parent >= 0 && child >= 0)
+            structure.addLink(parent, child);
+    }
+
+    private int rowOf(int start, int end) throws IOException {
+        int r = structure.getRow(parseId(start, end));
+        if (r < 0 && foreignRows != null) {
+            Integer f = foreignRows.get(decode(start, end));
+            if (f != null)
+                r = f.intValue();
+        }
+        return r;
+    }
+
+    /** Returns the index of the first comma at or after start, or end. */
+    private int field(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ',')
+                return i;
+        }
+        return end;
+    }
+
+    private int parseId(int start, int end) {
+        int p = STCRow.ID_PREFIX.length();
+        if (end - start <= p)
+            return -1;
+        for (int i = 0; i < p; i++) {
+            if (buffer.get(start + i) != STCRow.ID_PREFIX.charAt(i))
+                return -1;
+        }
+        return parseInt(start + p, end, -1);
+    }
+
+    private int parseInt(int start, int end, int def) {
+        if (start == end || end - start > 9)
+            return def;
+        int v = 0;
+        for (int i = start; i < end; i++) {
+            int d = buffer.get(i) - '0';
+            if (d < 0 || d > 9)
+                return def;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private int lineEnd(int start) {
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n')
+                return i;
+        }
+        return limit;
+    }
+
+    private int trim(int start, int end) {
+        return end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    private String decodeAscii(int start, int end) {
+        byte[] b = new byte[end - start];
+        for (int i = 0; i < b.length; i++)
+            b[i] = buffer.get(start + i);
+        return new String(b, Charset.forName("US-ASCII"));
+    }
+
+    private String decode(int start, int end) throws IOException {
+        return decodeChars(start, end).toString();
+    }
+
+    /* Decodes buffer[start..end) into the shared char buffer. */
+    private CharBuffer decodeChars(int start, int end) throws CharacterCodingException {
+        ByteBuffer in = buffer.duplicate();
+        in.limit(end);
+        in.position(start);
+        int max = (int) ((end - start) * (double) decoder.maxCharsPerByte()) + 1;
+        if (chars.capacity() < max)
+            chars = CharBuffer.allocate(Math.max(max, chars.capacity() << 1));
+        chars.clear();
+        decoder.reset();
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * Decodes node row r.  The returned row is shared and only valid until
+     * the next call; a MappedSTCFile is not thread safe.
+     */
+    public STCRow readRow(int r) throws IOException {
+        int start = rowOffsets[r];
+        int end = trim(start, lineEnd(start));
+        CharBuffer c = decodeChars(start, end);
+        row.reset(c.array(), c.arrayOffset() + c.position(), c.arrayOffset() + c.limit());
+        return row;
+    }
+
+    /** Returns the tree structure of the node rows. */
+    public STCStructure getStructure() {
+        return structure;
+    }
+
+    /** Returns the number of node rows. */
+    public int getRowCount() {
+        return structure.getRowCount();
+    }
+
+    /** Returns the mapped file. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the version from the STC= header. */
+    public String getVersion() {
+        return version;
+    }
+
+    /** Returns the encoding from the STC= header, or null if none was given. */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /** Returns the header properties, in file order. */
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+}
@@ -0,0 +1,86 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * Maps the n of a node's _ST_n id to the node, in constant time.
+ * <p>
+ * STC ids are handed out densely from 0, so the index is a plain array
+ * indexed by id rather than a hash table.  Holes left by removed nodes are
+ * not reused; {@link #allocateId()} always returns an id above every id the
+ * index has seen.
+ */
+public class NodeIndex<N> {
+
+    private Object[] nodes;
+    private int size;
+    private int maxId = -1;
+
+    public NodeIndex() {
+        this(1024);
+    }
+
+    public NodeIndex(int capacity) {
+        nodes = new Object[Math.max(capacity, 16)];
+    }
+
+    /** Returns the node with the given id, or null. */
+    @SuppressWarnings("unchecked")
+    public N get(int id) {
+        if (id < 0 || id >= nodes.length)
+            return null;
+        return (N) nodes[id];
+    }
+
+    /** Returns true if node is the node indexed under id. */
+    public boolean contains(int id, N node) {
+        return node != null && get(id) == node;
+    }
+
+    /** Indexes node under id, replacing whatever was there. */
+    public void put(int id, N node) {
+        if (id < 0)
+            throw new IllegalArgumentException("Negative node id " + id);
+        if (id >= nodes.length) {
+            Object[] grown = new Object[Math.max(id + 1, nodes.length << 1)];
+            System.arraycopy(nodes, 0, grown, 0, nodes.length);
+            nodes = grown;
+        }
+        if (nodes[id] == null)
+            size++;
+        nodes[id] = node;
+        if (id > maxId)
+            maxId = id;
+    }
+
+    /** Removes id from the index if, and only if, it maps to node. */
+    public boolean remove(int id, N node) {
+        if (!contains(id, node))
+            return false;
+        nodes[id] = null;
+        size--;
+        return true;
+    }
+
+    /** Returns a fresh id, higher than any id indexed so far. */
+    public int allocateId() {
+        return ++maxId;
+    }
+
+    /**
+     * Makes sure {@link #allocateId()} returns ids above id, for ids that are
+     * in use but not yet in the index.
+     */
+    public void reserve(int id) {
+        if (id > maxId)
+            maxId = id;
+    }
+
+    /** Returns the highest id seen, or -1. */
+    public int getMaxId() {
+        return maxId;
+    }
+
+    /** Returns the number of indexed nodes. */
+    public int size() {
+        return size;
+    }
+}
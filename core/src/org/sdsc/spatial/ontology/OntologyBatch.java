@@ -0,0 +1,152 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies an {@link EditScript} to STC files from the command line, with no
+ * display:
+ * <pre>
+ * java org.sdsc.spatial.ontology.OntologyBatch [-t threads] [-o out.stc | -d dir] script file.stc...
+ * </pre>
+ * Each file is read into an {@link OntologyStore}, edited and written back
+ * through an {@link AtomicFile}: over itself, to out.stc when there is one
+ * file, or to a file of the same name in dir.  A file the script fails on
+ * is not written.  Files are done in parallel, one per thread, by default
+ * on as many threads as there are processors; the script is read once and
+ * shared.  Nothing here touches AWT, Swing or the StarTree classes.
+ * <p>
+ * Prints a line per file and exits with 0 if every file was written, 1 if
+ * any failed and 2 for a bad command line or script.
+ */
+public class OntologyBatch {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final EditScript script;
+
+    public OntologyBatch(EditScript script) {
+        this.script = script;
+    }
+
+    /** Reads source, applies the script and writes target; returns the node count. */
+    public int run(File source, File target) throws IOException {
+        OntologyStore store = OntologyStore.read(source.toURI().toURL());
+        script.apply(store);
+        return write(store, target);
+    }
+
+    /** Writes store to target in one step and returns the number of nodes written. */
+    public static int write(OntologyStore store, File target) throws IOException {
+        AtomicFile file = new AtomicFile(target);
+        FileOutputStream out = file.startWrite();
+        int nodes;
+        try {
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+            nodes = new STCTreeWriter().write(store, writer);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        } catch (RuntimeException e) {
+            file.failWrite(out);
+            throw e;
+        }
+        file.finishWrite(out);
+        return nodes;
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        File output = null;
+        File dir = null;
+        int a = 0;
+        try {
+            for (; a < args.length && args[a].startsWith("-"); a++) {
+                if (args[a].equals("-t") && a + 1 < args.length)
+                    threads = Math.max(1, Integer.parseInt(args[++a]));
+                else if (args[a].equals("-o") && a + 1 < args.length)
+                    output = new File(args[++a]);
+                else if (args[a].equals("-d") && a + 1 < args.length)
+                    dir = new File(args[++a]);
+                else
+                    usage();
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (args.length - a < 2 || (output != null && (dir != null || args.length - a > 2)))
+            usage();
+
+        final OntologyBatch batch;
+        try {
+            batch = new OntologyBatch(EditScript.read(new File(args[a])));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        List<File> sources = new ArrayList<File>();
+        List<File> targets = new ArrayList<File>();
+        for (a++; a < args.length; a++) {
+            File source = new File(args[a]);
+            sources.add(source);
+            if (output != null)
+                targets.add(output);
+            else if (dir != null)
+                targets.add(new File(dir, source.getName()));
+            else
+                targets.add(source);
+        }
+
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, sources.size()));
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < sources.size(); i++) {
+            final File source = sources.get(i);
+            final File target = targets.get(i);
+            results.add(pool.submit(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return batch.run(source, target);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                int nodes = results.get(i).get().intValue();
+                System.out.println(sources.get(i) + ": " + nodes + " nodes written to "
+                        + targets.get(i));
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(sources.get(i) + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                failed++;
+                System.err.println(sources.get(i) + ": interrupted");
+            }
+        }
+        System.out.println(sources.size() - failed + " of " + sources.size()
+                + " files done in " + (System.currentTimeMillis() - start) + " ms");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java " + OntologyBatch.class.getName()
+                + " [-t threads] [-o out.stc | -d dir] script file.stc...");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,259 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The structural differences between two versions of an ontology.
+ * <p>
+ * Nodes of the new version are matched with nodes of the old one first by
+ * _ST_n id and then, for those left over, by label path: a node whose
+ * parent is matched is matched with a child of the same label of its
+ * parent's match, if that has not been matched already.  The roots are
+ * always matched.  What is left is reported as subtrees, so a change shows
+ * up once however many nodes it takes in:
+ * <ul>
+ * <li>added, a node of the new version that is not matched, under one that is;
+ * <li>removed, a node of the old version that is not matched, under one that is;
+ * <li>moved, a matched node whose parent is not matched with its old parent;
+ * <li>renamed, a matched node whose label has changed.
+ * </ul>
+ * A node can be both moved and renamed.  A change of order among siblings
+ * is not a change.  Each version is walked once and every lookup is an
+ * array index or a hash lookup, so the time and memory go with the number
+ * of nodes; two versions of 100,000 nodes compare in well under a second.
+ */
+public class OntologyDiff {
+
+    public static final int ADDED = 0;
+    public static final int REMOVED = 1;
+    public static final int MOVED = 2;
+    public static final int RENAMED = 3;
+
+    private static final String[] NAMES = { "Added", "Removed", "Moved", "Renamed" };
+
+    /** One difference, between a node of the old version and one of the new. */
+    public class Change {
+
+        private final int type;
+        private final int oldNode;
+        private final int newNode;
+
+        Change(int type, int oldNode, int newNode) {
+            this.type = type;
+            this.oldNode = oldNode;
+            this.newNode = newNode;
+        }
+
+        /** Returns {@link #ADDED}, {@link #REMOVED}, {@link #MOVED} or {@link #RENAMED}. */
+        public int getType() {
+            return type;
+        }
+
+        /** Returns the node in the old version, or {@link OntologyStore#NONE} if added. */
+        public int getOldNode() {
+            return oldNode;
+        }
+
+        /** Returns the node in the new version, or {@link OntologyStore#NONE} if removed. */
+        public int getNewNode() {
+            return newNode;
+        }
+
+        /** Returns the path of the node, as in the new version unless it was removed. */
+        public String getPath() {
+            return newNode == OntologyStore.NONE
+                ? EditScript.path(oldStore, oldNode) : EditScript.path(newStore, newNode);
+        }
+
+        public String toString() {
+            if (type == MOVED)
+                return NAMES[type] + " " + EditScript.path(oldStore, oldNode) + " to " + getPath();
+            if (type == RENAMED)
+                return NAMES[type] + " " + getPath() + " from " + oldStore.getLabel(oldNode);
+            return NAMES[type] + " " + getPath();
+        }
+    }
+
+    private final OntologyStore oldStore;
+    private final OntologyStore newStore;
+
+    /* The match of each node of each version, or NONE. */
+    private final int[] oldMatch;
+    private final int[] newMatch;
+    private final List<Change> changes = new ArrayList<Change>();
+
+    /** Compares oldStore, the earlier version, with newStore. */
+    public OntologyDiff(OntologyStore oldStore, OntologyStore newStore) {
+        this.oldStore = oldStore;
+        this.newStore = newStore;
+        oldMatch = new int[oldStore.getSlotCount()];
+        newMatch = new int[newStore.getSlotCount()];
+        Arrays.fill(oldMatch, OntologyStore.NONE);
+        Arrays.fill(newMatch, OntologyStore.NONE);
+        int oldRoot = oldStore.getRoot();
+        int newRoot = newStore.getRoot();
+        if (oldRoot != OntologyStore.NONE && newRoot != OntologyStore.NONE) {
+            int[] oldNodes = preorder(oldStore);
+            int[] newNodes = preorder(newStore);
+            matchIds(oldNodes, newNodes);
+            if (newMatch[newRoot] == OntologyStore.NONE && oldMatch[oldRoot] == OntologyStore.NONE)
+                match(oldRoot, newRoot);
+            matchPaths(newNodes);
+            report(oldNodes, newNodes);
+        }
+    }
+
+    public OntologyStore getOldStore() {
+        return oldStore;
+    }
+
+    public OntologyStore getNewStore() {
+        return newStore;
+    }
+
+    /** Returns the changes, those found walking the new version first, then the removals. */
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    /** Returns the node of the new version matched with node of the old, or NONE. */
+    public int getNewMatch(int oldNode) {
+        return oldMatch[oldNode];
+    }
+
+    /** Returns the node of the old version matched with node of the new, or NONE. */
+    public int getOldMatch(int newNode) {
+        return newMatch[newNode];
+    }
+
+    private void match(int oldNode, int newNode) {
+        oldMatch[oldNode] = newNode;
+        newMatch[newNode] = oldNode;
+    }
+
+    private void matchIds(int[] oldNodes, int[] newNodes) {
+        // Removed nodes keep their ids; only those in the tree count.
+        boolean[] inTree = new boolean[oldMatch.length];
+        for (int i = 0; i < oldNodes.length; i++)
+            inTree[oldNodes[i]] = true;
+        for (int i = 0; i < newNodes.length; i++) {
+            int old = oldStore.getNode(newStore.getId(newNodes[i]));
+            if (old != OntologyStore.NONE && inTree[old])
+                match(old, newNodes[i]);
+        }
+    }
+
+    /*
+     * Parents come before their children in preorder, so by the time a node
+     * is reached its parent has its final match.  The unmatched children of
+     * an old node are put in a map by label the first time they are asked
+     * for, as a chain through next for labels that repeat.
+     */
+    private void matchPaths(int[] newNodes) {
+        Map<Integer, Map<String, Integer>> byLabel = new HashMap<Integer, Map<String, Integer>>();
+        int[] next = new int[oldMatch.length];
+        for (int i = 1; i < newNodes.length; i++) {
+            int node = newNodes[i];
+            if (newMatch[node] != OntologyStore.NONE)
+                continue;
+            int parent = newMatch[newStore.getParent(node)];
+            if (parent == OntologyStore.NONE)
+                continue;
+            Integer key = Integer.valueOf(parent);
+            Map<String, Integer> children = byLabel.get(key);
+            if (children == null) {
+                children = new HashMap<String, Integer>();
+                Map<String, Integer> last = new HashMap<String, Integer>();
+                for (int c = oldStore.getFirstChild(parent); c != OntologyStore.NONE;
+                        c = oldStore.getNextSibling(c)) {
+                    if (oldMatch[c] != OntologyStore.NONE)
+                        continue;
+                    Integer at = Integer.valueOf(c);
+                    Integer tail = last.put(oldStore.getLabel(c), at);
+                    if (tail == null)
+                        children.put(oldStore.getLabel(c), at);
+                    else
+                        next[tail.intValue()] = c;
+                    next[c] = OntologyStore.NONE;
+                }
+                byLabel.put(key, children);
+            }
+            String label = newStore.getLabel(node);
+            Integer found = children.get(label);
+            if (found == null)
+                continue;
+            int old = found.intValue();
+            match(old, node);
+            if (next[old] == OntologyStore.NONE)
+                children.remove(label);
+            else
+                children.put(label, Integer.valueOf(next[old]));
+        }
+    }
+
+    private void report(int[] oldNodes, int[] newNodes) {
+        for (int i = 0; i < newNodes.length; i++) {
+            int node = newNodes[i];
+            int old = newMatch[node];
+            int parent = newStore.getParent(node);
+            if (old == OntologyStore.NONE) {
+                if (parent != OntologyStore.NONE && newMatch[parent] != OntologyStore.NONE)
+                    changes.add(new Change(ADDED, OntologyStore.NONE, node));
+                continue;
+            }
+            int oldParent = oldStore.getParent(old);
+            if (parent != OntologyStore.NONE && (oldParent == OntologyStore.NONE
+                    || oldMatch[oldParent] != parent))
+                changes.add(new Change(MOVED, old, node));
+            if (!oldStore.getLabel(old).equals(newStore.getLabel(node)))
+                changes.add(new Change(RENAMED, old, node));
+        }
+        for (int i = 0; i < oldNodes.length; i++) {
+            int old = oldNodes[i];
+            int parent = oldStore.getParent(old);
+            if (oldMatch[old] == OntologyStore.NONE && parent != OntologyStore.NONE
+                    && oldMatch[parent] != OntologyStore.NONE)
+                changes.add(new Change(REMOVED, old, OntologyStore.NONE));
+        }
+    }
+
+    /* The nodes in the tree of store, parents before children. */
+    private static int[] preorder(OntologyStore store) {
+        int[] nodes = new int[store.getNodeCount()];
+        int count = 0;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = store.getRoot();
+        while (top > 0) {
+            int node = stack[--top];
+            if (count == nodes.length) {
+                int[] grown = new int[nodes.length << 1 | 1];
+                System.arraycopy(nodes, 0, grown, 0, count);
+                nodes = grown;
+            }
+            nodes[count++] = node;
+            int n = store.getChildCount(node);
+            if (top + n > stack.length) {
+                int[] grown = new int[Math.max(top + n, stack.length << 1)];
+                System.arraycopy(stack, 0, grown, 0, top);
+                stack = grown;
+            }
+            // Last child lowest, so they come off in order.
+            int k = top + n;
+            for (int c = store.getFirstChild(node); c != OntologyStore.NONE;
+                    c = store.getNextSibling(c))
+                stack[--k] = c;
+            top += n;
+        }
+        if (count == nodes.length)
+            return nodes;
+        int[] trimmed = new int[count];
+        System.arraycopy(nodes, 0, trimmed, 0, count);
+        return trimmed;
+    }
+}
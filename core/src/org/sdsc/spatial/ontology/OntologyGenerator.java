@@ -0,0 +1,337 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Makes up ontologies of any size, for measuring how the editor copes
+ * with trees larger than the ones we have, and editing sessions to replay
+ * on them with the editor's OntologyReplay:
+ * <pre>
+ * java org.sdsc.spatial.ontology.OntologyGenerator [-n nodes] [-f fanout] [-p]
+ *     [-d depth] [-w count:width] [-u duplicates] [-s seed] [-e edits] file.stc
+ * </pre>
+ * Nodes are added breadth first until there are enough.  A node gets
+ * between one and twice the fan out children or, with -p, a number drawn
+ * from a power law with the fan out as its mean, so that a few nodes have
+ * hundreds.  With a depth limit, nodes at that depth get no children, and
+ * once the rest all have theirs the nodes above it are gone round again.
+ * Wide nodes, like _ST_169 in cuahsitree.stc, get width children each and
+ * are picked from the top of the tree.  A fraction of the labels, given by
+ * -u, are copies of the label of an earlier node, as happens when terms
+ * are reused across branches.
+ * <p>
+ * Every node gets the same STC columns as the concepts in cuahsitree.stc,
+ * so a generated tree costs the same per node to parse and write as a real
+ * one.  The same settings and seed always give the same tree.
+ * <p>
+ * -e records a session of that many edits, as the {@link EditJournal} of
+ * the file: a mix of inserts, removes, renames and moves, with half the
+ * inserts and moves going to the widest nodes, where edits cost the most.
+ */
+public class OntologyGenerator {
+
+    /* Out of 100, the share of each kind of edit in a session. */
+    private static final int INSERTS = 40;
+    private static final int REMOVES = 15;
+    private static final int RENAMES = 25;
+
+    /* The number of widest nodes that take half the inserts and moves of a session. */
+    private static final int HOT_NODES = 4;
+
+    /* The exponent of the power law; under 2, so the spread is wide. */
+    private static final double ALPHA = 1.5;
+
+    private final int size;
+    private int fanOut = 8;
+    private boolean powerLaw;
+    private int maxDepth;
+    private int wideCount;
+    private int wideWidth;
+    private double duplicateRate;
+    private long seed = 1;
+
+    /** Generates trees of size nodes. */
+    public OntologyGenerator(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("Size " + size);
+        this.size = size;
+    }
+
+    /** Sets the average number of children of a node that has any. */
+    public void setFanOut(int fanOut) {
+        if (fanOut < 1)
+            throw new IllegalArgumentException("Fan out " + fanOut);
+        this.fanOut = fanOut;
+    }
+
+    /** Draws the number of children from a power law rather than evenly. */
+    public void setPowerLaw(boolean powerLaw) {
+        this.powerLaw = powerLaw;
+    }
+
+    /** Keeps nodes within depth levels below the root; 0, the default, for no limit. */
+    public void setMaxDepth(int depth) {
+        if (depth < 0)
+            throw new IllegalArgumentException("Depth " + depth);
+        this.maxDepth = depth;
+    }
+
+    /** Gives count nodes near the top width children each. */
+    public void setWideNodes(int count, int width) {
+        if (count < 0 || width < 1)
+            throw new IllegalArgumentException("Wide nodes " + count + ":" + width);
+        this.wideCount = count;
+        this.wideWidth = width;
+    }
+
+    /** Sets the fraction of nodes, from 0 to 1, that reuse the label of an earlier one. */
+    public void setDuplicateRate(double rate) {
+        if (rate < 0 || rate > 1)
+            throw new IllegalArgumentException("Duplicate rate " + rate);
+        this.duplicateRate = rate;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public OntologyStore generate() {
+        Random random = new Random(seed);
+        OntologyStore store = new OntologyStore(size);
+        int root = node(store, "Concept 0", OntologyStore.NONE);
+        store.setRoot(root);
+
+        // Wide nodes are taken from the first quarter of the parents, which
+        // there are always enough of.
+        boolean[] wide = new boolean[size];
+        int top = Math.max(1, size / (4 * fanOut));
+        for (int i = Math.min(wideCount, top); i > 0; ) {
+            int k = random.nextInt(top);
+            if (!wide[k]) {
+                wide[k] = true;
+                i--;
+            }
+        }
+
+        // The queue holds the nodes that may have children, in the order
+        // they were added; with a depth limit it is gone round again.
+        int[] queue = new int[size];
+        int[] depth = new int[size];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = root;
+        int count = 1;
+        while (count < size) {
+            if (head == tail)
+                head = 0;
+            int turn = head;
+            int parent = queue[head++];
+            int children = wide[turn] ? wideWidth : children(random);
+            children = Math.min(children, size - count);
+            for (int i = 0; i < children; i++) {
+                String label = duplicateRate > 0 && random.nextDouble() < duplicateRate
+                    ? store.getLabel(random.nextInt(count)) : "Concept " + count;
+                count++;
+                int child = node(store, label, parent);
+                store.addChild(parent, child);
+                depth[child] = depth[parent] + 1;
+                if (maxDepth == 0 || depth[child] < maxDepth)
+                    queue[tail++] = child;
+            }
+            // Only the first time round is a node wide.
+            wide[turn] = false;
+        }
+        store.optimize();
+        return store;
+    }
+
+    private int children(Random random) {
+        if (!powerLaw)
+            return 1 + random.nextInt(2 * fanOut);
+        // Pareto with its smallest value set so that the mean is the fan out.
+        double least = fanOut * (ALPHA - 1) / ALPHA;
+        double n = least / Math.pow(1 - random.nextDouble(), 1 / ALPHA);
+        return (int) Math.max(1, Math.min(Math.round(n), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Records a session of count edits to store, which has been saved as
+     * base, as the journal of base, and returns the number recorded.  The
+     * edits are made to store as well, through a {@link StoreReplayer}, so
+     * each is one that could have followed the ones before; store ends up
+     * as the tree replaying them gives.
+     */
+    public int record(OntologyStore store, File base, int count) throws IOException {
+        Random random = new Random(seed + 1);
+        int[] hot = widest(store, HOT_NODES);
+        new File(base.getPath() + EditJournal.SUFFIX).delete();
+        EditJournal journal = EditJournal.open(base, null);
+        StoreReplayer edits = new StoreReplayer(store);
+        int recorded = 0;
+        try {
+            journal.beginBatch();
+            for (int i = 0; i < count; i++) {
+                int kind = random.nextInt(100);
+                int node = anyNode(store, random);
+                if (kind < INSERTS) {
+                    int parent = hot(store, hot, random, node);
+                    int index = random.nextInt(store.getChildCount(parent) + 1);
+                    int id = store.getMaxId() + 1;
+                    String label = "New Concept " + i;
+                    edits.insert(store.getId(parent), index, id, label, null);
+                    journal.insert(store.getId(parent), index, id, label);
+                } else if (kind < INSERTS + REMOVES) {
+                    // Mostly leaves and small subtrees, as a curator removes them.
+                    while (store.getChildCount(node) > 0 && random.nextInt(4) > 0)
+                        node = store.getChild(node, random.nextInt(store.getChildCount(node)));
+                    if (node == store.getRoot())
+                        continue;
+                    edits.remove(store.getId(node));
+                    journal.remove(store.getId(node));
+                } else if (kind < INSERTS + REMOVES + RENAMES) {
+                    String label = random.nextDouble() < duplicateRate
+                        ? store.getLabel(anyNode(store, random)) : "Renamed Concept " + i;
+                    edits.rename(store.getId(node), label);
+                    journal.rename(store.getId(node), label);
+                } else {
+                    int parent = hot(store, hot, random, anyNode(store, random));
+                    if (node == store.getRoot() || store.isAncestor(node, parent))
+                        continue;
+                    int siblings = store.getChildCount(parent)
+                        - (store.getParent(node) == parent ? 1 : 0);
+                    int index = random.nextInt(siblings + 1);
+                    edits.move(store.getId(node), store.getId(parent), index);
+                    journal.move(store.getId(node), store.getId(parent), index);
+                }
+                recorded++;
+            }
+            journal.endBatch();
+        } finally {
+            journal.close();
+        }
+        return recorded;
+    }
+
+    /* Half the time one of the hot nodes, if it is still in the tree, else node. */
+    private static int hot(OntologyStore store, int[] hot, Random random, int node) {
+        if (hot.length == 0 || random.nextBoolean())
+            return node;
+        int h = hot[random.nextInt(hot.length)];
+        return store.isInTree(h) ? h : node;
+    }
+
+    /* A node picked evenly from those in the tree. */
+    private static int anyNode(OntologyStore store, Random random) {
+        while (true) {
+            int node = random.nextInt(store.getSlotCount());
+            if (store.isInTree(node))
+                return node;
+        }
+    }
+
+    /* The count nodes of the tree with the most children, or fewer if fewer have any. */
+    private static int[] widest(OntologyStore store, int count) {
+        int[] best = new int[count];
+        int found = 0;
+        for (int node = 0; node < store.getSlotCount(); node++) {
+            int n = store.getChildCount(node);
+            if (n == 0 || !store.isInTree(node))
+                continue;
+            int k = found < count ? found++ : count;
+            while (k > 0 && store.getChildCount(best[k - 1]) < n) {
+                if (k < count)
+                    best[k] = best[k - 1];
+                k--;
+            }
+            if (k < count)
+                best[k] = node;
+        }
+        int[] hot = new int[found];
+        System.arraycopy(best, 0, hot, 0, found);
+        return hot;
+    }
+
+    /* A node with the columns of a concept in cuahsitree.stc, but no child count. */
+    private static int node(OntologyStore store, String label, int parent) {
+        int node = store.createNode(label);
+        String parentId = parent == OntologyStore.NONE ? "" : STCRow.ID_PREFIX + store.getId(parent);
+        store.setAttributes(node, "," + label + ",0,,,,1,1,," + label + ",,,,,,,,,"
+                + parentId + ",0,0,," + label + ",1,");
+        return node;
+    }
+
+    public static void main(String[] args) {
+        int nodes = 100000;
+        int edits = 0;
+        OntologyGenerator generator = null;
+        int a = 0;
+        try {
+            int fanOut = 8;
+            boolean powerLaw = false;
+            int depth = 0;
+            int wideCount = 0;
+            int wideWidth = 1;
+            double duplicates = 0;
+            long seed = 1;
+            for (; a < args.length && args[a].startsWith("-"); a++) {
+                if (args[a].equals("-n") && a + 1 < args.length)
+                    nodes = Integer.parseInt(args[++a]);
+                else if (args[a].equals("-f") && a + 1 < args.length)
+                    fanOut = Integer.parseInt(args[++a]);
+                else if (args[a].equals("-p"))
+                    powerLaw = true;
+                else if (args[a].equals("-d") && a + 1 < args.length)
+                    depth = Integer.parseInt(args[++a]);
+                else if (args[a].equals("-w") && a + 1 < args.length) {
+                    String[] w = args[++a].split(":");
+                    if (w.length != 2)
+                        usage();
+                    wideCount = Integer.parseInt(w[0]);
+                    wideWidth = Integer.parseInt(w[1]);
+                } else if (args[a].equals("-u") && a + 1 < args.length)
+                    duplicates = Double.parseDouble(args[++a]);
+                else if (args[a].equals("-s") && a + 1 < args.length)
+                    seed = Long.parseLong(args[++a]);
+                else if (args[a].equals("-e") && a + 1 < args.length)
+                    edits = Integer.parseInt(args[++a]);
+                else
+                    usage();
+            }
+            generator = new OntologyGenerator(nodes);
+            generator.setFanOut(fanOut);
+            generator.setPowerLaw(powerLaw);
+            generator.setMaxDepth(depth);
+            generator.setWideNodes(wideCount, wideWidth);
+            generator.setDuplicateRate(duplicates);
+            generator.setSeed(seed);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        if (a != args.length - 1)
+            usage();
+
+        File file = new File(args[a]);
+        try {
+            OntologyStore store = generator.generate();
+            int written = OntologyBatch.write(store, file);
+            System.out.println("Wrote " + written + " nodes to " + file);
+            if (edits > 0) {
+                int recorded = generator.record(store, file, edits);
+                System.out.println("Recorded " + recorded + " edits in " + file + EditJournal.SUFFIX);
+            }
+        } catch (IOException e) {
+            System.err.println(file + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: java " + OntologyGenerator.class.getName()
+                + " [-n nodes] [-f fanout] [-p] [-d depth] [-w count:width]"
+                + " [-u duplicates] [-s seed] [-e edits] file.stc");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,230 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges several STC files into one tree.
+ * <p>
+ * The files are parsed in parallel on a {@link ForkJoinPool}, one task
+ * per file, into {@link OntologyStore}s, and then merged in the order given under a new
+ * root.  Nodes are matched by label path: the roots of the files go under
+ * the new root, and a node whose parent has already been matched with a
+ * node that has a child of the same label is that child.  A matched node
+ * is kept once, with the columns of the first file it was seen in.  Where a
+ * later file gives a matched node different columns, a {@link Conflict} is
+ * recorded; the columns that only say where a node sits, its child count
+ * and any _ST_n ids, are left out of the comparison.  Every node gets a
+ * fresh id, since the ids of different files clash.
+ * <p>
+ * Parsing is the larger part of the work and is spread over the threads,
+ * so a merge speeds up with the processors until there are more of them
+ * than files; the merge itself is one pass over the nodes, with a hash
+ * lookup for each.  The STC header properties are those of the first file.
+ */
+public class OntologyMerger {
+
+    /** A node that two files describe differently. */
+    public static class Conflict {
+
+        private final String path;
+        private final URL first;
+        private final URL other;
+
+        Conflict(String path, URL first, URL other) {
+            this.path = path;
+            this.first = first;
+            this.other = other;
+        }
+
+        /** Returns the path of labels to the node, as an {@link EditScript} names it. */
+        public String getPath() {
+            return path;
+        }
+
+        /** Returns the file whose columns were kept. */
+        public URL getFirst() {
+            return first;
+        }
+
+        /** Returns the file whose columns differed. */
+        public URL getOther() {
+            return other;
+        }
+
+        public String toString() {
+            return path + ": " + other + " differs from " + first;
+        }
+    }
+
+    private final int threads;
+    private final List<Conflict> conflicts = new ArrayList<Conflict>();
+    private int matched;
+
+    /** Parses on as many threads as there are processors. */
+    public OntologyMerger() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public OntologyMerger(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /** Parses the files at urls in parallel and merges them under a root labelled rootLabel. */
+    public OntologyStore merge(List<URL> urls, String rootLabel) throws IOException {
+        return merge(urls, readAll(urls), rootLabel);
+    }
+
+    /** Returns the conflicts found by the last merge. */
+    public List<Conflict> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    /** Returns the number of nodes of the last merge that matched a node already merged. */
+    public int getMatchedCount() {
+        return matched;
+    }
+
+    /** Parses the files at urls, in parallel, in the same order. */
+    public OntologyStore[] readAll(List<URL> urls) throws IOException {
+        OntologyStore[] stores = new OntologyStore[urls.size()];
+        if (stores.length == 0)
+            return stores;
+        IOException[] failures = new IOException[stores.length];
+        ForkJoinPool pool = new ForkJoinPool(Math.min(threads, stores.length));
+        try {
+            pool.invoke(new Read(urls, stores, failures, 0, stores.length));
+        } finally {
+            pool.shutdownNow();
+        }
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null)
+                throw failures[i];
+        }
+        return stores;
+    }
+
+    /** Reads the files from one index up to another, halving the range until it is one file. */
+    private static class Read extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<URL> urls;
+        private final OntologyStore[] stores;
+        private final IOException[] failures;
+        private final int from;
+        private final int to;
+
+        Read(List<URL> urls, OntologyStore[] stores, IOException[] failures, int from, int to) {
+            this.urls = urls;
+            this.stores = stores;
+            this.failures = failures;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Read(urls, stores, failures, from, middle),
+                        new Read(urls, stores, failures, middle, to));
+                return;
+            }
+            try {
+                stores[from] = OntologyStore.read(urls.get(from));
+            } catch (IOException e) {
+                failures[from] = e;
+            }
+        }
+    }
+
+    /** Merges stores, read from urls, under a root labelled rootLabel. */
+    public OntologyStore merge(List<URL> urls, OntologyStore[] stores, String rootLabel) {
+        conflicts.clear();
+        matched = 0;
+        int capacity = 1;
+        for (int i = 0; i < stores.length; i++)
+            capacity += stores[i].getSlotCount();
+        OntologyStore out = new OntologyStore(capacity);
+        int root = out.createNode(rootLabel);
+        out.setRoot(root);
+        if (stores.length > 0)
+            out.getProperties().putAll(stores[0].getProperties());
+
+        // The children of each merged node by label, and the file and
+        // columns each merged node came with.
+        List<Map<String, Integer>> children = new ArrayList<Map<String, Integer>>(capacity);
+        int[] origin = new int[capacity];
+        String[] columns = new String[capacity];
+
+        ArrayList<int[]> stack = new ArrayList<int[]>();
+        for (int f = 0; f < stores.length; f++) {
+            OntologyStore in = stores[f];
+            if (in.getRoot() == OntologyStore.NONE)
+                continue;
+            stack.add(new int[] { in.getRoot(), root });
+            while (!stack.isEmpty()) {
+                int[] top = stack.remove(stack.size() - 1);
+                int node = top[0];
+                int parent = top[1];
+                String label = in.getLabel(node);
+                String attributes = in.getAttributes(node);
+                while (children.size() <= parent)
+                    children.add(null);
+                Map<String, Integer> siblings = children.get(parent);
+                if (siblings == null)
+                    children.set(parent, siblings = new HashMap<String, Integer>());
+                Integer found = siblings.get(label);
+                int merged;
+                if (found == null) {
+                    merged = out.createNode(label);
+                    out.setAttributes(merged, attributes);
+                    out.addChild(parent, merged);
+                    siblings.put(label, merged);
+                    origin[merged] = f;
+                    columns[merged] = attributes;
+                } else {
+                    merged = found.intValue();
+                    matched++;
+                    if (!sameColumns(columns[merged], attributes))
+                        conflicts.add(new Conflict(EditScript.path(out, merged),
+                                urls.get(origin[merged]), urls.get(f)));
+                }
+                // Children go on in reverse so they come off, and are added, in order.
+                int mark = stack.size();
+                for (int c = in.getFirstChild(node); c != OntologyStore.NONE;
+                        c = in.getNextSibling(c))
+                    stack.add(new int[] { c, merged });
+                Collections.reverse(stack.subList(mark, stack.size()));
+            }
+        }
+        out.optimize();
+        return out;
+    }
+
+    /* Compares the columns that describe a node, not where it sits. */
+    private static boolean sameColumns(String a, String b) {
+        if (a == null ? b == null : a.equals(b))
+            return true;
+        String[] x = a == null ? new String[0] : a.split(",", -1);
+        String[] y = b == null ? new String[0] : b.split(",", -1);
+        for (int k = 0; k < Math.max(x.length, y.length); k++) {
+            if (k + STCTreeHandler.COLUMN_ATTRIBUTES == STCTreeHandler.COLUMN_CHILD_COUNT)
+                continue;
+            String u = k < x.length ? x[k] : "";
+            String v = k < y.length ? y[k] : "";
+            if (u.startsWith(STCRow.ID_PREFIX) && v.startsWith(STCRow.ID_PREFIX))
+                continue;
+            if (!u.equals(v))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,604 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers questions about an ontology over HTTP, in JSON, for services that
+ * would otherwise parse the STC file themselves:
+ * <pre>
+ * GET /node?node=N                 the node, with its STC columns
+ * GET /children?node=N             the node and its children
+ * GET /ancestors?node=N            the nodes from the root down to its parent
+ * GET /search?q=text&amp;limit=L       nodes whose label contains text, in any case
+ * GET /subtree?node=N&amp;depth=D      the node and its descendants, nested
+ * </pre>
+ * N is an _ST_n id or a path of labels, as in an {@link EditScript}, and is
+ * the root if left out.  A node is given by its id, label, path and child
+ * count; a subtree gives id, label and child count and nests the children,
+ * down to depth D if given and to at most {@link #MAX_SUBTREE} nodes, and
+ * says whether either limit cut it short.  A node below depth D has no
+ * children list, so as not to look like a leaf.  A search returns up to L nodes, 50 by default, and says
+ * whether there were more.  A node that cannot be found is a 404.
+ * <p>
+ * Requests are answered from the last {@link OntologyStore} published to
+ * the server, which must not be changed after it is; the editor publishes
+ * copies.  A request reads one version throughout and takes no locks, so
+ * it never waits for an edit or a publish, and the version number is in
+ * the X-Ontology-Version header.  Requests are handled by a small fixed
+ * pool of threads; the label index a search uses is built when a version
+ * is published, by the publishing thread.
+ * <p>
+ * On its own, the server serves an STC file with the edits in its journal,
+ * and checks every few seconds whether either has changed:
+ * <pre>
+ * java org.sdsc.spatial.ontology.OntologyServer [-p port] [-t threads] file.stc
+ * </pre>
+ */
+public class OntologyServer {
+
+    public static final int DEFAULT_PORT = 8087;
+
+    /** The most nodes a subtree request returns. */
+    public static final int MAX_SUBTREE = 100000;
+
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 10000;
+    private static final long CHECK_SECONDS = 5;
+
+    /** A published store with the index searches use. */
+    private static final class Version {
+
+        final OntologyStore store;
+        final long number;
+
+        /* The nodes carrying each label, by string index, in tree order. */
+        final int[] start;
+        final int[] nodes;
+
+        /* The lower case of each label, by string index; null for strings that are no label. */
+        final String[] lower;
+
+        Version(OntologyStore store, long number) {
+            this.store = store;
+            this.number = number;
+            StringPool strings = store.getStrings();
+            int[] order = treeOrder(store);
+            int[] labels = new int[order.length];
+            start = new int[strings.size() + 1];
+            for (int i = 0; i < order.length; i++) {
+                labels[i] = strings.indexOf(store.getLabel(order[i]));
+                start[labels[i] + 1]++;
+            }
+            for (int s = 0; s < strings.size(); s++)
+                start[s + 1] += start[s];
+            nodes = new int[order.length];
+            int[] fill = new int[strings.size()];
+            for (int i = 0; i < order.length; i++)
+                nodes[start[labels[i]] + fill[labels[i]]++] = order[i];
+            lower = new String[strings.size()];
+            for (int s = 0; s < strings.size(); s++) {
+                if (start[s + 1] > start[s])
+                    lower[s] = strings.get(s).toLowerCase();
+            }
+        }
+    }
+
+    static {
+        // Otherwise the headers and body go in separate packets and a client
+        // that delays its acks waits 40 ms for the body.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer http;
+    private final ExecutorService pool;
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(daemons("ontology-publisher"));
+    private volatile Version version;
+    private long published;
+
+    /** Listens on port, 0 for any free one, handling requests on threads threads. */
+    public OntologyServer(int port, int threads) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), daemons("ontology-server"));
+        http.setExecutor(pool);
+        http.createContext("/node", new Handler() {
+            void answer(Version v, Map<String, String> query, Writer out) throws IOException {
+                int node = node(v, query);
+                out.write("{\"version\":" + v.number + ",\"node\":");
+                node(v.store, node, out);
+                out.write(",\"columns\":[");
+                for (int k = 0; k < v.store.getAttributeCount(node); k++) {
+                    if (k > 0)
+                        out.write(',');
+                    string(STCRow.unescape(v.store.getAttribute(node,
+                            STCTreeHandler.COLUMN_ATTRIBUTES + k)), out);
+                }
+                out.write("]}");
+            }
+        });
+        http.createContext("/children", new Handler() {
+            void answer(Version v, Map<String, String> query, Writer out) throws IOException {
+                int node = node(v, query);
+                out.write("{\"version\":" + v.number + ",\"node\":");
+                node(v.store, node, out);
+                out.write(",\"children\":[");
+                for (int c = v.store.getFirstChild(node); c != OntologyStore.NONE;
+                        c = v.store.getNextSibling(c)) {
+                    if (c != v.store.getFirstChild(node))
+                        out.write(',');
+                    node(v.store, c, out);
+                }
+                out.write("]}");
+            }
+        });
+        http.createContext("/ancestors", new Handler() {
+            void answer(Version v, Map<String, String> query, Writer out) throws IOException {
+                int node = node(v, query);
+                int depth = 0;
+                for (int n = v.store.getParent(node); n != OntologyStore.NONE; n = v.store.getParent(n))
+                    depth++;
+                int[] path = new int[depth];
+                for (int n = v.store.getParent(node); n != OntologyStore.NONE; n = v.store.getParent(n))
+                    path[--depth] = n;
+                out.write("{\"version\":" + v.number + ",\"node\":");
+                node(v.store, node, out);
+                out.write(",\"ancestors\":[");
+                for (int i = 0; i < path.length; i++) {
+                    if (i > 0)
+                        out.write(',');
+                    node(v.store, path[i], out);
+                }
+                out.write("]}");
+            }
+        });
+        http.createContext("/search", new Handler() {
+            void answer(Version v, Map<String, String> query, Writer out) throws IOException {
+                String q = query.get("q");
+                if (q == null || q.length() == 0)
+                    throw new BadRequest("No q to search for");
+                q = q.toLowerCase();
+                int limit = number(query, "limit", DEFAULT_LIMIT, 1, MAX_LIMIT);
+                out.write("{\"version\":" + v.number + ",\"nodes\":[");
+                int found = 0;
+                boolean more = false;
+                for (int s = 0; s < v.lower.length && !more; s++) {
+                    if (v.lower[s] == null || v.lower[s].indexOf(q) < 0)
+                        continue;
+                    for (int i = v.start[s]; i < v.start[s + 1]; i++) {
+                        if (found == limit) {
+                            more = true;
+                            break;
+                        }
+                        if (found++ > 0)
+                            out.write(',');
+                        node(v.store, v.nodes[i], out);
+                    }
+                }
+                out.write("],\"more\":" + more + "}");
+            }
+        });
+        http.createContext("/subtree", new Handler() {
+            void answer(Version v, Map<String, String> query, Writer out) throws IOException {
+                int node = node(v, query);
+                int depth = number(query, "depth", Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
+                out.write("{\"version\":" + v.number + ",\"subtree\":");
+                boolean truncated = subtree(v.store, node, depth, out);
+                out.write(",\"truncated\":" + truncated + "}");
+            }
+        });
+    }
+
+    /** Returns the port the server listens on. */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    /** Stops answering, waiting up to delay seconds for requests under way. */
+    public void stop(int delay) {
+        http.stop(delay);
+        pool.shutdown();
+        publisher.shutdown();
+    }
+
+    /**
+     * Makes store the version requests are answered from, once its search
+     * index is built on the calling thread.  The store must not be changed
+     * after this.
+     */
+    public void publish(OntologyStore store) {
+        long number;
+        synchronized (this) {
+            number = ++published;
+        }
+        Version v = new Version(store, number);
+        // Of two publishes that overlap, the later one wins.
+        synchronized (this) {
+            if (version == null || version.number < v.number)
+                version = v;
+        }
+    }
+
+    /** Publishes store on a thread of the server's, in the order they are given. */
+    public void publishLater(final OntologyStore store) {
+        publisher.execute(new Runnable() {
+            public void run() {
+                publish(store);
+            }
+        });
+    }
+
+    /**
+     * Publishes a copy of version, made on a thread of the server's, so a
+     * caller on the EDT need not copy the tree itself.
+     */
+    public void publishLater(final PersistentOntology version) {
+        publisher.execute(new Runnable() {
+            public void run() {
+                publish(version.toStore());
+            }
+        });
+    }
+
+    /** Returns the number of the version being served, or 0 if there is none yet. */
+    public long getVersion() {
+        Version v = version;
+        return v == null ? 0 : v.number;
+    }
+
+    /** A request the client got wrong. */
+    private static class BadRequest extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    /** Answers one kind of GET request from the current version. */
+    private abstract class Handler implements HttpHandler {
+
+        abstract void answer(Version v, Map<String, String> query, Writer out) throws IOException;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Version v = version;
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    error(exchange, 405, "Only GET is served");
+                    return;
+                }
+                if (v == null) {
+                    error(exchange, 503, "No ontology has been published yet");
+                    return;
+                }
+                Map<String, String> query;
+                StringBuilder body = new StringBuilder();
+                try {
+                    query = query(exchange.getRequestURI().getRawQuery());
+                    // Written to a buffer first, so a node not found is
+                    // still a 404; a large subtree is the one case where
+                    // that costs, and it is capped.
+                    answer(v, query, new StringBuilderWriter(body));
+                } catch (BadRequest e) {
+                    error(exchange, 400, e.getMessage());
+                    return;
+                } catch (IllegalArgumentException e) {
+                    error(exchange, 404, e.getMessage());
+                    return;
+                }
+                exchange.getResponseHeaders().set("X-Ontology-Version", Long.toString(v.number));
+                send(exchange, 200, body);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /** Collects what is written in a StringBuilder. */
+    private static class StringBuilderWriter extends Writer {
+
+        private final StringBuilder b;
+
+        StringBuilderWriter(StringBuilder b) {
+            this.b = b;
+        }
+
+        public void write(char[] buf, int off, int len) {
+            b.append(buf, off, len);
+        }
+
+        public void write(String s) {
+            b.append(s);
+        }
+
+        public void write(int c) {
+            b.append((char) c);
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    private static void error(HttpExchange exchange, int code, String message) throws IOException {
+        StringBuilder body = new StringBuilder("{\"error\":");
+        StringBuilderWriter out = new StringBuilderWriter(body);
+        string(message, out);
+        body.append('}');
+        send(exchange, code, body);
+    }
+
+    private static void send(HttpExchange exchange, int code, CharSequence body) throws IOException {
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> query(String raw) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (raw == null)
+            return query;
+        String[] pairs = raw.split("&");
+        for (int i = 0; i < pairs.length; i++) {
+            int eq = pairs[i].indexOf('=');
+            String name = eq < 0 ? pairs[i] : pairs[i].substring(0, eq);
+            String value = eq < 0 ? "" : pairs[i].substring(eq + 1);
+            try {
+                query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequest("Bad query: " + raw);
+            }
+        }
+        return query;
+    }
+
+    private static int number(Map<String, String> query, String name, int def, int min, int max) {
+        String value = query.get(name);
+        if (value == null)
+            return def;
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min && n <= max)
+                return n;
+        } catch (NumberFormatException e) {
+        }
+        throw new BadRequest("Bad " + name + ": " + value);
+    }
+
+    /* The node named by the node parameter, or the root. */
+    private static int node(Version v, Map<String, String> query) {
+        String name = query.get("node");
+        if (name == null || name.length() == 0)
+            name = "/";
+        return EditScript.resolve(v.store, name);
+    }
+
+    private static void node(OntologyStore store, int node, Writer out) throws IOException {
+        out.write("{\"id\":\"" + STCRow.ID_PREFIX + store.getId(node) + "\",\"label\":");
+        string(store.getLabel(node), out);
+        out.write(",\"path\":");
+        string(EditScript.path(store, node), out);
+        out.write(",\"childCount\":" + store.getChildCount(node) + "}");
+    }
+
+    /*
+     * Writes the subtree of top, nested, down to depth levels below it and
+     * up to MAX_SUBTREE nodes, without recursion so a deep tree cannot
+     * overflow the stack.  Returns true if it was cut short by either.
+     */
+    private static boolean subtree(OntologyStore store, int top, int depth, Writer out)
+            throws IOException {
+        int[] stack = new int[64];
+        int[] next = new int[64];
+        int size = 0;
+        int written = 0;
+        boolean truncated = open(store, top, depth > 0, out);
+        stack[size] = top;
+        next[size++] = depth > 0 ? store.getFirstChild(top) : OntologyStore.NONE;
+        written++;
+        while (size > 0) {
+            int child = next[size - 1];
+            if (child == OntologyStore.NONE) {
+                out.write(size > depth ? "}" : "]}");
+                size--;
+                continue;
+            }
+            if (written == MAX_SUBTREE) {
+                truncated = true;
+                next[size - 1] = OntologyStore.NONE;
+                continue;
+            }
+            next[size - 1] = store.getNextSibling(child);
+            if (child != store.getFirstChild(stack[size - 1]))
+                out.write(',');
+            if (size == stack.length) {
+                int[] grown = new int[size << 1];
+                System.arraycopy(stack, 0, grown, 0, size);
+                stack = grown;
+                grown = new int[size << 1];
+                System.arraycopy(next, 0, grown, 0, size);
+                next = grown;
+            }
+            boolean expand = size < depth;
+            if (open(store, child, expand, out))
+                truncated = true;
+            stack[size] = child;
+            next[size++] = expand ? store.getFirstChild(child) : OntologyStore.NONE;
+            written++;
+        }
+        return truncated;
+    }
+
+    /*
+     * Writes node up to its list of children, or up to its end if they are
+     * not to be expanded, and returns true if that leaves any out.
+     */
+    private static boolean open(OntologyStore store, int node, boolean expand, Writer out)
+            throws IOException {
+        int count = store.getChildCount(node);
+        out.write("{\"id\":\"" + STCRow.ID_PREFIX + store.getId(node) + "\",\"label\":");
+        string(store.getLabel(node), out);
+        out.write(",\"childCount\":" + count);
+        if (expand)
+            out.write(",\"children\":[");
+        return !expand && count > 0;
+    }
+
+    private static void string(String s, Writer out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /* The nodes in the tree of store, parents first. */
+    private static int[] treeOrder(OntologyStore store) {
+        int[] order = new int[store.getNodeCount()];
+        int count = 0;
+        if (store.getRoot() == OntologyStore.NONE)
+            return new int[0];
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = store.getRoot();
+        while (top > 0) {
+            int node = stack[--top];
+            if (count == order.length) {
+                int[] grown = new int[order.length << 1 | 1];
+                System.arraycopy(order, 0, grown, 0, count);
+                order = grown;
+            }
+            order[count++] = node;
+            for (int c = store.getFirstChild(node); c != OntologyStore.NONE;
+                    c = store.getNextSibling(c)) {
+                if (top == stack.length) {
+                    int[] grown = new int[top << 1];
+                    System.arraycopy(stack, 0, grown, 0, top);
+                    stack = grown;
+                }
+                stack[top++] = c;
+            }
+        }
+        if (count == order.length)
+            return order;
+        int[] trimmed = new int[count];
+        System.arraycopy(order, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        return new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + ++count);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /** Reads file and the edits in its journal into a store. */
+    static OntologyStore load(File file) throws IOException {
+        OntologyStore store = OntologyStore.read(file.toURI().toURL());
+        EditJournal.replayCurrent(file, new StoreReplayer(store));
+        return store;
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int threads = 4;
+        int a = 0;
+        try {
+            for (; a < args.length && args[a].startsWith("-"); a++) {
+                if (args[a].equals("-p") && a + 1 < args.length)
+                    port = Integer.parseInt(args[++a]);
+                else if (args[a].equals("-t") && a + 1 < args.length)
+                    threads = Integer.parseInt(args[++a]);
+                else
+                    usage();
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (a != args.length - 1)
+            usage();
+
+        final File file = new File(args[a]).getAbsoluteFile();
+        final File journal = new File(file.getPath() + EditJournal.SUFFIX);
+        final OntologyServer server;
+        try {
+            server = new OntologyServer(port, threads);
+            server.publish(load(file));
+        } catch (IOException e) {
+            System.err.println(file + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        server.start();
+        System.out.println("Serving " + file + " on port " + server.getPort());
+
+        // Reloads when the file is saved or the journal grows.
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor();
+        checker.scheduleWithFixedDelay(new Runnable() {
+            private String seen = stamp();
+
+            public void run() {
+                String now = stamp();
+                if (now.equals(seen))
+                    return;
+                try {
+                    server.publish(load(file));
+                    seen = now;
+                    System.out.println("Reloaded " + file + ", version " + server.getVersion());
+                } catch (IOException e) {
+                    System.err.println(file + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println(file + ": " + e);
+                }
+            }
+
+            private String stamp() {
+                return file.length() + " " + file.lastModified() + " "
+                        + journal.length() + " " + journal.lastModified();
+            }
+        }, CHECK_SECONDS, CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java " + OntologyServer.class.getName()
+                + " [-p port] [-t threads] file.stc");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,239 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Loads an {@link OntologyServer} from local clients and reports the
+ * throughput and the latency of each kind of request:
+ * <pre>
+ * java org.sdsc.spatial.ontology.OntologyServerBench [-c clients] [-s threads] [-t seconds]
+ *     [-e publishes] file.stc|nodes
+ * </pre>
+ * The server runs in this JVM on a free port with the given number of
+ * threads, 4 by default, serving the file, or a tree of that many nodes
+ * from {@link OntologyGenerator}.  Each client, 8 by default, sends one
+ * request at a time for as long as given, 10 seconds by default: a mix of
+ * children, ancestors, node, search and two level subtree requests for
+ * random nodes.  The first fifth of the time warms up and is not counted.
+ * <p>
+ * With -e, a writer meanwhile edits a copy of the tree and publishes a new
+ * version that many times a second, as an editor would, to show what
+ * publishing does to the readers' latency.
+ */
+public class OntologyServerBench {
+
+    private static final String[] REQUESTS = { "children", "ancestors", "node", "search", "subtree" };
+
+    /* Out of 100, how often each request is sent. */
+    private static final int[] WEIGHTS = { 35, 20, 15, 20, 10 };
+
+    private final OntologyStore store;
+    private final int[] ids;
+    private volatile long measureFrom;
+    private volatile long until;
+
+    /** A client's times, by request, and its count of answers other than 200. */
+    private static class Results {
+
+        final Latencies[] times = new Latencies[REQUESTS.length];
+        int failed;
+
+        Results() {
+            for (int i = 0; i < times.length; i++)
+                times[i] = new Latencies();
+        }
+    }
+
+    OntologyServerBench(OntologyStore store) {
+        this.store = store;
+        List<Integer> list = new ArrayList<Integer>();
+        for (int node = 0; node < store.getSlotCount(); node++) {
+            if (store.isInTree(node))
+                list.add(Integer.valueOf(store.getId(node)));
+        }
+        ids = new int[list.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = list.get(i).intValue();
+    }
+
+    /* Sends requests until time is up. */
+    private void client(String base, long seed, Results results) throws IOException {
+        Random random = new Random(seed);
+        byte[] buf = new byte[1 << 16];
+        while (true) {
+            int pick = random.nextInt(100);
+            int kind = 0;
+            while (pick >= WEIGHTS[kind])
+                pick -= WEIGHTS[kind++];
+            String id = STCRow.ID_PREFIX + ids[random.nextInt(ids.length)];
+            String query;
+            if (kind == 3) {
+                String label = store.getLabel(store.getNode(ids[random.nextInt(ids.length)]));
+                int from = label.length() <= 3 ? 0 : random.nextInt(label.length() - 3);
+                query = "q=" + URLEncoder.encode(label.substring(from, Math.min(label.length(), from + 4)), "UTF-8");
+            } else if (kind == 4) {
+                query = "node=" + id + "&depth=2";
+            } else {
+                query = "node=" + id;
+            }
+            long start = System.nanoTime();
+            if (start >= until)
+                return;
+            HttpURLConnection c = (HttpURLConnection) new URL(base + REQUESTS[kind] + "?" + query).openConnection();
+            int code = c.getResponseCode();
+            InputStream in = code < 400 ? c.getInputStream() : c.getErrorStream();
+            if (in != null) {
+                while (in.read(buf) >= 0)
+                    ;
+                in.close();
+            }
+            if (start < measureFrom)
+                continue;
+            results.times[kind].add(System.nanoTime() - start);
+            if (code != 200)
+                results.failed++;
+        }
+    }
+
+    /* Edits a copy of the tree and publishes it, perSecond times a second, until time is up. */
+    private void writer(OntologyServer server, double perSecond, Latencies times)
+            throws IOException, InterruptedException {
+        Random random = new Random(2);
+        OntologyStore working = copy(store);
+        StoreReplayer edits = new StoreReplayer(working);
+        long period = (long) (1e9 / perSecond);
+        for (long next = System.nanoTime(); next < until; next += period) {
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            int id = ids[random.nextInt(ids.length)];
+            edits.rename(id, "Renamed " + next);
+            edits.insert(id, 0, working.getMaxId() + 1, "New " + next, null);
+            long start = System.nanoTime();
+            server.publish(copy(working));
+            if (start >= measureFrom)
+                times.add(System.nanoTime() - start);
+        }
+    }
+
+    /* A copy of store, by way of its snapshot form. */
+    private static OntologyStore copy(OntologyStore store) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new OntologySnapshot(null, 0, 0, null, store).write(bytes);
+        return OntologySnapshot.read(new ByteArrayInputStream(bytes.toByteArray())).getStore();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 8;
+        int threads = 4;
+        double seconds = 10;
+        double publishes = 0;
+        int a = 0;
+        try {
+            for (; a < args.length && args[a].startsWith("-"); a++) {
+                if (args[a].equals("-c") && a + 1 < args.length)
+                    clients = Math.max(1, Integer.parseInt(args[++a]));
+                else if (args[a].equals("-s") && a + 1 < args.length)
+                    threads = Math.max(1, Integer.parseInt(args[++a]));
+                else if (args[a].equals("-t") && a + 1 < args.length)
+                    seconds = Double.parseDouble(args[++a]);
+                else if (args[a].equals("-e") && a + 1 < args.length)
+                    publishes = Double.parseDouble(args[++a]);
+                else
+                    usage();
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (a != args.length - 1)
+            usage();
+
+        OntologyStore store = args[a].matches("\\d+")
+            ? new OntologyGenerator(Integer.parseInt(args[a])).generate()
+            : OntologyStore.read(new File(args[a]).toURI().toURL());
+        final OntologyServerBench bench = new OntologyServerBench(store);
+        final OntologyServer server = new OntologyServer(0, threads);
+        server.publish(store);
+        server.start();
+        final String base = "http://localhost:" + server.getPort() + "/";
+        System.out.println(store.getNodeCount() + " nodes, " + clients + " clients, "
+                + threads + " server threads" + (publishes > 0 ? ", " + publishes + " publishes/s" : ""));
+
+        long now = System.nanoTime();
+        bench.measureFrom = now + (long) (seconds * 0.2e9);
+        bench.until = now + (long) (seconds * 1e9);
+        final Results[] results = new Results[clients];
+        final Throwable[] failure = new Throwable[1];
+        List<Thread> running = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            final Results r = results[i] = new Results();
+            final long seed = i + 1;
+            running.add(new Thread() {
+                public void run() {
+                    try {
+                        bench.client(base, seed, r);
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+        }
+        final Latencies publishTimes = new Latencies();
+        if (publishes > 0) {
+            final double rate = publishes;
+            running.add(new Thread() {
+                public void run() {
+                    try {
+                        bench.writer(server, rate, publishTimes);
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+        }
+        for (Thread t : running)
+            t.start();
+        for (Thread t : running)
+            t.join();
+        server.stop(0);
+        if (failure[0] != null)
+            throw new IOException("Client failed: " + failure[0], failure[0]);
+
+        double measured = seconds * 0.8;
+        Latencies all = new Latencies();
+        int failed = 0;
+        System.out.println(String.format("%-10s %9s %9s", "request", "count", "req/s") + Latencies.HEADINGS);
+        for (int k = 0; k < REQUESTS.length; k++) {
+            Latencies times = new Latencies();
+            for (int i = 0; i < clients; i++)
+                times.addAll(results[i].times[k]);
+            all.addAll(times);
+            System.out.println(String.format("%-10s %9d %9.0f", REQUESTS[k], times.count(),
+                    times.count() / measured) + times.format());
+        }
+        for (int i = 0; i < clients; i++)
+            failed += results[i].failed;
+        System.out.println(String.format("%-10s %9d %9.0f", "all", all.count(), all.count() / measured)
+                + all.format());
+        if (publishes > 0)
+            System.out.println(String.format("%-10s %9d %9.1f", "publish", publishTimes.count(),
+                    publishTimes.count() / measured) + publishTimes.format());
+        System.out.println(failed + " answers other than 200");
+    }
+
+    private static void usage() {
+        System.err.println("usage: java " + OntologyServerBench.class.getName()
+                + " [-c clients] [-s threads] [-t seconds] [-e publishes] file.stc|nodes");
+        System.exit(2);
+    }
+}
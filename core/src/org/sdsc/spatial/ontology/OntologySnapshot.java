@@ -0,0 +1,135 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An {@link OntologyStore} in binary form, together with a description of
+ * the STC file it was read from.
+ * <p>
+ * The layout, all big endian:
+ * <pre>
+ *   int     magic "STCS"
+ *   int     format version
+ *   string  source path
+ *   long    source size
+ *   long    source modification time
+ *   string  source content hash
+ *   ...     the store: header, string table, structure arrays, columns
+ *   long    CRC32 of everything above
+ * </pre>
+ * A string is an int byte count, or -1 for null, followed by that many
+ * bytes of UTF-8.  Reading one back costs a few int reads per node and no
+ * text parsing.  A snapshot with the wrong magic or version, a bad checksum
+ * or an inconsistent structure is refused with an IOException.
+ */
+public class OntologySnapshot {
+
+    private static final int MAGIC = 0x53544353;
+
+    /** Bumped whenever the layout changes; older snapshots are refused. */
+    public static final int FORMAT_VERSION = 1;
+
+    private final String sourcePath;
+    private final long sourceSize;
+    private final long sourceModified;
+    private final String sourceHash;
+    private final OntologyStore store;
+
+    public OntologySnapshot(String sourcePath, long sourceSize,
+            long sourceModified, String sourceHash, OntologyStore store) {
+        this.sourcePath = sourcePath;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+        this.sourceHash = sourceHash;
+        this.store = store;
+    }
+
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getSourceModified() {
+        return sourceModified;
+    }
+
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    /** Returns the store, or null for a snapshot read with readHeader. */
+    public OntologyStore getStore() {
+        return store;
+    }
+
+    /** Writes the snapshot to out, which is left open. */
+    public void write(OutputStream out) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(out, crc), 1 << 16));
+        writeHeader(data);
+        store.writeSnapshot(data);
+        data.flush();
+        DataOutputStream trailer = new DataOutputStream(out);
+        trailer.writeLong(crc.getValue());
+        trailer.flush();
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        OntologyStore.writeString(out, sourcePath);
+        out.writeLong(sourceSize);
+        out.writeLong(sourceModified);
+        OntologyStore.writeString(out, sourceHash);
+    }
+
+    /** Reads a whole snapshot from in, checking its checksum. */
+    public static OntologySnapshot read(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        DataInputStream data = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(in, 1 << 16), crc));
+        OntologySnapshot header = readSource(data);
+        OntologyStore store = OntologyStore.readSnapshot(data);
+        long expected = crc.getValue();
+        if (data.readLong() != expected)
+            throw new IOException("Snapshot checksum does not match");
+        return new OntologySnapshot(header.sourcePath, header.sourceSize,
+                header.sourceModified, header.sourceHash, store);
+    }
+
+    /**
+     * Reads just the description of the source file, so that a stale
+     * snapshot can be turned down without reading the rest.
+     */
+    public static OntologySnapshot readHeader(InputStream in) throws IOException {
+        return readSource(new DataInputStream(in));
+    }
+
+    private static OntologySnapshot readSource(DataInputStream in)
+            throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an ontology snapshot");
+        int version = in.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Snapshot format " + version
+                    + ", expected " + FORMAT_VERSION);
+        String path = OntologyStore.readString(in);
+        long size = in.readLong();
+        long modified = in.readLong();
+        String hash = OntologyStore.readString(in);
+        return new OntologySnapshot(path, size, modified, hash, null);
+    }
+}
@@ -0,0 +1,696 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An ontology held in columns of ints rather than one object per node.
+ * <p>
+ * A node is an int, its slot.  Its id, parent, first child, last child,
+ * next sibling, child count and label are entries in parallel int arrays;
+ * labels are indexes into a {@link StringPool}, so a label is stored once
+ * however many nodes carry it.  The STC columns after the label are kept per
+ * column in {@link SparseColumn}s: most nodes of a file share the same value
+ * in a column (an empty field, a 0, a copy of the label), and only the nodes
+ * that differ take any space.  The columns are written back exactly as they
+ * were read.
+ * <p>
+ * The structure costs 28 bytes a node and the rest is label text, so a file
+ * whose labels repeat gets close to that; the editor's OntologyStoreModel
+ * shows a store in a JTree or StarTree.
+ * <p>
+ * Slots are never reused.  A removed node keeps its slot and its subtree,
+ * detached, but is no longer found by id.  The store is not thread safe,
+ * but one that is no longer changed can be read from any number of threads
+ * by every method except {@link #getChild(int, int)}, which keeps a cursor.
+ */
+public class OntologyStore {
+
+    /** The slot returned when there is no such node. */
+    public static final int NONE = -1;
+
+    /* A column value meaning "the label, escaped". */
+    private static final int SAME_AS_LABEL = -2;
+
+    /* No label or value comes near this; a longer string is corruption. */
+    private static final int MAX_STRING_BYTES = 1 << 24;
+
+    private int size;
+    private int root = NONE;
+    private int[] ids;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    private int[] childCount;
+    private int[] labels;
+
+    /* Slot + 1 for each id, so that 0 means no such node. */
+    private int[] slotsById = new int[1024];
+    private int maxId = -1;
+    private int nodeCount;
+
+    private final StringPool strings = new StringPool();
+
+    private String version = "2.0";
+    private String encoding = "UTF-8";
+    private final Map<String, String> properties =
+        new LinkedHashMap<String, String>();
+
+    /* The number of fields in each node's STC row, 0 if it had none. */
+    private final SparseColumn widths = new SparseColumn(0);
+    /* Columns from STCTreeHandler.COLUMN_ATTRIBUTES on, as pool indexes. */
+    private SparseColumn[] columns = new SparseColumn[0];
+
+    /* The last child found by getChild, so that walking children is linear. */
+    private int cursorParent = NONE;
+    private int cursorIndex;
+    private int cursorChild;
+
+    public OntologyStore() {
+        this(1024);
+    }
+
+    public OntologyStore(int capacity) {
+        capacity = Math.max(capacity, 16);
+        ids = new int[capacity];
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        lastChild = new int[capacity];
+        nextSibling = new int[capacity];
+        childCount = new int[capacity];
+        labels = new int[capacity];
+    }
+
+    /** Reads the STC file at url into a new store. */
+    public static OntologyStore read(URL url) throws IOException {
+        Builder builder = new Builder();
+        new STCParser().parse(url, builder);
+        OntologyStore store = builder.store;
+        store.copyHeader(builder);
+        store.optimize();
+        return store;
+    }
+
+    /* Takes the STC header of the file handler has read. */
+    void copyHeader(STCTreeHandler handler) {
+        version = handler.getVersion();
+        encoding = handler.getEncoding();
+        properties.clear();
+        properties.putAll(handler.getProperties());
+    }
+
+    /* ---- structure ---- */
+
+    /** Returns the root slot, or {@link #NONE} if the store is empty. */
+    public int getRoot() {
+        return root;
+    }
+
+    /** Makes node the root. */
+    public void setRoot(int node) {
+        root = node;
+        cursorParent = NONE;
+    }
+
+    /** Returns the number of nodes that can be found by id. */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /** Returns the number of slots used, removed nodes included. */
+    public int getSlotCount() {
+        return size;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+
+    /** Returns the index-th child of node, or {@link #NONE}. */
+    public int getChild(int node, int index) {
+        if (index < 0 || index >= childCount[node])
+            return NONE;
+        int k = 0;
+        int c = firstChild[node];
+        if (cursorParent == node && cursorIndex <= index) {
+            k = cursorIndex;
+            c = cursorChild;
+        }
+        for (; k < index; k++)
+            c = nextSibling[c];
+        cursorParent = node;
+        cursorIndex = index;
+        cursorChild = c;
+        return c;
+    }
+
+    /** Returns the position of child among node's children, or -1. */
+    public int getIndexOfChild(int node, int child) {
+        if (child < 0 || child >= size || parent[child] != node)
+            return -1;
+        int k = 0;
+        for (int c = firstChild[node]; c != NONE; c = nextSibling[c], k++) {
+            if (c == child)
+                return k;
+        }
+        return -1;
+    }
+
+    /** Returns true if node is descendant or one of its ancestors. */
+    public boolean isAncestor(int node, int descendant) {
+        for (int n = descendant; n != NONE; n = parent[n]) {
+            if (n == node)
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns true if node is the root or below it. */
+    public boolean isInTree(int node) {
+        return root != NONE && isAncestor(root, node);
+    }
+
+    /* ---- ids ---- */
+
+    /** Returns the n of node's _ST_n id. */
+    public int getId(int node) {
+        return ids[node];
+    }
+
+    /** Returns the node with the given id, or {@link #NONE}. */
+    public int getNode(int id) {
+        if (id < 0 || id >= slotsById.length)
+            return NONE;
+        return slotsById[id] - 1;
+    }
+
+    /** Returns the highest id given out, or -1. */
+    public int getMaxId() {
+        return maxId;
+    }
+
+    private void index(int node, int id) {
+        if (id >= slotsById.length) {
+            int[] grown = new int[Math.max(id + 1, slotsById.length << 1)];
+            System.arraycopy(slotsById, 0, grown, 0, slotsById.length);
+            slotsById = grown;
+        }
+        if (slotsById[id] == 0)
+            nodeCount++;
+        slotsById[id] = node + 1;
+        if (id > maxId)
+            maxId = id;
+    }
+
+    private void unindex(int node) {
+        int id = ids[node];
+        if (id >= 0 && getNode(id) == node) {
+            slotsById[id] = 0;
+            nodeCount--;
+        }
+    }
+
+    /* Indexes or unindexes node and everything below it. */
+    private void indexSubtree(int node, boolean add) {
+        int n = node;
+        for (;;) {
+            if (add) {
+                if (ids[n] >= 0)
+                    index(n, ids[n]);
+            } else {
+                unindex(n);
+            }
+            if (firstChild[n] != NONE) {
+                n = firstChild[n];
+                continue;
+            }
+            while (n != node && nextSibling[n] == NONE)
+                n = parent[n];
+            if (n == node)
+                return;
+            n = nextSibling[n];
+        }
+    }
+
+    /* ---- content ---- */
+
+    public String getLabel(int node) {
+        return strings.get(labels[node]);
+    }
+
+    public void setLabel(int node, String label) {
+        labels[node] = strings.add(label == null ? "" : label);
+    }
+
+    /**
+     * Returns STC column of node exactly as it was written, for columns from
+     * {@link STCTreeHandler#COLUMN_ATTRIBUTES} on, or null if node's row
+     * did not have that column.
+     */
+    public String getAttribute(int node, int column) {
+        int c = column - STCTreeHandler.COLUMN_ATTRIBUTES;
+        if (c < 0 || column >= widths.get(node))
+            return null;
+        int v = c < columns.length ? columns[c].get(node) : 0;
+        return v == SAME_AS_LABEL ? STCRow.escape(getLabel(node)) : strings.get(v);
+    }
+
+    /**
+     * Sets STC column of node to value, which must already be escaped.  The
+     * row is widened with empty columns if need be.
+     */
+    public void setAttribute(int node, int column, String value) {
+        int c = column - STCTreeHandler.COLUMN_ATTRIBUTES;
+        if (c < 0)
+            throw new IllegalArgumentException("Column " + column + " is not an attribute");
+        int width = widths.get(node);
+        if (column >= width) {
+            for (int k = Math.max(width, STCTreeHandler.COLUMN_ATTRIBUTES); k < column; k++)
+                column(k - STCTreeHandler.COLUMN_ATTRIBUTES).set(node, 0);
+            widths.set(node, column + 1);
+        }
+        column(c).set(node, strings.add(value == null ? "" : value));
+    }
+
+    /** Returns the number of STC columns node's row had after the label. */
+    public int getAttributeCount(int node) {
+        return Math.max(widths.get(node) - STCTreeHandler.COLUMN_ATTRIBUTES, 0);
+    }
+
+    /**
+     * Returns the STC columns that followed node's label, still escaped and
+     * comma separated, or null if it had none; as the editor's
+     * OntologyNode.getAttributes() does.
+     */
+    public String getAttributes(int node) {
+        int width = widths.get(node);
+        if (width <= STCTreeHandler.COLUMN_ATTRIBUTES)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (int k = STCTreeHandler.COLUMN_ATTRIBUTES; k < width; k++) {
+            if (k > STCTreeHandler.COLUMN_ATTRIBUTES)
+                sb.append(',');
+            sb.append(getAttribute(node, k));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replaces node's columns after the label with attributes, escaped and
+     * comma separated as {@link #getAttributes(int)} returns them, or with
+     * none if attributes is null.
+     */
+    public void setAttributes(int node, String attributes) {
+        int width = widths.get(node);
+        for (int k = STCTreeHandler.COLUMN_ATTRIBUTES; k < width; k++)
+            column(k - STCTreeHandler.COLUMN_ATTRIBUTES).set(node, 0);
+        if (attributes == null) {
+            widths.set(node, 0);
+            return;
+        }
+        String label = STCRow.escape(getLabel(node));
+        int column = STCTreeHandler.COLUMN_ATTRIBUTES;
+        int start = 0;
+        for (;;) {
+            int comma = attributes.indexOf(',', start);
+            String value = comma < 0 ? attributes.substring(start)
+                : attributes.substring(start, comma);
+            int v = value.equals(label) ? SAME_AS_LABEL : strings.add(value);
+            column(column - STCTreeHandler.COLUMN_ATTRIBUTES).set(node, v);
+            column++;
+            if (comma < 0)
+                break;
+            start = comma + 1;
+        }
+        widths.set(node, column);
+    }
+
+    private SparseColumn column(int c) {
+        if (c >= columns.length) {
+            SparseColumn[] grown = new SparseColumn[c + 1];
+            System.arraycopy(columns, 0, grown, 0, columns.length);
+            for (int k = columns.length; k <= c; k++)
+                grown[k] = new SparseColumn(0);
+            columns = grown;
+        }
+        return columns[c];
+    }
+
+    /** Returns the version from the STC= header of the file read. */
+    public String getVersion() {
+        return version;
+    }
+
+    /** Returns the encoding from the STC= header, or null if none was given. */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the STC header properties (caption, layoutprops and so on), in
+     * file order.  The map can be changed.
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /** Returns the pool holding the labels and attribute values. */
+    public StringPool getStrings() {
+        return strings;
+    }
+
+    /* ---- editing ---- */
+
+    /** Creates a detached node with a fresh id. */
+    public int createNode(String label) {
+        return addNode(maxId + 1, label);
+    }
+
+    /**
+     * Creates a detached node with the given id, or with no id yet if id is
+     * negative.  The id must not belong to another node.
+     */
+    public int addNode(int id, String label) {
+        int node = size;
+        if (node == ids.length)
+            grow(node << 1);
+        size++;
+        ids[node] = id;
+        parent[node] = firstChild[node] = lastChild[node] = nextSibling[node] = NONE;
+        childCount[node] = 0;
+        // Once optimized the most common width is the default; a new node has no columns.
+        widths.set(node, 0);
+        setLabel(node, label);
+        if (id >= 0)
+            index(node, id);
+        return node;
+    }
+
+    /* Creates a detached node from a row of an STC file. */
+    int addNode(int id, STCRow data) {
+        int node = addNode(id, data.get(STCTreeHandler.COLUMN_LABEL));
+        int width = data.size();
+        if (width <= STCTreeHandler.COLUMN_ATTRIBUTES)
+            return node;
+        widths.set(node, width);
+        String label = data.getRaw(STCTreeHandler.COLUMN_LABEL);
+        for (int k = STCTreeHandler.COLUMN_ATTRIBUTES; k < width; k++) {
+            String value = data.getRaw(k);
+            int v = value.equals(label) ? SAME_AS_LABEL : strings.add(value);
+            column(k - STCTreeHandler.COLUMN_ATTRIBUTES).set(node, v);
+        }
+        return node;
+    }
+
+    /** Gives node an id, for one created without. */
+    public void setId(int node, int id) {
+        unindex(node);
+        ids[node] = id;
+        if (id >= 0)
+            index(node, id);
+    }
+
+    /** Makes child, which must be detached, the last child of node. */
+    public void addChild(int node, int child) {
+        insertChild(node, child, childCount[node]);
+    }
+
+    /** Makes child, which must be detached, the index-th child of node. */
+    public void insertChild(int node, int child, int index) {
+        if (parent[child] != NONE || child == root)
+            throw new IllegalArgumentException("Node " + child + " is already attached");
+        if (firstChild[child] != NONE && isAncestor(child, node))
+            throw new IllegalArgumentException("Node " + child + " is above " + node);
+        if (index < 0 || index > childCount[node])
+            throw new IndexOutOfBoundsException("Index " + index + " of " + childCount[node]);
+        cursorParent = NONE;
+        parent[child] = node;
+        if (index == childCount[node]) {
+            nextSibling[child] = NONE;
+            if (lastChild[node] == NONE)
+                firstChild[node] = child;
+            else
+                nextSibling[lastChild[node]] = child;
+            lastChild[node] = child;
+        } else if (index == 0) {
+            nextSibling[child] = firstChild[node];
+            firstChild[node] = child;
+        } else {
+            int prev = getChild(node, index - 1);
+            nextSibling[child] = nextSibling[prev];
+            nextSibling[prev] = child;
+        }
+        childCount[node]++;
+        if (getNode(ids[child]) != child)
+            indexSubtree(child, true);
+    }
+
+    /** Detaches node, and everything below it, from its parent. */
+    public void remove(int node) {
+        int p = parent[node];
+        if (p == NONE)
+            return;
+        cursorParent = NONE;
+        int prev = NONE;
+        for (int c = firstChild[p]; c != node; c = nextSibling[c])
+            prev = c;
+        if (prev == NONE)
+            firstChild[p] = nextSibling[node];
+        else
+            nextSibling[prev] = nextSibling[node];
+        if (lastChild[p] == node)
+            lastChild[p] = prev;
+        childCount[p]--;
+        parent[node] = NONE;
+        nextSibling[node] = NONE;
+        indexSubtree(node, false);
+    }
+
+    /**
+     * Picks the most common value of each attribute column as its default,
+     * so that only the exceptions take space.  Worth calling after a bulk
+     * load.
+     */
+    public void optimize() {
+        widths.optimize(size);
+        for (int c = 0; c < columns.length; c++)
+            columns[c].optimize(size);
+    }
+
+    /**
+     * Returns the number of (node, value) pairs held apart from the column
+     * defaults, a measure of how sparse the attributes are.
+     */
+    public int getAttributeEntryCount() {
+        int n = widths.size();
+        for (int c = 0; c < columns.length; c++)
+            n += columns[c].size();
+        return n;
+    }
+
+    /*
+     * Snapshot support for OntologySnapshot.  Only the arrays that cannot be
+     * worked out again are written: last child and child count are rebuilt
+     * from the sibling lists, and the id index from the ids.
+     */
+
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        writeString(out, version);
+        writeString(out, encoding);
+        out.writeInt(properties.size());
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        out.writeInt(strings.size());
+        for (int i = 0; i < strings.size(); i++)
+            writeString(out, strings.get(i));
+        out.writeInt(size);
+        out.writeInt(root);
+        writeInts(out, ids, size);
+        writeInts(out, parent, size);
+        writeInts(out, firstChild, size);
+        writeInts(out, nextSibling, size);
+        writeInts(out, labels, size);
+        widths.write(out);
+        out.writeInt(columns.length);
+        for (int c = 0; c < columns.length; c++)
+            columns[c].write(out);
+    }
+
+    static OntologyStore readSnapshot(DataInputStream in) throws IOException {
+        OntologyStore store;
+        String version = readString(in);
+        String encoding = readString(in);
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (int n = readCount(in); n > 0; n--)
+            properties.put(readString(in), readString(in));
+        String[] strings = new String[readCount(in)];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = readString(in);
+        int stringCount = strings.length;
+        int size = readCount(in);
+        store = new OntologyStore(size);
+        store.version = version;
+        store.encoding = encoding;
+        store.properties.putAll(properties);
+        for (int i = 0; i < stringCount; i++) {
+            if (strings[i] == null || store.strings.add(strings[i]) != i)
+                throw new IOException("Bad string " + i + " in snapshot");
+        }
+        store.size = size;
+        store.root = in.readInt();
+        readInts(in, store.ids, size);
+        readInts(in, store.parent, size);
+        readInts(in, store.firstChild, size);
+        readInts(in, store.nextSibling, size);
+        readInts(in, store.labels, size);
+        store.widths.read(in);
+        int columnCount = readCount(in);
+        store.columns = new SparseColumn[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            store.columns[c] = new SparseColumn(0);
+            store.columns[c].read(in);
+        }
+
+        for (int n = 0; n < size; n++) {
+            store.lastChild[n] = OntologyStore.NONE;
+            check(store.parent[n], size);
+            check(store.firstChild[n], size);
+            check(store.nextSibling[n], size);
+            if (store.labels[n] < 0 || store.labels[n] >= stringCount)
+                throw new IOException("Bad label " + store.labels[n] + " in snapshot");
+        }
+        for (int n = 0; n < size; n++) {
+            int count = 0;
+            int last = NONE;
+            for (int c = store.firstChild[n]; c != NONE; c = store.nextSibling[c]) {
+                if (++count > size || store.parent[c] != n)
+                    throw new IOException("Bad child list of " + n + " in snapshot");
+                last = c;
+            }
+            store.childCount[n] = count;
+            store.lastChild[n] = last;
+        }
+        if (store.root != NONE) {
+            check(store.root, size);
+            if (store.parent[store.root] != NONE)
+                throw new IOException("Root has a parent in snapshot");
+            store.indexSubtree(store.root, true);
+        }
+        return store;
+    }
+
+    private static void check(int node, int size) throws IOException {
+        if (node < NONE || node >= size)
+            throw new IOException("Bad node " + node + " in snapshot");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0)
+            throw new IOException("Bad count " + n + " in snapshot");
+        return n;
+    }
+
+    /* Strings are written as a byte count and UTF-8; -1 for null. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0)
+            return null;
+        if (n > MAX_STRING_BYTES)
+            throw new IOException("String of " + n + " bytes in snapshot");
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /* Ints go through a byte buffer in blocks; one readInt per int is slow. */
+    private static final int INT_BLOCK = 4096;
+
+    static void writeInts(DataOutputStream out, int[] a, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(n, INT_BLOCK) << 2);
+        for (int i = 0; i < n; i += INT_BLOCK) {
+            int k = Math.min(INT_BLOCK, n - i);
+            buf.clear();
+            buf.asIntBuffer().put(a, i, k);
+            out.write(buf.array(), 0, k << 2);
+        }
+    }
+
+    static void readInts(DataInputStream in, int[] a, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(n, INT_BLOCK) << 2);
+        for (int i = 0; i < n; i += INT_BLOCK) {
+            int k = Math.min(INT_BLOCK, n - i);
+            in.readFully(buf.array(), 0, k << 2);
+            buf.clear();
+            buf.asIntBuffer().get(a, i, k);
+        }
+    }
+
+    private void grow(int capacity) {
+        ids = grow(ids, capacity);
+        parent = grow(parent, capacity);
+        firstChild = grow(firstChild, capacity);
+        lastChild = grow(lastChild, capacity);
+        nextSibling = grow(nextSibling, capacity);
+        childCount = grow(childCount, capacity);
+        labels = grow(labels, capacity);
+    }
+
+    private static int[] grow(int[] a, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+
+    /** Fills a store from an STC file; node slots are the file's rows. */
+    private static class Builder extends STCTreeHandler {
+
+        final OntologyStore store = new OntologyStore();
+
+        protected void createNode(int row, int id, STCRow data) {
+            store.addNode(id < 0 ? -1 : id, data);
+        }
+
+        protected void renumber(int row, int id) {
+            store.setId(row, id);
+        }
+
+        protected void startTree(int rootRow) {
+            store.setRoot(rootRow);
+        }
+
+        protected void attach(int parentRow, int childRow) {
+            store.addChild(parentRow, childRow);
+        }
+    }
+}
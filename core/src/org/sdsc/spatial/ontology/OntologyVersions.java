@@ -0,0 +1,70 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * The latest version of a tree edited as a series of
+ * {@link PersistentOntology}s, for one thread to edit and any to read.
+ * <p>
+ * The writer applies each edit to the current version and puts the result
+ * in its place; a reader takes the current version once, with no lock, and
+ * reads that for as long as it likes, unaffected by edits made after.  The
+ * edits come as an {@link EditJournal} replays them, so a journal can be
+ * replayed straight onto one.
+ */
+public class OntologyVersions implements EditJournal.Target {
+
+    private volatile PersistentOntology current;
+    private volatile long number;
+
+    public OntologyVersions(PersistentOntology first) {
+        current = first;
+    }
+
+    /** Returns the latest version, which no later edit will change. */
+    public PersistentOntology getCurrent() {
+        return current;
+    }
+
+    /**
+     * Returns how many times the version has been replaced, which a reader
+     * can keep to tell cheaply whether there is a newer one since.
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    /** Makes version the latest.  Only the writer may call this. */
+    public void setCurrent(PersistentOntology version) {
+        if (version == current)
+            return;
+        current = version;
+        number++;
+    }
+
+    public boolean insert(int parentId, int index, int id, String label,
+            String attributes) {
+        return apply(current.insert(parentId, index, id, label, attributes));
+    }
+
+    public boolean remove(int id) {
+        return apply(current.remove(id));
+    }
+
+    public boolean move(int id, int parentId, int index) {
+        return apply(current.move(id, parentId, index));
+    }
+
+    public boolean rename(int id, String label) {
+        PersistentOntology v = current;
+        if (!v.contains(id))
+            return false;
+        setCurrent(v.rename(id, label));
+        return true;
+    }
+
+    private boolean apply(PersistentOntology next) {
+        if (next == current)
+            return false;
+        setCurrent(next);
+        return true;
+    }
+}
@@ -0,0 +1,483 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * An immutable tree of nodes known by their ids, each edit of which gives a
+ * new tree that shares all but the changed parts with the old one.
+ * <p>
+ * The nodes are kept in a 32-way trie by id, so a lookup reads one array
+ * per level, four for a million nodes, and an edit copies the arrays on
+ * the path to each node it changes: the node, its parent's, and the node
+ * it is moved to.  A node's children are an array of ids, copied when one
+ * is added or taken away.  Removing a subtree drops each of its nodes, as
+ * {@link OntologyStore#remove} does, so costs that many paths.
+ * <p>
+ * Since no version is ever changed, any number of threads can read one
+ * while another goes on editing, without locks: a reader holds on to the
+ * version it started with and sees the tree consistently as it was then.
+ * See {@link OntologyVersions} for a way to hand the latest to them.
+ * <p>
+ * The edits return this version unchanged if they make no sense for it, as
+ * {@link StoreReplayer} skips them, so the same journal gives the same tree.
+ */
+public final class PersistentOntology {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    /* The deepest trie whose top level still holds a non-negative int. */
+    private static final int MAX_SHIFT = 30;
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    /** The tree with no nodes, not even a root. */
+    public static final PersistentOntology EMPTY =
+        new PersistentOntology(new Object[WIDTH + 1], 0, OntologyStore.NONE, 0, -1);
+
+    /** One node as it is in some versions; never changed once made. */
+    private static final class Node {
+
+        final int id;
+        final int parent;
+        final String label;
+        final String attributes;
+        final int[] children;
+
+        Node(int id, int parent, String label, String attributes, int[] children) {
+            this.id = id;
+            this.parent = parent;
+            this.label = label;
+            this.attributes = attributes;
+            this.children = children;
+        }
+
+        Node withParent(int parent) {
+            return new Node(id, parent, label, attributes, children);
+        }
+
+        Node withLabel(String label) {
+            return new Node(id, parent, label, attributes, children);
+        }
+
+        Node withChild(int index, int child) {
+            int[] c = new int[children.length + 1];
+            System.arraycopy(children, 0, c, 0, index);
+            c[index] = child;
+            System.arraycopy(children, index, c, index + 1, children.length - index);
+            return new Node(id, parent, label, attributes, c);
+        }
+
+        Node withoutChild(int child) {
+            int index = indexOf(child);
+            if (index < 0)
+                return this;
+            int[] c = children.length == 1 ? NO_CHILDREN : new int[children.length - 1];
+            System.arraycopy(children, 0, c, 0, index);
+            System.arraycopy(children, index + 1, c, index, children.length - index - 1);
+            return new Node(id, parent, label, attributes, c);
+        }
+
+        int indexOf(int child) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == child)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    /*
+     * The trie's arrays have a last slot for the edit that made them, which
+     * may go on changing them in place until it is done; once it is, nothing
+     * refers to its token any more and they are fixed.
+     */
+    private final Object[] trie;
+    private final int shift;
+    private final int root;
+    private final int count;
+    private final int maxId;
+
+    private PersistentOntology(Object[] trie, int shift, int root, int count, int maxId) {
+        this.trie = trie;
+        this.shift = shift;
+        this.root = root;
+        this.count = count;
+        this.maxId = maxId;
+    }
+
+    /** Copies the tree under store's root. */
+    public static PersistentOntology of(OntologyStore store) {
+        Builder builder = new Builder();
+        int top = store.getRoot();
+        if (top == OntologyStore.NONE)
+            return EMPTY;
+        int[] nodes = new int[64];
+        int[] parents = new int[64];
+        int n = 0;
+        nodes[n] = top;
+        parents[n++] = OntologyStore.NONE;
+        while (n > 0) {
+            int node = nodes[--n];
+            int added = builder.add(parents[n], store.getId(node), store.getLabel(node),
+                    store.getAttributes(node));
+            int first = n;
+            for (int c = store.getFirstChild(node); c != OntologyStore.NONE; c = store.getNextSibling(c)) {
+                if (n == nodes.length) {
+                    nodes = grow(nodes);
+                    parents = grow(parents);
+                }
+                nodes[n] = c;
+                parents[n++] = added;
+            }
+            reverse(nodes, first, n);
+        }
+        return builder.build();
+    }
+
+    /** Returns the id of the root, or NONE if the tree is empty. */
+    public int getRoot() {
+        return root;
+    }
+
+    /** Returns the number of nodes in the tree. */
+    public int getNodeCount() {
+        return count;
+    }
+
+    /** Returns the largest id any node has had in this line of versions, or -1. */
+    public int getMaxId() {
+        return maxId;
+    }
+
+    /** Returns true if the node with the given id is in the tree. */
+    public boolean contains(int id) {
+        return node(id) != null;
+    }
+
+    /** Returns the id of the node's parent, or NONE for the root. */
+    public int getParent(int id) {
+        return get(id).parent;
+    }
+
+    public String getLabel(int id) {
+        return get(id).label;
+    }
+
+    /** Returns the STC columns after the label, as OntologyStore has them, or null. */
+    public String getAttributes(int id) {
+        return get(id).attributes;
+    }
+
+    public int getChildCount(int id) {
+        return get(id).children.length;
+    }
+
+    /** Returns the id of the index-th child of the node. */
+    public int getChild(int id, int index) {
+        return get(id).children[index];
+    }
+
+    /** Returns the index of child among the node's children, or -1. */
+    public int getIndexOfChild(int id, int child) {
+        return get(id).indexOf(child);
+    }
+
+    /** Returns true if descendant is the node with the given id or under it. */
+    public boolean isAncestor(int id, int descendant) {
+        for (int n = descendant; n != OntologyStore.NONE; n = get(n).parent) {
+            if (n == id)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the tree with a new childless node, with the given id, label
+     * and attributes, as the index-th child of parent; the index is clamped.
+     * An empty tree takes the node as its root, whatever parent is.
+     */
+    public PersistentOntology insert(int parentId, int index, int id, String label,
+            String attributes) {
+        if (id < 0 || node(id) != null)
+            return this;
+        Edit e = new Edit(this);
+        if (root == OntologyStore.NONE) {
+            e.put(id, new Node(id, OntologyStore.NONE, label, attributes, NO_CHILDREN));
+            e.root = id;
+        } else {
+            Node parent = node(parentId);
+            if (parent == null)
+                return this;
+            e.put(id, new Node(id, parentId, label, attributes, NO_CHILDREN));
+            e.put(parentId, parent.withChild(clamp(index, parent.children.length), id));
+        }
+        e.count++;
+        e.maxId = Math.max(maxId, id);
+        return e.done();
+    }
+
+    /** Returns the tree without the node and its subtree.  The root stays. */
+    public PersistentOntology remove(int id) {
+        Node node = node(id);
+        if (node == null || id == root)
+            return this;
+        Edit e = new Edit(this);
+        e.put(node.parent, node(node.parent).withoutChild(id));
+        int[] stack = new int[16];
+        int n = 0;
+        stack[n++] = id;
+        while (n > 0) {
+            Node d = node(stack[--n]);
+            while (n + d.children.length > stack.length)
+                stack = grow(stack);
+            System.arraycopy(d.children, 0, stack, n, d.children.length);
+            n += d.children.length;
+            e.put(d.id, null);
+            e.count--;
+        }
+        return e.done();
+    }
+
+    /**
+     * Returns the tree with the node and its subtree moved to be the
+     * index-th child of parent, counted once the node has been taken away;
+     * the index is clamped.  A node cannot be moved under itself.
+     */
+    public PersistentOntology move(int id, int parentId, int index) {
+        Node node = node(id);
+        if (node == null || id == root || node(parentId) == null || isAncestor(id, parentId))
+            return this;
+        Edit e = new Edit(this);
+        e.put(node.parent, node(node.parent).withoutChild(id));
+        Node parent = e.get(parentId);
+        e.put(parentId, parent.withChild(clamp(index, parent.children.length), id));
+        if (node.parent != parentId)
+            e.put(id, node.withParent(parentId));
+        return e.done();
+    }
+
+    /** Returns the tree with the node's label changed; its attributes stay. */
+    public PersistentOntology rename(int id, String label) {
+        Node node = node(id);
+        if (node == null || (label == null ? node.label == null : label.equals(node.label)))
+            return this;
+        Edit e = new Edit(this);
+        e.put(id, node.withLabel(label));
+        return e.done();
+    }
+
+    /**
+     * Copies the tree into a new store, nodes keeping their ids, columns
+     * and child order.  Safe on any thread, as the version cannot change.
+     */
+    public OntologyStore toStore() {
+        OntologyStore store = new OntologyStore(Math.max(count, 16));
+        if (root == OntologyStore.NONE)
+            return store;
+        int[] nodes = new int[64];
+        int[] parents = new int[64];
+        int n = 0;
+        nodes[n] = root;
+        parents[n++] = OntologyStore.NONE;
+        while (n > 0) {
+            Node node = get(nodes[--n]);
+            int parent = parents[n];
+            int slot = store.addNode(node.id, node.label);
+            if (node.attributes != null)
+                store.setAttributes(slot, node.attributes);
+            if (parent == OntologyStore.NONE)
+                store.setRoot(slot);
+            else
+                store.addChild(parent, slot);
+            int k = node.children.length;
+            while (n + k > nodes.length) {
+                nodes = grow(nodes);
+                parents = grow(parents);
+            }
+            // Last child first, so they come off the stack in order.
+            for (int i = 0; i < k; i++) {
+                nodes[n + k - 1 - i] = node.children[i];
+                parents[n + k - 1 - i] = slot;
+            }
+            n += k;
+        }
+        store.optimize();
+        return store;
+    }
+
+    private Node get(int id) {
+        Node node = node(id);
+        if (node == null)
+            throw new IllegalArgumentException("No node " + STCRow.ID_PREFIX + id);
+        return node;
+    }
+
+    private Node node(int id) {
+        return find(trie, shift, id);
+    }
+
+    private static Node find(Object[] trie, int shift, int id) {
+        if (id < 0 || (id >>> shift) >= WIDTH)
+            return null;
+        Object[] a = trie;
+        for (int s = shift; s > 0; s -= BITS) {
+            a = (Object[]) a[(id >>> s) & MASK];
+            if (a == null)
+                return null;
+        }
+        return (Node) a[id & MASK];
+    }
+
+    /**
+     * The version being made by one edit.  Arrays it has copied carry its
+     * token, and it changes those in place rather than copying them again.
+     */
+    private static final class Edit {
+
+        final Object token = new Object();
+        Object[] trie;
+        int shift;
+        int root;
+        int count;
+        int maxId;
+
+        Edit(PersistentOntology from) {
+            trie = from.trie;
+            shift = from.shift;
+            root = from.root;
+            count = from.count;
+            maxId = from.maxId;
+        }
+
+        Node get(int id) {
+            return find(trie, shift, id);
+        }
+
+        void put(int id, Node node) {
+            while (shift < MAX_SHIFT && (id >>> shift) >= WIDTH) {
+                Object[] top = array(null);
+                top[0] = trie;
+                trie = top;
+                shift += BITS;
+            }
+            trie = put(trie, shift, id, node);
+        }
+
+        private Object[] put(Object[] a, int s, int id, Node node) {
+            Object[] b = array(a);
+            int i = (id >>> s) & MASK;
+            b[i] = s == 0 ? node : put((Object[]) b[i], s - BITS, id, node);
+            return b;
+        }
+
+        /* Returns a, if this edit made it, or else a copy of it, or a new array for null. */
+        private Object[] array(Object[] a) {
+            if (a != null && a[WIDTH] == token)
+                return a;
+            Object[] b = a == null ? new Object[WIDTH + 1] : a.clone();
+            b[WIDTH] = token;
+            return b;
+        }
+
+        PersistentOntology done() {
+            return new PersistentOntology(trie, shift, root, count, maxId);
+        }
+    }
+
+    /**
+     * Makes a tree from nodes given parents first, in one pass, without the
+     * copying a series of inserts would do.
+     */
+    public static final class Builder {
+
+        private int[] ids = new int[64];
+        private int[] parents = new int[64];
+        private int[] childCounts = new int[64];
+        private String[] labels = new String[64];
+        private String[] attributes = new String[64];
+        private int size;
+
+        /**
+         * Adds a node as the next child of parent, a number add returned
+         * before, or as the root for NONE, and returns its own number.
+         */
+        public int add(int parent, int id, String label, String attributes) {
+            if (size == ids.length) {
+                ids = grow(ids);
+                parents = grow(parents);
+                childCounts = grow(childCounts);
+                labels = grow(labels);
+                this.attributes = grow(this.attributes);
+            }
+            ids[size] = id;
+            parents[size] = parent;
+            labels[size] = label;
+            this.attributes[size] = attributes;
+            if (parent != OntologyStore.NONE)
+                childCounts[parent]++;
+            return size++;
+        }
+
+        /**
+         * Returns the tree of the nodes added.  A node whose id is already
+         * taken is left out with its subtree, as is a second root.
+         */
+        public PersistentOntology build() {
+            Edit e = new Edit(EMPTY);
+            int[][] children = new int[size][];
+            int[] filled = new int[size];
+            boolean[] dropped = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                int p = parents[i];
+                boolean orphan = p == OntologyStore.NONE ? e.root != OntologyStore.NONE : dropped[p];
+                if (orphan || ids[i] < 0 || e.get(ids[i]) != null) {
+                    dropped[i] = true;
+                    continue;
+                }
+                children[i] = childCounts[i] == 0 ? NO_CHILDREN : new int[childCounts[i]];
+                // The array is filled in below; the node is shared, not copied.
+                e.put(ids[i], new Node(ids[i], p == OntologyStore.NONE ? OntologyStore.NONE : ids[p],
+                        labels[i], attributes[i], children[i]));
+                if (p == OntologyStore.NONE)
+                    e.root = ids[i];
+                else
+                    children[p][filled[p]++] = ids[i];
+                e.count++;
+                e.maxId = Math.max(e.maxId, ids[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                if (!dropped[i] && filled[i] < children[i].length) {
+                    int[] c = new int[filled[i]];
+                    System.arraycopy(children[i], 0, c, 0, c.length);
+                    Node node = e.get(ids[i]);
+                    e.put(ids[i], new Node(node.id, node.parent, node.label, node.attributes, c));
+                }
+            }
+            return e.done();
+        }
+    }
+
+    private static int clamp(int index, int count) {
+        return index < 0 ? 0 : Math.min(index, count);
+    }
+
+    private static void reverse(int[] a, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            int t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    private static int[] grow(int[] a) {
+        int[] grown = new int[a.length << 1];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+
+    private static String[] grow(String[] a) {
+        String[] grown = new String[a.length << 1];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
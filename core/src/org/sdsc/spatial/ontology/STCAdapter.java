@@ -0,0 +1,27 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * An empty implementation of {@link STCHandler}, in the manner of
+ * java.awt.event.MouseAdapter, so that handlers only override the callbacks
+ * they are interested in.
+ */
+public abstract class STCAdapter implements STCHandler {
+
+    public void startDocument(String version, String encoding) {
+    }
+
+    public void property(String name, String value) {
+    }
+
+    public void node(STCRow row) {
+    }
+
+    public void link(STCRow row) {
+    }
+
+    public void externalNode(STCRow row) {
+    }
+
+    public void endDocument() {
+    }
+}
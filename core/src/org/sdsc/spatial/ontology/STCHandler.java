@@ -0,0 +1,32 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * Receives the contents of an STC file from an {@link STCParser}, one
+ * header, property or row at a time.
+ * <p>
+ * The {@link STCRow} passed to the row callbacks is reused by the parser and
+ * is only valid for the duration of the call; copy out whatever fields are
+ * needed before returning.
+ *
+ * @see STCAdapter
+ */
+public interface STCHandler {
+
+    /** Called once with the version and encoding from the STC=... header. */
+    void startDocument(String version, String encoding);
+
+    /** Called for each name=value line before the first section. */
+    void property(String name, String value);
+
+    /** Called for each row of the [nodes] section. */
+    void node(STCRow row);
+
+    /** Called for each row of the [links] section. */
+    void link(STCRow row);
+
+    /** Called for each row of the [externalnodes] section. */
+    void externalNode(STCRow row);
+
+    /** Called once after the last line has been read. */
+    void endDocument();
+}
@@ -0,0 +1,264 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+/**
+ * A single pass, streaming reader for StarTree STC files.
+ * <p>
+ * An STC file is a STC=version,encoding header, a block of name=value
+ * properties (layoutprops, paintprops, ...), and then the [nodes], [links]
+ * and [externalnodes] sections of comma separated rows.  The parser reads
+ * the file through one char buffer that is reused for every line, splits
+ * rows in place, and passes each one to an {@link STCHandler} as an
+ * {@link STCRow}.  It keeps no state about the rows itself, so memory use
+ * does not depend on the size of the file; building a tree out of the rows
+ * is up to the handler (see {@link STCTreeHandler}).
+ * <p>
+ * A parser is not thread safe, but may be reused for several files.
+ */
+public class STCParser {
+
+    public static final String SECTION_NODES = "nodes";
+    public static final String SECTION_LINKS = "links";
+    public static final String SECTION_EXTERNAL_NODES = "externalnodes";
+
+    private static final String HEADER = "STC=";
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_PEEK = 512;
+
+    private static final int IN_HEADER = 0;
+    private static final int IN_PROPERTIES = 1;
+    private static final int IN_NODES = 2;
+    private static final int IN_LINKS = 3;
+    private static final int IN_EXTERNAL_NODES = 4;
+    private static final int IN_UNKNOWN = 5;
+
+    private char[] buf;
+    private final STCRow row = new STCRow();
+    private STCHandler handler;
+    private int state;
+    private long lineNumber;
+
+    public STCParser() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Creates a parser whose read buffer starts at bufferSize chars. */
+    public STCParser(int bufferSize) {
+        buf = new char[Math.max(bufferSize, 256)];
+    }
+
+    /** Parses the STC file at url. */
+    public void parse(URL url, STCHandler handler) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            parse(in, handler);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses an STC file from a byte stream, decoding it with the encoding
+     * named in its header (UTF-8 if none is given).  The stream is not
+     * closed.
+     */
+    public void parse(InputStream in, STCHandler handler) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in, HEADER_PEEK);
+        bin.mark(HEADER_PEEK);
+        byte[] peek = new byte[HEADER_PEEK];
+        int n = 0;
+        int r;
+        while (n < peek.length && (r = bin.read(peek, n, peek.length - n)) > 0)
+            n += r;
+        bin.reset();
+        parse(new InputStreamReader(bin, headerCharset(peek, n)), handler);
+    }
+
+    /** Parses an STC file from a character stream.  The stream is not closed. */
+    public void parse(Reader in, STCHandler handler) throws IOException {
+        this.handler = handler;
+        this.state = IN_HEADER;
+        this.lineNumber = 0;
+        try {
+            int start = 0;  // start of the current line
+            int scan = 0;   // where to resume looking for '\n'
+            int end = 0;    // end of the valid chars in buf
+            boolean eof = false;
+            for (;;) {
+                int nl = -1;
+                for (int i = scan; i < end; i++) {
+                    if (buf[i] == '\n') {
+                        nl = i;
+                        break;
+                    }
+                }
+                if (nl >= 0) {
+                    line(start, nl);
+                    start = scan = nl + 1;
+                    continue;
+                }
+                if (eof) {
+                    if (start < end)
+                        line(start, end);
+                    break;
+                }
+                // Move the partial line to the front, growing for long lines.
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else if (end == buf.length) {
+                    char[] grown = new char[buf.length << 1];
+                    System.arraycopy(buf, 0, grown, 0, end);
+                    buf = grown;
+                }
+                scan = end;
+                int read = in.read(buf, end, buf.length - end);
+                if (read < 0)
+                    eof = true;
+                else
+                    end += read;
+            }
+            if (state == IN_HEADER)
+                throw new IOException("Not an STC file: no STC= header");
+            handler.endDocument();
+        } finally {
+            this.handler = null;
+        }
+    }
+
+    private void line(int start, int end) throws IOException {
+        lineNumber++;
+        if (end > start && buf[end - 1] == '\r')
+            end--;
+        if (state == IN_HEADER) {
+            if (end > start && buf[start] == '\uFEFF')
+                start++;
+            header(start, end);
+            return;
+        }
+        if (start == end)
+            return;
+        if (buf[start] == '[') {
+            section(start, end);
+            return;
+        }
+        switch (state) {
+        case IN_PROPERTIES:
+            property(start, end);
+            break;
+        case IN_NODES:
+            row.reset(buf, start, end);
+            handler.node(row);
+            break;
+        case IN_LINKS:
+            row.reset(buf, start, end);
+            handler.link(row);
+            break;
+        case IN_EXTERNAL_NODES:
+            row.reset(buf, start, end);
+            handler.externalNode(row);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void header(int start, int end) throws IOException {
+        if (!startsWith(start, end, HEADER))
+            throw new IOException("Not an STC file: line " + lineNumber
+                    + " does not start with " + HEADER);
+        start += HEADER.length();
+        int comma = indexOf(',', start, end);
+        String version, encoding = null;
+        if (comma < 0) {
+            version = new String(buf, start, end - start);
+        } else {
+            version = new String(buf, start, comma - start);
+            encoding = new String(buf, comma + 1, end - comma - 1);
+        }
+        state = IN_PROPERTIES;
+        handler.startDocument(version, encoding);
+    }
+
+    private void property(int start, int end) {
+        int eq = indexOf('=', start, end);
+        if (eq < 0)
+            return;
+        handler.property(new String(buf, start, eq - start),
+                new String(buf, eq + 1, end - eq - 1));
+    }
+
+    private void section(int start, int end) {
+        int close = indexOf(']', start, end);
+        if (close < 0)
+            close = end;
+        start++;
+        if (matches(start, close, SECTION_NODES))
+            state = IN_NODES;
+        else if (matches(start, close, SECTION_LINKS))
+            state = IN_LINKS;
+        else if (matches(start, close, SECTION_EXTERNAL_NODES))
+            state = IN_EXTERNAL_NODES;
+        else
+            state = IN_UNKNOWN;
+    }
+
+    private boolean startsWith(int start, int end, String s) {
+        if (end - start < s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[start + i] != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean matches(int start, int end, String s) {
+        return end - start == s.length() && startsWith(start, end, s);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /* Reads the encoding out of the raw header bytes, skipping a UTF-8 BOM. */
+    private static Charset headerCharset(byte[] b, int n) {
+        int i = 0;
+        if (n >= 3 && (b[0] & 0xff) == 0xef && (b[1] & 0xff) == 0xbb
+                && (b[2] & 0xff) == 0xbf)
+            i = 3;
+        int comma = -1;
+        int eol = n;
+        for (int j = i; j < n; j++) {
+            if (b[j] == '\n' || b[j] == '\r') {
+                eol = j;
+                break;
+            }
+            if (b[j] == ',' && comma < 0)
+                comma = j;
+        }
+        if (comma >= 0 && comma + 1 < eol) {
+            String name = new String(b, comma + 1, eol - comma - 1,
+                    Charset.forName("US-ASCII")).trim();
+            try {
+                if (Charset.isSupported(name))
+                    return Charset.forName(name);
+            } catch (IllegalArgumentException e) {
+                // fall through to the default
+            }
+        }
+        return Charset.forName("UTF-8");
+    }
+}
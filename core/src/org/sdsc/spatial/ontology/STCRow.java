@@ -0,0 +1,237 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * A view of one comma separated row of an STC file.
+ * <p>
+ * The row does not own its characters: it points into the parser's read
+ * buffer, and the same instance is handed out for every row.  Fields are
+ * only turned into Strings when asked for, so a handler that looks at a few
+ * columns does not pay for the rest of the line.
+ * <p>
+ * Commas, newlines, carriage returns, open brackets and backslashes inside a
+ * field are written as \c, \n, \r, \b and \\ respectively; the bracket so
+ * that no row can be mistaken for a [section] line.  {@link #get(int)}
+ * undoes the escaping; {@link #getRaw(int)} and {@link #getRawFrom(int)}
+ * return the text exactly as it appears in the file.
+ */
+public final class STCRow {
+
+    /** The prefix of the node ids written by StarTree, as in _ST_42. */
+    public static final String ID_PREFIX = "_ST_";
+
+    private char[] buf;
+    private int lineStart, lineEnd;
+
+    /* Start and end offsets of each field, two ints per field. */
+    private int[] bounds = new int[64];
+    private int count;
+
+    /* Scratch space for unescaping, reused between rows. */
+    private char[] scratch = new char[256];
+
+    STCRow() {
+    }
+
+    /** Points the row at buf[start..end) and splits it on commas. */
+    void reset(char[] buf, int start, int end) {
+        this.buf = buf;
+        this.lineStart = start;
+        this.lineEnd = end;
+        int n = 0;
+        int fieldStart = start;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == ',') {
+                n = addField(n, fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        n = addField(n, fieldStart, end);
+        count = n;
+    }
+
+    private int addField(int n, int start, int end) {
+        int k = n << 1;
+        if (k + 2 > bounds.length) {
+            int[] grown = new int[bounds.length << 1];
+            System.arraycopy(bounds, 0, grown, 0, bounds.length);
+            bounds = grown;
+        }
+        bounds[k] = start;
+        bounds[k + 1] = end;
+        return n + 1;
+    }
+
+    /** Returns the number of fields in the row. */
+    public int size() {
+        return count;
+    }
+
+    /** Returns true if field i is missing or has no characters. */
+    public boolean isEmpty(int i) {
+        return i >= count || bounds[i << 1] == bounds[(i << 1) + 1];
+    }
+
+    /** Returns the unescaped text of field i, or "" if the field is missing. */
+    public String get(int i) {
+        if (i >= count)
+            return "";
+        int start = bounds[i << 1];
+        int end = bounds[(i << 1) + 1];
+        int slash = indexOf('\\', start, end);
+        if (slash < 0)
+            return new String(buf, start, end - start);
+
+        if (scratch.length < end - start)
+            scratch = new char[Math.max(end - start, scratch.length << 1)];
+        int n = slash - start;
+        System.arraycopy(buf, start, scratch, 0, n);
+        for (int j = slash; j < end; j++) {
+            char c = buf[j];
+            if (c == '\\' && j + 1 < end) {
+                char e = buf[++j];
+                if (e == 'c')
+                    c = ',';
+                else if (e == 'n')
+                    c = '\n';
+                else if (e == 'r')
+                    c = '\r';
+                else if (e == 'b')
+                    c = '[';
+                else
+                    c = e;
+            }
+            scratch[n++] = c;
+        }
+        return new String(scratch, 0, n);
+    }
+
+    /** Returns field i exactly as written in the file. */
+    public String getRaw(int i) {
+        if (i >= count)
+            return "";
+        int start = bounds[i << 1];
+        return new String(buf, start, bounds[(i << 1) + 1] - start);
+    }
+
+    /**
+     * Returns fields i through the end of the row exactly as written in the
+     * file, commas included, or null if the row has fewer fields.
+     */
+    public String getRawFrom(int i) {
+        if (i >= count)
+            return null;
+        int start = bounds[i << 1];
+        return new String(buf, start, lineEnd - start);
+    }
+
+    /** Parses field i as a decimal int, returning def if it is not one. */
+    public int getInt(int i, int def) {
+        if (i >= count)
+            return def;
+        return parseInt(bounds[i << 1], bounds[(i << 1) + 1], def);
+    }
+
+    /**
+     * Returns n for a field of the form _ST_n, or -1 if field i is not a
+     * StarTree node id.
+     */
+    public int getId(int i) {
+        if (i >= count)
+            return -1;
+        int start = bounds[i << 1];
+        int end = bounds[(i << 1) + 1];
+        int p = ID_PREFIX.length();
+        if (end - start <= p)
+            return -1;
+        for (int j = 0; j < p; j++) {
+            if (buf[start + j] != ID_PREFIX.charAt(j))
+                return -1;
+        }
+        return parseInt(start + p, end, -1);
+    }
+
+    private int parseInt(int start, int end, int def) {
+        if (start == end || end - start > 9)
+            return def;
+        int v = 0;
+        for (int j = start; j < end; j++) {
+            int d = buf[j] - '0';
+            if (d < 0 || d > 9)
+                return def;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int j = start; j < end; j++) {
+            if (buf[j] == c)
+                return j;
+        }
+        return -1;
+    }
+
+    /** Returns the whole row as written in the file. */
+    public String toString() {
+        return new String(buf, lineStart, lineEnd - lineStart);
+    }
+
+    /** Returns s with commas, line breaks, brackets and backslashes escaped for STC. */
+    public static String escape(String s) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '\n' || c == '\\' || c == '\r' || c == '[')
+                break;
+            i++;
+        }
+        if (i == n)
+            return s;
+        StringBuilder sb = new StringBuilder(n + 8);
+        sb.append(s, 0, i);
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == ',')
+                sb.append("\\c");
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '\r')
+                sb.append("\\r");
+            else if (c == '[')
+                sb.append("\\b");
+            else if (c == '\\')
+                sb.append("\\\\");
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** Returns s, a field as written in an STC file, with its escapes undone. */
+    public static String unescape(String s) {
+        int i = s.indexOf('\\');
+        if (i < 0)
+            return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        sb.append(s, 0, i);
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char e = s.charAt(++i);
+                if (e == 'c')
+                    c = ',';
+                else if (e == 'n')
+                    c = '\n';
+                else if (e == 'r')
+                    c = '\r';
+                else if (e == 'b')
+                    c = '[';
+                else
+                    c = e;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,234 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * The tree formed by the node rows of an STC file, held in int arrays.
+ * <p>
+ * Rows are numbered in file order and row 0 is the root.  Rows and links are
+ * added as they are read; {@link #resolve()} then works out the tree.  If
+ * there were any links they are the structure, the first link to a child
+ * winning.  Otherwise each row's declared child count is used, the rows
+ * being in breadth first order so that the children of row i are the next
+ * unclaimed rows after the children of rows 0..i-1.  Rows that end up
+ * unreachable from the root (a bad count, a link cycle) are moved under the
+ * root rather than dropped.
+ * <p>
+ * Once resolved, the parent, first child and next sibling of every row, and
+ * a breadth first order of all rows, can be read back in constant time.
+ * That costs six ints per row, against the hundred or more bytes of a node
+ * object.
+ */
+public class STCStructure {
+
+    private int rowCount;
+    private int[] ids = new int[1024];
+    private int[] counts = new int[1024];
+    private int maxId = -1;
+
+    /* Row + 1 for each id, so that 0 means no such row. */
+    private int[] rowsById = new int[1024];
+
+    /* Parent and child rows of each link, two ints per link. */
+    private int[] links = new int[0];
+    private int linkCount;
+
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] order;
+    private boolean resolved;
+
+    /**
+     * Adds a row with the given _ST_n id, or -1 if it is to get an id later
+     * through {@link #assignId(int, int)}, and declared child count.
+     * Returns the row number.
+     */
+    public int addRow(int id, int childCount) {
+        int row = rowCount++;
+        if (row == ids.length) {
+            ids = grow(ids, row << 1);
+            counts = grow(counts, row << 1);
+        }
+        counts[row] = Math.max(childCount, 0);
+        ids[row] = -1;
+        if (id >= 0)
+            assignId(row, id);
+        return row;
+    }
+
+    /** Gives row an id, which must not already belong to another row. */
+    public void assignId(int row, int id) {
+        if (id >= rowsById.length)
+            rowsById = grow(rowsById, Math.max(id + 1, rowsById.length << 1));
+        ids[row] = id;
+        rowsById[id] = row + 1;
+        if (id > maxId)
+            maxId = id;
+    }
+
+    /** Returns the row with the given id, or -1. */
+    public int getRow(int id) {
+        if (id < 0 || id >= rowsById.length)
+            return -1;
+        return rowsById[id] - 1;
+    }
+
+    /** Returns the id of row, or -1 if it has none yet. */
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    /** Returns the highest id given to a row, or -1. */
+    public int getMaxId() {
+        return maxId;
+    }
+
+    /** Returns the number of rows. */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Records a link from parentRow to childRow. */
+    public void addLink(int parentRow, int childRow) {
+        if (parentRow == childRow)
+            return;
+        int k = linkCount << 1;
+        if (k + 2 > links.length)
+            links = grow(links, Math.max(64, links.length << 1));
+        links[k] = parentRow;
+        links[k + 1] = childRow;
+        linkCount++;
+    }
+
+    /** Works out the tree from the rows and links added so far. */
+    public void resolve() {
+        int n = rowCount;
+        parent = new int[n];
+        firstChild = new int[n];
+        nextSibling = new int[n];
+        order = new int[n];
+        int[] lastChild = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = firstChild[i] = lastChild[i] = nextSibling[i] = -1;
+
+        if (linkCount > 0) {
+            for (int k = 0; k < linkCount; k++) {
+                int p = links[k << 1];
+                int c = links[(k << 1) + 1];
+                if (c != 0 && parent[c] < 0)
+                    append(p, c, lastChild);
+            }
+        } else {
+            int next = 1;
+            for (int p = 0; p < n && next < n; p++) {
+                for (int k = counts[p]; k > 0 && next < n; k--)
+                    append(p, next++, lastChild);
+            }
+        }
+        links = null;
+
+        // Breadth first from the root; anything not reached goes under it.
+        if (n > 0) {
+            boolean[] reached = new boolean[n];
+            reached[0] = true;
+            int head = 0;
+            int tail = 1;
+            int unreached = 1;
+            for (;;) {
+                while (head < tail) {
+                    int p = order[head++];
+                    for (int c = firstChild[p]; c >= 0; c = nextSibling[c]) {
+                        reached[c] = true;
+                        order[tail++] = c;
+                    }
+                }
+                while (unreached < n && reached[unreached])
+                    unreached++;
+                if (unreached == n)
+                    break;
+                int r = unreached;
+                unlink(r, lastChild);
+                append(0, r, lastChild);
+                reached[r] = true;
+                order[tail++] = r;
+            }
+        }
+
+        // From here on counts holds the actual number of children.
+        for (int i = 0; i < n; i++)
+            counts[i] = 0;
+        for (int i = 1; i < n; i++)
+            counts[parent[order[i]]]++;
+        resolved = true;
+    }
+
+    private void append(int p, int c, int[] lastChild) {
+        parent[c] = p;
+        nextSibling[c] = -1;
+        if (lastChild[p] < 0)
+            firstChild[p] = c;
+        else
+            nextSibling[lastChild[p]] = c;
+        lastChild[p] = c;
+    }
+
+    private void unlink(int c, int[] lastChild) {
+        int p = parent[c];
+        if (p < 0)
+            return;
+        int prev = -1;
+        for (int s = firstChild[p]; s != c; s = nextSibling[s])
+            prev = s;
+        if (prev < 0)
+            firstChild[p] = nextSibling[c];
+        else
+            nextSibling[prev] = nextSibling[c];
+        if (lastChild[p] == c)
+            lastChild[p] = prev;
+        parent[c] = -1;
+        nextSibling[c] = -1;
+    }
+
+    private void checkResolved() {
+        if (!resolved)
+            throw new IllegalStateException("STC structure not resolved yet");
+    }
+
+    /** Returns the parent row of row, or -1 for the root. */
+    public int getParent(int row) {
+        checkResolved();
+        return parent[row];
+    }
+
+    /** Returns the first child row of row, or -1. */
+    public int getFirstChild(int row) {
+        checkResolved();
+        return firstChild[row];
+    }
+
+    /** Returns the row after row in its parent's children, or -1. */
+    public int getNextSibling(int row) {
+        checkResolved();
+        return nextSibling[row];
+    }
+
+    /** Returns the number of children of row. */
+    public int getChildCount(int row) {
+        checkResolved();
+        return counts[row];
+    }
+
+    /**
+     * Returns the k-th row in breadth first order.  Row 0, the root, is
+     * always first, and every row comes after its parent.
+     */
+    public int getOrder(int k) {
+        checkResolved();
+        return order[k];
+    }
+
+    private static int[] grow(int[] a, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
@@ -0,0 +1,173 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link STCHandler} that works out the tree structure of an STC file and
+ * hands it to a subclass as a sequence of parent/child attachments.
+ * <p>
+ * Rows are numbered in the order they appear in the [nodes] section; row 0 is
+ * the root.  The tree comes from the [links] section if the file has one,
+ * and otherwise from the child count each node row carries in column
+ * {@link #COLUMN_CHILD_COUNT}; see {@link STCStructure} for the details.
+ * <p>
+ * Because the links follow the nodes, nothing is attached until the whole
+ * file has been read.  Then {@link #startTree(int)} is called with the root
+ * row and {@link #attach(int, int)} for every other row in breadth first
+ * order, so a parent is always attached before its children and siblings
+ * arrive in file order.
+ * <p>
+ * The bookkeeping is a handful of int arrays; subclasses decide what a node
+ * is.
+ */
+public abstract class STCTreeHandler extends STCAdapter {
+
+    public static final int COLUMN_ID = 0;
+    public static final int COLUMN_LABEL = 1;
+    /** The first column after the label, where the node attributes start. */
+    public static final int COLUMN_ATTRIBUTES = 2;
+    public static final int COLUMN_CHILD_COUNT = 12;
+
+    public static final int LINK_PARENT = 0;
+    public static final int LINK_CHILD = 1;
+
+    private static final int SPARSE_ID_SLACK = 1 << 16;
+
+    private String version;
+    private String encoding;
+    private final Map<String, String> properties =
+        new LinkedHashMap<String, String>();
+
+    private final STCStructure structure = new STCStructure();
+
+    /* Rows whose ids are not of the _ST_n form, by id and in file order. */
+    private Map<String, Integer> foreignRows;
+    private int[] provisionalRows = new int[0];
+    private int provisionalCount;
+
+    /**
+     * Creates the node for a row.  id is n for an _ST_n id; rows with any
+     * other kind of id get a negative provisional id that is replaced through
+     * {@link #renumber(int, int)} once the highest _ST_n id is known.
+     */
+    protected abstract void createNode(int row, int id, STCRow data);
+
+    /** Gives the node for row its final id. */
+    protected abstract void renumber(int row, int id);
+
+    /** Called once, before any attach, with the row of the root. */
+    protected abstract void startTree(int rootRow);
+
+    /** Makes child the last child of parent. */
+    protected abstract void attach(int parentRow, int childRow);
+
+    /** Called after the last attach. */
+    protected void endTree() {
+    }
+
+    public void startDocument(String version, String encoding) {
+        this.version = version;
+        this.encoding = encoding;
+    }
+
+    public void property(String name, String value) {
+        properties.put(name, value);
+    }
+
+    public void node(STCRow data) {
+        int childCount = data.getInt(COLUMN_CHILD_COUNT, 0);
+        int id = data.getId(COLUMN_ID);
+        // Ids index arrays, so one far beyond the row count is not trusted.
+        if (id > (structure.getRowCount() << 2) + SPARSE_ID_SLACK)
+            id = -1;
+        if (id >= 0 && structure.getRow(id) < 0) {
+            createNode(structure.addRow(id, childCount), id, data);
+            return;
+        }
+        // Not an _ST_n id, or a repeated one; the row gets an id of its own.
+        int row = structure.addRow(-1, childCount);
+        if (foreignRows == null)
+            foreignRows = new HashMap<String, Integer>();
+        String key = data.getRaw(COLUMN_ID);
+        if (!foreignRows.containsKey(key))
+            foreignRows.put(key, row);
+        if (provisionalCount == provisionalRows.length) {
+            int[] grown = new int[Math.max(16, provisionalCount << 1)];
+            System.arraycopy(provisionalRows, 0, grown, 0, provisionalCount);
+            provisionalRows = grown;
+        }
+        provisionalRows[provisionalCount++] = row;
+        createNode(row, -1 - row, data);
+    }
+
+    public void link(STCRow data) {
+        int parent = rowOf(data, LINK_PARENT);
+        int child = rowOf(data, LINK_CHILD);
+        if (parent >= 0 && child >= 0)
+            structure.addLink(parent, child);
+    }
+
+    private int rowOf(STCRow data, int column) {
+        int row = structure.getRow(data.getId(column));
+        if (row >= 0)
+            return row;
+        if (foreignRows != null) {
+            Integer r = foreignRows.get(data.getRaw(column));
+            if (r != null)
+                return r.intValue();
+        }
+        return -1;
+    }
+
+    public void endDocument() {
+        for (int k = 0; k < provisionalCount; k++) {
+            int row = provisionalRows[k];
+            int id = structure.getMaxId() + 1;
+            structure.assignId(row, id);
+            renumber(row, id);
+        }
+        int n = structure.getRowCount();
+        if (n == 0)
+            return;
+        structure.resolve();
+        startTree(structure.getOrder(0));
+        for (int k = 1; k < n; k++) {
+            int row = structure.getOrder(k);
+            attach(structure.getParent(row), row);
+        }
+        endTree();
+    }
+
+    /** Returns the number of node rows read. */
+    public int getRowCount() {
+        return structure.getRowCount();
+    }
+
+    /** Returns the highest node id, or -1 if there were no rows. */
+    public int getMaxId() {
+        return structure.getMaxId();
+    }
+
+    /** Returns the structure of the rows read, resolved once they are all in. */
+    public STCStructure getStructure() {
+        return structure;
+    }
+
+    /** Returns the version from the STC= header. */
+    public String getVersion() {
+        return version;
+    }
+
+    /** Returns the encoding from the STC= header, or null if none was given. */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /** Returns the header properties, in file order. */
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+}
@@ -0,0 +1,135 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes an {@link OntologyStore} out as an STC file that both this package
+ * and StarTree can read back.
+ * <p>
+ * Nodes are written breadth first from the root, with their actual child
+ * count in column {@link STCTreeHandler#COLUMN_CHILD_COUNT}, and every
+ * parent/child pair is written again in the [links] section, as StarTree
+ * itself does.  The columns after the label are written as they were read;
+ * a node that has none gets empty columns up to the child count.  Lines end
+ * in CR LF like the files StarTree writes.
+ * <p>
+ * The header always names UTF-8, so out must encode UTF-8.  The writer does
+ * no buffering of its own and should be given a BufferedWriter.
+ * {@link #rowsWritten(int)} is called as the rows go out, for progress
+ * reports.
+ */
+public class STCTreeWriter {
+
+    private static final String EOL = "\r\n";
+
+    /* How the [links] rows end, after the parent and child ids. */
+    private static final String LINK_SUFFIX = ",,0,,,,1";
+
+    /** Rows written between calls to rowsWritten. */
+    private static final int PROGRESS_ROWS = 4096;
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Writes store to out, nodes first and then links, and returns the
+     * number of nodes written.  out is flushed but not closed.
+     */
+    public int write(OntologyStore store, Writer out) throws IOException {
+        out.write("STC=" + nonNull(store.getVersion(), "2.0") + ",UTF-8" + EOL);
+        for (Map.Entry<String, String> e : store.getProperties().entrySet())
+            out.write(e.getKey() + "=" + e.getValue() + EOL);
+
+        int root = store.getRoot();
+        int[] order = order(store, root);
+        int total = order.length;
+
+        out.write("[" + STCParser.SECTION_NODES + "]" + EOL);
+        for (int k = 0; k < total; k++) {
+            node(store, order[k]);
+            out.write(line.toString());
+            if ((k % PROGRESS_ROWS) == PROGRESS_ROWS - 1)
+                rowsWritten(k + 1);
+        }
+
+        out.write("[" + STCParser.SECTION_LINKS + "]" + EOL);
+        for (int k = 1; k < total; k++) {
+            int n = order[k];
+            line.setLength(0);
+            line.append(STCRow.ID_PREFIX).append(store.getId(store.getParent(n)))
+                .append(',').append(STCRow.ID_PREFIX).append(store.getId(n))
+                .append(LINK_SUFFIX).append(EOL);
+            out.write(line.toString());
+            if ((k % PROGRESS_ROWS) == PROGRESS_ROWS - 1)
+                rowsWritten(total + k + 1);
+        }
+        out.write("[" + STCParser.SECTION_EXTERNAL_NODES + "]" + EOL);
+        out.flush();
+        rowsWritten(2 * total);
+        return total;
+    }
+
+    /** Returns the number of rows {@link #write} will produce for store. */
+    public static int rowCount(OntologyStore store) {
+        return 2 * store.getNodeCount();
+    }
+
+    /**
+     * Called with the number of rows written so far; nodes and links both
+     * count, so the total is twice the number of nodes.
+     */
+    protected void rowsWritten(int rows) {
+    }
+
+    /* The nodes under root, root first, in breadth first order. */
+    private static int[] order(OntologyStore store, int root) {
+        if (root == OntologyStore.NONE)
+            return new int[0];
+        int[] order = new int[Math.max(store.getNodeCount(), 1)];
+        order[0] = root;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int p = order[head++];
+            for (int c = store.getFirstChild(p); c != OntologyStore.NONE;
+                    c = store.getNextSibling(c)) {
+                if (tail == order.length) {
+                    int[] grown = new int[tail << 1];
+                    System.arraycopy(order, 0, grown, 0, tail);
+                    order = grown;
+                }
+                order[tail++] = c;
+            }
+        }
+        if (tail == order.length)
+            return order;
+        int[] exact = new int[tail];
+        System.arraycopy(order, 0, exact, 0, tail);
+        return exact;
+    }
+
+    private void node(OntologyStore store, int n) {
+        line.setLength(0);
+        line.append(STCRow.ID_PREFIX).append(store.getId(n)).append(',')
+            .append(STCRow.escape(store.getLabel(n)));
+        String count = Integer.toString(store.getChildCount(n));
+        int width = Math.max(STCTreeHandler.COLUMN_CHILD_COUNT + 1,
+                STCTreeHandler.COLUMN_ATTRIBUTES + store.getAttributeCount(n));
+        for (int k = STCTreeHandler.COLUMN_ATTRIBUTES; k < width; k++) {
+            line.append(',');
+            if (k == STCTreeHandler.COLUMN_CHILD_COUNT) {
+                line.append(count);
+            } else {
+                String value = store.getAttribute(n, k);
+                if (value != null)
+                    line.append(value);
+            }
+        }
+        line.append(EOL);
+    }
+
+    private static String nonNull(String s, String def) {
+        return s == null || s.length() == 0 ? def : s;
+    }
+}
@@ -0,0 +1,172 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of {@link OntologySnapshot}s, one per STC file, so that a file
+ * that has not changed since it was last read can be loaded without parsing
+ * it again.
+ * <p>
+ * A snapshot is named after a hash of the STC file's canonical path and
+ * records the file's size, modification time and a SHA-1 of its contents.
+ * It is used if the size and time still match.  If only the time differs,
+ * as after a copy or a touch, the file is hashed and the snapshot is still
+ * used if the contents are the same.  Anything else, including a snapshot
+ * that cannot be read, counts as a miss and the caller parses the text as
+ * usual.
+ * <p>
+ * Snapshots are written through an {@link AtomicFile}, so a reader never
+ * sees half of one.
+ */
+public class SnapshotCache {
+
+    private static final String SUFFIX = ".snap";
+
+    private final File dir;
+
+    public SnapshotCache(File dir) {
+        this.dir = dir;
+    }
+
+    /** Returns a cache under the user's home directory. */
+    public static SnapshotCache getDefault() {
+        return new SnapshotCache(new File(System.getProperty("user.home"),
+                ".ontologyeditor" + File.separator + "snapshots"));
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /** Returns the local file behind url, or null if it is not a file: URL. */
+    public static File toFile(URL url) {
+        if (url == null || !"file".equals(url.getProtocol()))
+            return null;
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the store saved for source, or null if there is no snapshot
+     * or source has changed since it was made.
+     */
+    public OntologyStore load(File source) {
+        File snap;
+        OntologySnapshot header;
+        try {
+            snap = snapshotFile(source);
+            if (!snap.isFile())
+                return null;
+            header = readHeader(snap);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            String path = source.getCanonicalPath();
+            if (!path.equals(header.getSourcePath())
+                    || header.getSourceSize() != source.length())
+                return null;
+            if (header.getSourceModified() != source.lastModified()
+                    && !hash(source).equals(header.getSourceHash()))
+                return null;
+            InputStream in = new FileInputStream(snap);
+            try {
+                return OntologySnapshot.read(in).getStore();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Unreadable or corrupt; it will be replaced by the next save.
+            snap.delete();
+            return null;
+        }
+    }
+
+    private static OntologySnapshot readHeader(File snap) throws IOException {
+        InputStream in = new FileInputStream(snap);
+        try {
+            return OntologySnapshot.readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves store as the snapshot of source.  size, modified and hash
+     * describe source as it was when store was read from it; hash is the
+     * {@link #hash(File)} form of its contents.
+     */
+    public void save(File source, long size, long modified, String hash,
+            OntologyStore store) throws IOException {
+        AtomicFile snap = new AtomicFile(snapshotFile(source));
+        FileOutputStream out = snap.startWrite();
+        try {
+            new OntologySnapshot(source.getCanonicalPath(), size, modified,
+                    hash, store).write(out);
+        } catch (IOException e) {
+            snap.failWrite(out);
+            throw e;
+        } catch (RuntimeException e) {
+            snap.failWrite(out);
+            throw e;
+        }
+        snap.finishWrite(out);
+    }
+
+    /** Removes the snapshot of source, if there is one. */
+    public void remove(File source) throws IOException {
+        snapshotFile(source).delete();
+    }
+
+    private File snapshotFile(File source) throws IOException {
+        return new File(dir, toHex(digest().digest(
+                source.getCanonicalPath().getBytes("UTF-8"))) + SUFFIX);
+    }
+
+    /** Returns the SHA-1 of file's contents, in hex. */
+    public static String hash(File file) throws IOException {
+        MessageDigest md = digest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                md.update(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns a new digest of the kind used for content hashes. */
+    public static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to have SHA-1.
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    public static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int i = 0; i < b.length; i++) {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An int per node where most nodes share one value.  Only the nodes that
+ * differ from the default are stored, as sorted parallel arrays of node and
+ * value, so a lookup is a binary search.
+ * <p>
+ * Values for new nodes are normally set in increasing node order, which
+ * appends.  {@link #optimize(int)} picks the most common value as the
+ * default once a column has been filled.
+ */
+class SparseColumn {
+
+    private int defaultValue;
+    private int[] nodes = new int[0];
+    private int[] values = new int[0];
+    private int size;
+
+    SparseColumn(int defaultValue) {
+        this.defaultValue = defaultValue;
+    }
+
+    int getDefault() {
+        return defaultValue;
+    }
+
+    int get(int node) {
+        int i = find(node);
+        return i >= 0 ? values[i] : defaultValue;
+    }
+
+    void set(int node, int value) {
+        int i = find(node);
+        if (i >= 0) {
+            if (value != defaultValue) {
+                values[i] = value;
+            } else {
+                System.arraycopy(nodes, i + 1, nodes, i, size - i - 1);
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size--;
+            }
+        } else if (value != defaultValue) {
+            i = -1 - i;
+            if (size == nodes.length) {
+                int capacity = Math.max(16, size << 1);
+                nodes = grow(nodes, capacity);
+                values = grow(values, capacity);
+            }
+            System.arraycopy(nodes, i, nodes, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            nodes[i] = node;
+            values[i] = value;
+            size++;
+        }
+    }
+
+    /* Index of node in nodes, or -1 - the insertion point. */
+    private int find(int node) {
+        // Appending in node order is the common case.
+        if (size == 0 || nodes[size - 1] < node)
+            return -1 - size;
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (nodes[mid] < node)
+                lo = mid + 1;
+            else if (nodes[mid] > node)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1 - lo;
+    }
+
+    /** Makes the most common value among nodes 0..count-1 the default. */
+    void optimize(int count) {
+        Map<Integer, int[]> tally = new HashMap<Integer, int[]>();
+        tally.put(defaultValue, new int[] { count - size });
+        for (int i = 0; i < size; i++) {
+            int[] n = tally.get(values[i]);
+            if (n == null)
+                tally.put(values[i], n = new int[1]);
+            n[0]++;
+        }
+        int best = defaultValue;
+        int bestCount = -1;
+        for (Map.Entry<Integer, int[]> e : tally.entrySet()) {
+            if (e.getValue()[0] > bestCount) {
+                best = e.getKey().intValue();
+                bestCount = e.getValue()[0];
+            }
+        }
+        int[] newNodes = new int[count - bestCount];
+        int[] newValues = new int[newNodes.length];
+        int k = 0;
+        for (int node = 0, i = 0; node < count; node++) {
+            int value = defaultValue;
+            if (i < size && nodes[i] == node)
+                value = values[i++];
+            if (value != best) {
+                newNodes[k] = node;
+                newValues[k++] = value;
+            }
+        }
+        defaultValue = best;
+        nodes = newNodes;
+        values = newValues;
+        size = k;
+    }
+
+    /** Returns the number of nodes stored apart from the default. */
+    int size() {
+        return size;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(defaultValue);
+        out.writeInt(size);
+        OntologyStore.writeInts(out, nodes, size);
+        OntologyStore.writeInts(out, values, size);
+    }
+
+    /** Replaces the column with one written by {@link #write}. */
+    void read(DataInputStream in) throws IOException {
+        defaultValue = in.readInt();
+        size = in.readInt();
+        if (size < 0)
+            throw new IOException("Bad column size " + size);
+        nodes = new int[size];
+        values = new int[size];
+        OntologyStore.readInts(in, nodes, size);
+        OntologyStore.readInts(in, values, size);
+        for (int i = 1; i < size; i++) {
+            if (nodes[i] <= nodes[i - 1])
+                throw new IOException("Column out of order at " + i);
+        }
+    }
+
+    private static int[] grow(int[] a, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
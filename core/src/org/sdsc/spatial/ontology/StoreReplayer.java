@@ -0,0 +1,64 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * Replays an {@link EditJournal} onto an {@link OntologyStore}, finding
+ * nodes by id, as the editor's JournalReplayer does onto its model; a
+ * record naming a node that is not in the tree is skipped.  This is how
+ * edits are made to a tree away from the editor, so the edits the editor
+ * journals can be made without Swing.
+ */
+public class StoreReplayer implements EditJournal.Target {
+
+    private final OntologyStore store;
+
+    public StoreReplayer(OntologyStore store) {
+        this.store = store;
+    }
+
+    public boolean insert(int parentId, int index, int id, String label,
+            String attributes) {
+        int parent = store.getNode(parentId);
+        if (parent == OntologyStore.NONE || !store.isInTree(parent)
+                || store.getNode(id) != OntologyStore.NONE)
+            return false;
+        int node = store.addNode(id, label);
+        store.setAttributes(node, attributes);
+        store.insertChild(parent, node, clamp(index, store.getChildCount(parent)));
+        return true;
+    }
+
+    public boolean remove(int id) {
+        int node = store.getNode(id);
+        if (node == OntologyStore.NONE || node == store.getRoot() || !store.isInTree(node))
+            return false;
+        store.remove(node);
+        return true;
+    }
+
+    public boolean move(int id, int parentId, int index) {
+        int node = store.getNode(id);
+        int parent = store.getNode(parentId);
+        if (node == OntologyStore.NONE || parent == OntologyStore.NONE
+                || node == store.getRoot() || !store.isInTree(node)
+                || !store.isInTree(parent) || store.isAncestor(node, parent))
+            return false;
+        store.remove(node);
+        store.insertChild(parent, node, clamp(index, store.getChildCount(parent)));
+        return true;
+    }
+
+    public boolean rename(int id, String label) {
+        int node = store.getNode(id);
+        if (node == OntologyStore.NONE || !store.isInTree(node))
+            return false;
+        // Columns stored as copies of the label would follow it; a rename leaves them.
+        String attributes = store.getAttributes(node);
+        store.setLabel(node, label);
+        store.setAttributes(node, attributes);
+        return true;
+    }
+
+    private static int clamp(int index, int count) {
+        return index < 0 ? 0 : Math.min(index, count);
+    }
+}
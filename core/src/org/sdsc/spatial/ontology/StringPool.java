@@ -0,0 +1,84 @@
+package org.sdsc.spatial.ontology;
+
+/**
+ * A table of distinct strings, each stored once and referred to by an int.
+ * <p>
+ * Index 0 is always the empty string.  Strings are never removed, so an
+ * index stays valid for the life of the pool.  Lookups go through an open
+ * addressed table of ints rather than a HashMap, which would cost an entry
+ * object per string.
+ */
+public class StringPool {
+
+    private String[] strings = new String[1024];
+    private int size;
+
+    /* Index + 1 of the string hashed to each position, 0 if free. */
+    private int[] table = new int[2048];
+
+    public StringPool() {
+        add("");
+    }
+
+    /** Returns the index of s, adding it to the pool if it is new. */
+    public int add(String s) {
+        int p = find(s);
+        if (table[p] != 0)
+            return table[p] - 1;
+        if (size == strings.length) {
+            String[] grown = new String[size << 1];
+            System.arraycopy(strings, 0, grown, 0, size);
+            strings = grown;
+        }
+        strings[size] = s;
+        table[p] = ++size;
+        if (size << 1 > table.length)
+            rehash();
+        return size - 1;
+    }
+
+    /** Returns the index of s, or -1 if it is not in the pool. */
+    public int indexOf(String s) {
+        return table[find(s)] - 1;
+    }
+
+    /* Position of s in the table, or of the free slot where it would go. */
+    private int find(String s) {
+        int mask = table.length - 1;
+        int p = mix(s.hashCode()) & mask;
+        for (;;) {
+            int i = table[p];
+            if (i == 0 || strings[i - 1].equals(s))
+                return p;
+            p = (p + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        table = new int[table.length << 1];
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int p = mix(strings[i].hashCode()) & mask;
+            while (table[p] != 0)
+                p = (p + 1) & mask;
+            table[p] = i + 1;
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns the string at index i. */
+    public String get(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("No string " + i + " in pool of " + size);
+        return strings[i];
+    }
+
+    /** Returns the number of strings, counting the empty string. */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,107 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AutosaverTest {
+
+    private File source;
+    private File recovery;
+
+    @Before
+    public void writeSource() throws IOException {
+        source = TestTrees.file(TestTrees.tempDir(), "tree.stc");
+        File dir = TestTrees.tempDir();
+        recovery = TestTrees.file(dir, "tree.stc");
+        TestTrees.file(dir, "tree.stc" + Autosaver.DECLINED_SUFFIX);
+        OntologyBatch.write(TestTrees.small(), source);
+    }
+
+    /* Edits the tree of source under an autosaver, which is closed once it has written it. */
+    private Autosaver editAndClose() throws IOException {
+        OntologyStore store = OntologyStore.read(source.toURI().toURL());
+        long hash = ContentHash.of(store);
+        OntologyVersions versions = new OntologyVersions(PersistentOntology.of(store));
+        Autosaver autosaver = new Autosaver(recovery);
+        autosaver.watch(versions, store.getProperties(), hash, null);
+        // After watch, so the rename below is written whenever it lands.
+        autosaver.saved(hash, source);
+        versions.rename(2, "A one");
+        autosaver.close(10000);
+        return autosaver;
+    }
+
+    @Test
+    public void recoveryNamesItsSource() throws IOException {
+        Autosaver autosaver = editAndClose();
+        assertTrue(recovery.isFile());
+        Map<String, String> properties = Autosaver.readProperties(recovery);
+        assertEquals(source.getAbsolutePath(), properties.get(Autosaver.SOURCE));
+        assertEquals(String.valueOf(source.length()), properties.get(Autosaver.SOURCE_SIZE));
+        assertTrue(autosaver.hasRecovery(source));
+        assertFalse(autosaver.hasRecovery(null));
+        assertFalse(autosaver.hasRecovery(recovery));
+
+        OntologyStore restored = OntologyStore.read(recovery.toURI().toURL());
+        assertEquals("A one", restored.getLabel(restored.getNode(2)));
+    }
+
+    @Test
+    public void recoveryOfAChangedSourceIsNotOffered() throws IOException {
+        Autosaver autosaver = editAndClose();
+        source.setLastModified(source.lastModified() + 2000);
+        assertFalse(autosaver.hasRecovery(source));
+    }
+
+    @Test
+    public void onlyRecoveriesOfUnchangedSourcesAreFound() throws IOException {
+        editAndClose();
+        File dir = recovery.getParentFile();
+        assertEquals(Collections.singletonList(recovery.getAbsoluteFile()),
+                Autosaver.findRecoveries(dir));
+        source.setLastModified(source.lastModified() + 2000);
+        assertTrue(Autosaver.findRecoveries(dir).isEmpty());
+    }
+
+    @Test
+    public void declinedRecoveryIsKeptButNotFound() throws IOException {
+        editAndClose();
+        Autosaver.decline(recovery);
+        assertFalse(recovery.exists());
+        assertTrue(new File(recovery.getPath() + Autosaver.DECLINED_SUFFIX).isFile());
+        assertTrue(Autosaver.findRecoveries(recovery.getParentFile()).isEmpty());
+    }
+
+    @Test
+    public void newFilesAreNotHandedOutTwice() throws IOException {
+        File dir = TestTrees.tempDir();
+        File a = Autosaver.newFile(dir, "other.stc");
+        File b = Autosaver.newFile(dir, "other");
+        assertEquals("other.stc", a.getName());
+        assertEquals("other-2.stc", b.getName());
+        new Autosaver(a).close(1000);
+        assertEquals(a, Autosaver.newFile(dir, "other"));
+    }
+
+    @Test
+    public void removeSourceLeavesTheOtherProperties() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("caption", "Small");
+        properties.put(Autosaver.SOURCE, "/tmp/x.stc");
+        properties.put(Autosaver.SOURCE_SIZE, "1");
+        properties.put(Autosaver.SOURCE_MODIFIED, "2");
+        Autosaver.removeSource(properties);
+        assertEquals(1, properties.size());
+        assertEquals("Small", properties.get("caption"));
+    }
+}
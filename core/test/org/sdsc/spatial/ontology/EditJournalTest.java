@@ -0,0 +1,236 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EditJournalTest {
+
+    private File base;
+    private File journalFile;
+
+    @Before
+    public void writeBase() throws IOException {
+        File dir = TestTrees.tempDir();
+        base = TestTrees.file(dir, "tree.stc");
+        journalFile = TestTrees.file(dir, "tree.stc" + EditJournal.SUFFIX);
+        TestTrees.file(dir, "tree.stc.journal.old");
+        TestTrees.file(dir, "tree.stc.journal.stale");
+        OntologyBatch.write(TestTrees.small(), base);
+    }
+
+    private OntologyStore readBase() throws IOException {
+        return OntologyStore.read(base.toURI().toURL());
+    }
+
+    /* Opens the journal onto a fresh copy of the base, which it returns in tree[0]. */
+    private EditJournal open(OntologyStore[] tree) throws IOException {
+        tree[0] = readBase();
+        return EditJournal.open(base, new StoreReplayer(tree[0]));
+    }
+
+    private static void truncate(File f, int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void editsAreReplayedOnOpen() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        assertEquals(0, journal.getReplayedCount());
+        journal.insert(1, 0, 6, "A0");
+        journal.rename(5, "B one");
+        journal.move(3, 4, 1);
+        journal.remove(2);
+        journal.close();
+
+        OntologyStore expected = readBase();
+        StoreReplayer edits = new StoreReplayer(expected);
+        edits.insert(1, 0, 6, "A0", null);
+        edits.rename(5, "B one");
+        edits.move(3, 4, 1);
+        edits.remove(2);
+
+        journal = open(tree);
+        assertEquals(4, journal.getReplayedCount());
+        assertEquals(ContentHash.of(expected), ContentHash.of(tree[0]));
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndAppendingGoesOn() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "First");
+        journal.rename(3, "Second");
+        journal.close();
+        truncate(journalFile, 3);
+
+        journal = open(tree);
+        assertEquals(1, journal.getReplayedCount());
+        assertEquals("First", tree[0].getLabel(tree[0].getNode(2)));
+        assertEquals("A2", tree[0].getLabel(tree[0].getNode(3)));
+        journal.rename(5, "Third");
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(2, journal.getReplayedCount());
+        assertEquals("Third", tree[0].getLabel(tree[0].getNode(5)));
+        journal.close();
+    }
+
+    @Test
+    public void batchIsReplayedWhole() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.beginBatch();
+        journal.insert(0, 2, 6, "C");
+        journal.insert(6, 0, 7, "D");
+        journal.endBatch();
+        journal.rename(2, "After");
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(3, journal.getReplayedCount());
+        assertEquals("D", tree[0].getLabel(tree[0].getNode(7)));
+        assertEquals("After", tree[0].getLabel(tree[0].getNode(2)));
+        journal.close();
+    }
+
+    @Test
+    public void tornBatchIsDroppedWhole() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "Before");
+        journal.beginBatch();
+        journal.insert(0, 2, 6, "C");
+        journal.insert(6, 0, 7, "D");
+        journal.endBatch();
+        journal.close();
+        truncate(journalFile, 3);
+
+        journal = open(tree);
+        assertEquals(1, journal.getReplayedCount());
+        assertEquals("Before", tree[0].getLabel(tree[0].getNode(2)));
+        assertEquals(-1, tree[0].getNode(6));
+        assertEquals(-1, tree[0].getNode(7));
+        journal.close();
+    }
+
+    @Test
+    public void unfinishedBatchIsNotWritten() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.beginBatch();
+        journal.insert(0, 2, 6, "C");
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(0, journal.getReplayedCount());
+        journal.close();
+    }
+
+    @Test
+    public void journalOfAChangedBaseIsSetAside() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "First");
+        journal.close();
+        OntologyStore other = TestTrees.small();
+        other.setLabel(other.getRoot(), "Other");
+        OntologyBatch.write(other, base);
+        base.setLastModified(base.lastModified() + 2000);
+
+        journal = open(tree);
+        assertEquals(0, journal.getReplayedCount());
+        assertEquals("A1", tree[0].getLabel(tree[0].getNode(2)));
+        assertTrue(new File(base.getPath() + ".journal.stale").isFile());
+        journal.close();
+    }
+
+    @Test
+    public void compactionCutShortBeforeTheBaseIsWritten() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "Before");
+        journal.startCompaction();
+        journal.rename(3, "During");
+        // A crash: the base file was never rewritten.
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(2, journal.getReplayedCount());
+        assertEquals("Before", tree[0].getLabel(tree[0].getNode(2)));
+        assertEquals("During", tree[0].getLabel(tree[0].getNode(3)));
+        assertFalse(journal.isCompacting());
+        journal.close();
+    }
+
+    @Test
+    public void compactionCutShortAfterTheBaseIsWritten() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "Before");
+        journal.startCompaction();
+        OntologyStore copy = tree[0];
+        new StoreReplayer(copy).rename(2, "Before");
+        journal.rename(3, "During");
+        OntologyBatch.write(copy, base);
+        base.setLastModified(base.lastModified() + 2000);
+        // A crash before finishCompaction: the old records are in the base now.
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(1, journal.getReplayedCount());
+        assertEquals("Before", tree[0].getLabel(tree[0].getNode(2)));
+        assertEquals("During", tree[0].getLabel(tree[0].getNode(3)));
+        journal.close();
+    }
+
+    @Test
+    public void finishedCompactionKeepsOnlyTheNewRecords() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "Before");
+        journal.startCompaction();
+        OntologyStore copy = readBase();
+        new StoreReplayer(copy).rename(2, "Before");
+        journal.rename(3, "During");
+        OntologyBatch.write(copy, base);
+        journal.finishCompaction();
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(1, journal.getReplayedCount());
+        assertEquals("Before", tree[0].getLabel(tree[0].getNode(2)));
+        assertEquals("During", tree[0].getLabel(tree[0].getNode(3)));
+        journal.close();
+    }
+
+    @Test
+    public void abortedCompactionPutsTheRecordsBack() throws IOException {
+        OntologyStore[] tree = new OntologyStore[1];
+        EditJournal journal = open(tree);
+        journal.rename(2, "Before");
+        journal.startCompaction();
+        journal.rename(3, "During");
+        journal.abortCompaction();
+        journal.close();
+
+        journal = open(tree);
+        assertEquals(2, journal.getReplayedCount());
+        journal.close();
+    }
+}
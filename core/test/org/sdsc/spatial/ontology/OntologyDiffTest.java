@@ -0,0 +1,62 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OntologyDiffTest {
+
+    private static List<String> changes(OntologyStore oldStore, OntologyStore newStore) {
+        List<String> found = new ArrayList<String>();
+        for (OntologyDiff.Change c : new OntologyDiff(oldStore, newStore).getChanges())
+            found.add(c.toString());
+        Collections.sort(found);
+        return found;
+    }
+
+    @Test
+    public void sameTreeHasNoChanges() {
+        assertTrue(new OntologyDiff(TestTrees.small(), TestTrees.small()).getChanges().isEmpty());
+    }
+
+    @Test
+    public void eachKindOfChangeIsFound() {
+        OntologyStore newStore = TestTrees.small();
+        StoreReplayer edits = new StoreReplayer(newStore);
+        edits.insert(0, 2, 6, "C", null);
+        edits.insert(6, 0, 7, "C1", null);
+        edits.remove(3);
+        edits.move(2, 4, 0);
+        edits.rename(5, "B one");
+
+        OntologyDiff diff = new OntologyDiff(TestTrees.small(), newStore);
+        int[] counts = new int[4];
+        for (OntologyDiff.Change c : diff.getChanges())
+            counts[c.getType()]++;
+        // The new subtree C is one change, not two.
+        assertEquals(1, counts[OntologyDiff.ADDED]);
+        assertEquals(1, counts[OntologyDiff.REMOVED]);
+        assertEquals(1, counts[OntologyDiff.MOVED]);
+        assertEquals(1, counts[OntologyDiff.RENAMED]);
+        assertEquals(4, diff.getChanges().size());
+    }
+
+    @Test
+    public void nodesWithNewIdsAreMatchedByPath() {
+        OntologyStore newStore = TestTrees.small();
+        newStore.setId(TestTrees.find(newStore, "A2"), 100);
+        assertTrue(changes(TestTrees.small(), newStore).isEmpty());
+    }
+
+    @Test
+    public void reorderingSiblingsIsNoChange() {
+        OntologyStore newStore = TestTrees.small();
+        new StoreReplayer(newStore).move(3, 1, 0);
+        assertTrue(changes(TestTrees.small(), newStore).isEmpty());
+    }
+}
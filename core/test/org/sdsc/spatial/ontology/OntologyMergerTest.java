@@ -0,0 +1,73 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OntologyMergerTest {
+
+    private static final List<URL> URLS;
+
+    static {
+        try {
+            URLS = Arrays.asList(new URL("file:/first.stc"), new URL("file:/second.stc"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void matchingPathsAreMergedOnce() {
+        OntologyStore first = TestTrees.small();
+        OntologyStore second = TestTrees.small();
+        new StoreReplayer(second).insert(1, 2, 6, "A3", null);
+        OntologyMerger merger = new OntologyMerger(1);
+        OntologyStore merged = merger.merge(URLS, new OntologyStore[] { first, second }, "All");
+        // The new root, one copy of the six nodes, and A3.
+        assertEquals(8, merged.getNodeCount());
+        assertEquals(6, merger.getMatchedCount());
+        assertTrue(merger.getConflicts().isEmpty());
+        assertEquals("All", merged.getLabel(merged.getRoot()));
+    }
+
+    @Test
+    public void differentColumnsAreAConflict() {
+        OntologyStore first = TestTrees.small();
+        OntologyStore second = TestTrees.small();
+        first.setAttributes(TestTrees.find(first, "A1"), ",,0.5");
+        second.setAttributes(TestTrees.find(second, "A1"), ",,0.9");
+        OntologyMerger merger = new OntologyMerger(1);
+        OntologyStore merged = merger.merge(URLS, new OntologyStore[] { first, second }, "All");
+        assertEquals(7, merged.getNodeCount());
+        assertEquals(1, merger.getConflicts().size());
+        OntologyMerger.Conflict c = merger.getConflicts().get(0);
+        assertTrue(c.getPath(), c.getPath().endsWith("A1"));
+        assertEquals(URLS.get(0), c.getFirst());
+        assertEquals(URLS.get(1), c.getOther());
+        // The first file's columns are kept.
+        assertEquals(",,0.5", merged.getAttributes(TestTrees.find(merged, "A1")));
+    }
+
+    @Test
+    public void filesAreReadAndMerged() throws IOException {
+        File dir = TestTrees.tempDir();
+        File a = TestTrees.file(dir, "a.stc");
+        File b = TestTrees.file(dir, "b.stc");
+        OntologyBatch.write(TestTrees.small(), a);
+        OntologyStore other = TestTrees.small();
+        other.setLabel(other.getRoot(), "Other");
+        OntologyBatch.write(other, b);
+        OntologyMerger merger = new OntologyMerger(2);
+        OntologyStore merged = merger.merge(Arrays.asList(a.toURI().toURL(), b.toURI().toURL()), "All");
+        // Different roots, so nothing matches.
+        assertEquals(13, merged.getNodeCount());
+        assertEquals(0, merger.getMatchedCount());
+    }
+}
@@ -0,0 +1,138 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OntologyServerTest {
+
+    private OntologyServer server;
+
+    /** The status and body of an answer. */
+    private static class Answer {
+
+        final int code;
+        final String body;
+        final String version;
+
+        Answer(int code, String body, String version) {
+            this.code = code;
+            this.body = body;
+            this.version = version;
+        }
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new OntologyServer(0, 2);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private Answer get(String request) throws IOException {
+        return ask("GET", request);
+    }
+
+    private Answer ask(String method, String request) throws IOException {
+        URL url = new URL("http://localhost:" + server.getPort() + request);
+        HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        c.setRequestMethod(method);
+        int code = c.getResponseCode();
+        InputStream in = code < 400 ? c.getInputStream() : c.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) >= 0;)
+                body.write(buf, 0, n);
+            in.close();
+        }
+        return new Answer(code, body.toString("UTF-8"), c.getHeaderField("X-Ontology-Version"));
+    }
+
+    @Test
+    public void nothingPublishedIsUnavailable() throws IOException {
+        assertEquals(503, get("/node").code);
+    }
+
+    @Test
+    public void endpointsAnswerFromThePublishedTree() throws IOException {
+        server.publish(TestTrees.small());
+
+        Answer a = get("/node?node=_ST_2");
+        assertEquals(200, a.code);
+        assertEquals("1", a.version);
+        assertTrue(a.body, a.body.contains("\"id\":\"_ST_2\",\"label\":\"A1\""));
+        assertTrue(a.body, a.body.contains("\"path\":\"/A/A1\""));
+
+        a = get("/children");
+        assertEquals(200, a.code);
+        assertTrue(a.body, a.body.contains("\"label\":\"Root\""));
+        assertTrue(a.body, a.body.indexOf("\"label\":\"A\"") < a.body.indexOf("\"label\":\"B\""));
+        assertTrue(a.body, a.body.contains("\"childCount\":2"));
+
+        a = get("/ancestors?node=/B/B1");
+        assertEquals(200, a.code);
+        assertTrue(a.body, a.body.indexOf("\"label\":\"Root\"") < a.body.indexOf("\"label\":\"B\""));
+
+        a = get("/search?q=a");
+        assertEquals(200, a.code);
+        assertTrue(a.body, a.body.contains("\"label\":\"A1\""));
+        assertTrue(a.body, a.body.contains("\"label\":\"A2\""));
+        assertFalse(a.body, a.body.contains("\"label\":\"B1\""));
+        assertTrue(a.body, a.body.endsWith("\"more\":false}"));
+
+        a = get("/search?q=a&limit=1");
+        assertTrue(a.body, a.body.endsWith("\"more\":true}"));
+
+        a = get("/subtree?node=_ST_1");
+        assertEquals(200, a.code);
+        assertTrue(a.body, a.body.contains("\"label\":\"A2\""));
+        assertFalse(a.body, a.body.contains("\"label\":\"B\""));
+        assertTrue(a.body, a.body.endsWith("\"truncated\":false}"));
+
+        a = get("/subtree?depth=1");
+        assertEquals(200, a.code);
+        assertTrue(a.body, a.body.contains("\"label\":\"A\",\"childCount\":2}"));
+        assertFalse(a.body, a.body.contains("\"label\":\"A1\""));
+        assertTrue(a.body, a.body.endsWith("\"truncated\":true}"));
+
+        a = get("/subtree?node=_ST_2&depth=0");
+        assertTrue(a.body, a.body.contains("\"childCount\":0}"));
+        assertTrue(a.body, a.body.endsWith("\"truncated\":false}"));
+    }
+
+    @Test
+    public void errorsHaveTheirCodes() throws IOException {
+        server.publish(TestTrees.small());
+        assertEquals(404, get("/node?node=_ST_99").code);
+        assertEquals(404, get("/node?node=/C").code);
+        assertEquals(400, get("/subtree?depth=-1").code);
+        assertEquals(400, get("/search?q=a&limit=x").code);
+        assertEquals(405, ask("DELETE", "/node").code);
+    }
+
+    @Test
+    public void laterPublishIsServed() throws IOException {
+        server.publish(TestTrees.small());
+        OntologyStore renamed = TestTrees.small();
+        renamed.setLabel(TestTrees.find(renamed, "A1"), "A one");
+        server.publish(renamed);
+        Answer a = get("/node?node=_ST_2");
+        assertEquals("2", a.version);
+        assertTrue(a.body, a.body.contains("\"label\":\"A one\""));
+    }
+}
@@ -0,0 +1,69 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class OntologySnapshotTest {
+
+    private static byte[] write(OntologyStore store) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new OntologySnapshot("/data/tree.stc", 1234, 5678, "abc", store).write(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readGivesBackTheStoreAndSource() throws IOException {
+        OntologyStore store = new OntologyGenerator(2000).generate();
+        OntologySnapshot read = OntologySnapshot.read(new ByteArrayInputStream(write(store)));
+        assertEquals("/data/tree.stc", read.getSourcePath());
+        assertEquals(1234, read.getSourceSize());
+        assertEquals(5678, read.getSourceModified());
+        assertEquals("abc", read.getSourceHash());
+        assertEquals(store.getNodeCount(), read.getStore().getNodeCount());
+        assertEquals(ContentHash.of(store), ContentHash.of(read.getStore()));
+    }
+
+    @Test
+    public void headerCanBeReadAlone() throws IOException {
+        OntologySnapshot header = OntologySnapshot.readHeader(
+                new ByteArrayInputStream(write(TestTrees.small())));
+        assertEquals("/data/tree.stc", header.getSourcePath());
+        assertEquals(null, header.getStore());
+    }
+
+    @Test
+    public void corruptSnapshotIsRefused() throws IOException {
+        byte[] b = write(new OntologyGenerator(2000).generate());
+        // A flipped bit anywhere in the body is caught by the checksum, if
+        // the structure checks do not catch it first.
+        for (int i = 40; i < b.length; i += b.length / 7) {
+            byte[] bad = b.clone();
+            bad[i] ^= 0x10;
+            try {
+                OntologySnapshot.read(new ByteArrayInputStream(bad));
+                fail("Corrupt byte " + i + " was not noticed");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRefused() throws IOException {
+        byte[] b = write(TestTrees.small());
+        byte[] cut = new byte[b.length - 3];
+        System.arraycopy(b, 0, cut, 0, cut.length);
+        OntologySnapshot.read(new ByteArrayInputStream(cut));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRefused() throws IOException {
+        OntologySnapshot.read(new ByteArrayInputStream("STC=2.0\n[nodes]\n".getBytes("UTF-8")));
+    }
+}
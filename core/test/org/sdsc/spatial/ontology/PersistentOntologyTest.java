@@ -0,0 +1,127 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentOntologyTest {
+
+    @Test
+    public void copyMatchesTheStore() {
+        OntologyStore store = new OntologyGenerator(3000).generate();
+        PersistentOntology v = PersistentOntology.of(store);
+        assertEquals(store.getNodeCount(), v.getNodeCount());
+        assertEquals(ContentHash.of(store), ContentHash.of(v.toStore()));
+    }
+
+    @Test
+    public void editsLeaveEarlierVersionsAlone() {
+        OntologyStore store = TestTrees.small();
+        long hash = ContentHash.of(store);
+        PersistentOntology v0 = PersistentOntology.of(store);
+        PersistentOntology v1 = v0.rename(2, "A one");
+        PersistentOntology v2 = v1.insert(4, 0, 6, "B0", null);
+        PersistentOntology v3 = v2.move(3, 4, 1);
+        PersistentOntology v4 = v3.remove(1);
+
+        assertEquals(hash, ContentHash.of(v0.toStore()));
+        assertEquals("A1", v0.getLabel(2));
+        assertEquals("A one", v1.getLabel(2));
+        assertFalse(v1.contains(6));
+        assertEquals(2, v1.getChildCount(1));
+        assertEquals(1, v3.getChildCount(1));
+        assertEquals(4, v3.getParent(3));
+        assertEquals(1, v2.getParent(3));
+        assertEquals(6, v0.getNodeCount());
+        assertEquals(5, v4.getNodeCount());
+        assertFalse(v4.contains(1));
+        assertFalse(v4.contains(2));
+        assertTrue(v4.contains(3));
+        assertTrue(v3.contains(2));
+    }
+
+    @Test
+    public void editsThatMakeNoSenseChangeNothing() {
+        PersistentOntology v = PersistentOntology.of(TestTrees.small());
+        assertSame(v, v.insert(99, 0, 6, "X", null));
+        assertSame(v, v.insert(0, 0, 2, "Taken", null));
+        assertSame(v, v.remove(0));
+        assertSame(v, v.remove(99));
+        assertSame(v, v.move(1, 2, 0));
+        assertSame(v, v.rename(99, "X"));
+    }
+
+    @Test
+    public void randomEditsMatchTheStore() {
+        OntologyStore store = new OntologyGenerator(2000).generate();
+        OntologyVersions versions = new OntologyVersions(PersistentOntology.of(store));
+        StoreReplayer replayer = new StoreReplayer(store);
+        PersistentOntology first = versions.getCurrent();
+        long firstHash = ContentHash.of(first.toStore());
+        Random random = new Random(7);
+        int max = store.getMaxId();
+        for (int i = 0; i < 3000; i++) {
+            int id = random.nextInt(max + 1);
+            int other = random.nextInt(max + 1);
+            int index = random.nextInt(5);
+            switch (random.nextInt(4)) {
+            case 0:
+                assertEquals(replayer.insert(id, index, ++max, "New " + i, null),
+                        versions.insert(id, index, max, "New " + i, null));
+                break;
+            case 1:
+                assertEquals(replayer.remove(id), versions.remove(id));
+                break;
+            case 2:
+                assertEquals(replayer.move(id, other, index), versions.move(id, other, index));
+                break;
+            default:
+                assertEquals(replayer.rename(id, "Renamed " + i), versions.rename(id, "Renamed " + i));
+            }
+        }
+        assertEquals(store.getNodeCount(), versions.getCurrent().getNodeCount());
+        assertEquals(ContentHash.of(store), ContentHash.of(versions.getCurrent().toStore()));
+        assertEquals(firstHash, ContentHash.of(first.toStore()));
+    }
+
+    @Test
+    public void readersSeeAConsistentVersion() throws InterruptedException {
+        final OntologyVersions versions = new OntologyVersions(PersistentOntology.of(TestTrees.small()));
+        final boolean[] failed = new boolean[1];
+        Thread reader = new Thread() {
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    PersistentOntology v = versions.getCurrent();
+                    // Every child of B knows B as its parent, in any one version.
+                    for (int k = 0; k < v.getChildCount(4); k++) {
+                        if (v.getParent(v.getChild(4, k)) != 4)
+                            failed[0] = true;
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 20000; i++) {
+            versions.move(2, i % 2 == 0 ? 4 : 1, 0);
+            versions.rename(5, "B1 " + i);
+        }
+        reader.join();
+        assertFalse(failed[0]);
+    }
+
+    @Test
+    public void largeIdsGrowTheTrie() {
+        PersistentOntology v = PersistentOntology.of(TestTrees.small());
+        v = v.insert(0, 0, Integer.MAX_VALUE, "Last", null);
+        v = v.insert(0, 0, 1 << 20, "Middle", null);
+        assertEquals("Last", v.getLabel(Integer.MAX_VALUE));
+        assertEquals("Middle", v.getLabel(1 << 20));
+        assertEquals("A1", v.getLabel(2));
+        assertEquals(Integer.MAX_VALUE, v.getMaxId());
+    }
+}
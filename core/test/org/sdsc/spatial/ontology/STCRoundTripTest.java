@@ -0,0 +1,70 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class STCRoundTripTest {
+
+    @Test
+    public void generatedTreeSurvivesWriteAndRead() throws IOException {
+        OntologyGenerator generator = new OntologyGenerator(5000);
+        generator.setPowerLaw(true);
+        generator.setDuplicateRate(0.05);
+        assertRoundTrip(generator.generate());
+    }
+
+    @Test
+    public void sampleFileSurvivesReadWriteRead() throws IOException {
+        File sample = new File("../res/cuahsitree.stc");
+        if (!sample.isFile())
+            return;
+        OntologyStore store = OntologyStore.read(sample.toURI().toURL());
+        assertRoundTrip(store);
+    }
+
+    @Test
+    public void labelsNeedingEscapesSurvive() throws IOException {
+        OntologyStore store = TestTrees.small();
+        store.setLabel(TestTrees.find(store, "A1"), "Comma, \"quote\" and \\ slash");
+        store.setLabel(TestTrees.find(store, "B1"), "Café 木");
+        store.setLabel(TestTrees.find(store, "A2"), "Two\r\nlines [and] a lone\rreturn");
+        assertRoundTrip(store);
+    }
+
+    /* Writes store, reads it back and writes that again: same hash, same bytes. */
+    private static void assertRoundTrip(OntologyStore store) throws IOException {
+        File dir = TestTrees.tempDir();
+        File first = TestTrees.file(dir, "first.stc");
+        File second = TestTrees.file(dir, "second.stc");
+        OntologyBatch.write(store, first);
+        OntologyStore read = OntologyStore.read(first.toURI().toURL());
+        assertEquals(store.getNodeCount(), read.getNodeCount());
+        assertEquals(ContentHash.of(store), ContentHash.of(read));
+        OntologyBatch.write(read, second);
+        assertArrayEquals(bytes(first), bytes(second));
+    }
+
+    static byte[] bytes(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                int r = in.read(b, n, b.length - n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,54 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Small trees and files for the tests. */
+final class TestTrees {
+
+    private TestTrees() {
+    }
+
+    /**
+     * Root, with children A (under it A1 and A2) and B (under it B1),
+     * ids 0 to 5 in that order.
+     */
+    static OntologyStore small() {
+        OntologyStore store = new OntologyStore();
+        int root = store.addNode(0, "Root");
+        store.setRoot(root);
+        int a = store.addNode(1, "A");
+        store.addChild(root, a);
+        store.addChild(a, store.addNode(2, "A1"));
+        store.addChild(a, store.addNode(3, "A2"));
+        int b = store.addNode(4, "B");
+        store.addChild(root, b);
+        store.addChild(b, store.addNode(5, "B1"));
+        return store;
+    }
+
+    /** Returns the node labelled label, which must be in the tree. */
+    static int find(OntologyStore store, String label) {
+        for (int node = 0; node < store.getSlotCount(); node++) {
+            if (store.isInTree(node) && label.equals(store.getLabel(node)))
+                return node;
+        }
+        throw new IllegalArgumentException("No node " + label);
+    }
+
+    /** A temporary directory, removed with its files when the JVM exits. */
+    static File tempDir() throws IOException {
+        File dir = File.createTempFile("ontology", "test");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Cannot create " + dir);
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /** A file in dir that is deleted when the JVM exits. */
+    static File file(File dir, String name) {
+        File f = new File(dir, name);
+        f.deleteOnExit();
+        return f;
+    }
+}
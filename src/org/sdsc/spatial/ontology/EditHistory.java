@@ -0,0 +1,361 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Enumeration;
+
+import javax.swing.tree.TreeNode;
+import javax.swing.undo.AbstractUndoableEdit;
+
+import com.inxight.st.StdTreeDataModel;
+import com.inxight.st.StdTreeDataNode;
+
+/**
+ * Undo and redo for edits to a StarTree model.
+ * <p>
+ * Edits are made through the history, which applies them and keeps only
+ * what changed: the node, the parent and index it came from, or its old
+ * label.  A removed subtree is kept as it was taken out, not copied, and
+ * put back in one step.  A move, undone or not, goes through
+ * {@link OntologyTreeModel#moveNode} where it can, so its cost does not
+ * depend on the size of the subtree; a rename is reported with
+ * {@link OntologyTreeModel#nodeChanged}.
+ * <p>
+ * Each edit is charged an estimate of the memory it keeps alive, including
+ * the nodes of a removed subtree, and the oldest edits are forgotten once
+ * the total passes the limit.  The {@link Listener} hears of every change
+ * made, whether by an edit or by undoing or redoing one, in the same terms
+ * as the edits themselves, which is what the edit journal needs.
+ */
+public class EditHistory {
+
+    /** Told of each change the history makes to a model, after it is made. */
+    public interface Listener {
+
+        void inserted(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node);
+
+        void removed(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node);
+
+        void moved(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node);
+
+        void renamed(StdTreeDataModel model, StdTreeDataNode node);
+    }
+
+    /* Rough sizes: an edit and its fields, and a node with its text. */
+    private static final int EDIT_BYTES = 64;
+    private static final int NODE_BYTES = 160;
+
+    private final ArrayDeque<TreeEdit> undo = new ArrayDeque<TreeEdit>();
+    private final ArrayDeque<TreeEdit> redo = new ArrayDeque<TreeEdit>();
+    private final long limit;
+    private long bytes;
+    private Listener listener;
+
+    /** Keeps edits up to a sixteenth of the heap. */
+    public EditHistory() {
+        this(Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    /** Keeps edits up to about limit bytes; the latest edit is always kept. */
+    public EditHistory(long limit) {
+        this.limit = limit;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Adds node, with no parent of its own, as the index-th child of parent. */
+    public void insert(StdTreeDataModel model, StdTreeDataNode parent,
+            StdTreeDataNode node, int index) {
+        doInsert(model, parent, node, index);
+        add(new Insert(model, parent, node, index));
+    }
+
+    /** Removes node and its subtree. */
+    public void remove(StdTreeDataModel model, StdTreeDataNode node) {
+        StdTreeDataNode parent = (StdTreeDataNode) node.getParent();
+        if (parent == null)
+            return;
+        int index = parent.getIndex(node);
+        doRemove(model, node);
+        add(new Remove(model, parent, node, index, countNodes(node)));
+    }
+
+    /**
+     * Moves node and its subtree to be the index-th child of parent, index
+     * counting the children parent has once node is taken out.
+     */
+    public void move(StdTreeDataModel model, StdTreeDataNode node,
+            StdTreeDataNode parent, int index) {
+        StdTreeDataNode from = (StdTreeDataNode) node.getParent();
+        if (from == null)
+            return;
+        int fromIndex = from.getIndex(node);
+        doMove(model, node, parent, index);
+        add(new Move(model, node, from, fromIndex, parent, index));
+    }
+
+    /** Gives node a new label. */
+    public void rename(StdTreeDataModel model, StdTreeDataNode node, String text) {
+        String old = node.getText();
+        if (text == null ? old == null : text.equals(old))
+            return;
+        doRename(model, node, text);
+        add(new Rename(model, node, old, text));
+    }
+
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /** Returns the menu text for undo, such as "Undo Rename". */
+    public String getUndoPresentationName() {
+        return canUndo() ? undo.peek().getUndoPresentationName() : "Undo";
+    }
+
+    public String getRedoPresentationName() {
+        return canRedo() ? redo.peek().getRedoPresentationName() : "Redo";
+    }
+
+    public void undo() {
+        TreeEdit edit = undo.pop();
+        edit.undo();
+        redo.push(edit);
+    }
+
+    public void redo() {
+        TreeEdit edit = redo.pop();
+        edit.redo();
+        undo.push(edit);
+    }
+
+    /** Forgets every edit, as when another tree is loaded. */
+    public void discardAllEdits() {
+        undo.clear();
+        redo.clear();
+        bytes = 0;
+    }
+
+    /** Returns the estimated memory the kept edits hold on to. */
+    public long getSize() {
+        return bytes;
+    }
+
+    public int getEditCount() {
+        return undo.size() + redo.size();
+    }
+
+    private void add(TreeEdit edit) {
+        while (!redo.isEmpty())
+            bytes -= redo.pop().size;
+        undo.push(edit);
+        bytes += edit.size;
+        while (bytes > limit && undo.size() > 1)
+            bytes -= undo.removeLast().size;
+    }
+
+    /*
+     * Expands parent if it is in a mapped file.  It was expanded when the
+     * edit was first made, so this never has to read the file.
+     */
+    private static void expand(StdTreeDataModel model, StdTreeDataNode parent) {
+        try {
+            MappedOntologyModel.expand(model, parent);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void doInsert(StdTreeDataModel model, StdTreeDataNode parent,
+            StdTreeDataNode node, int index) {
+        expand(model, parent);
+        model.insertChildAt(parent, node, index);
+        if (listener != null)
+            listener.inserted(model, parent, node);
+    }
+
+    private void doRemove(StdTreeDataModel model, StdTreeDataNode node) {
+        StdTreeDataNode parent = (StdTreeDataNode) node.getParent();
+        model.removeNode(node);
+        if (listener != null)
+            listener.removed(model, parent, node);
+    }
+
+    private void doMove(StdTreeDataModel model, StdTreeDataNode node,
+            StdTreeDataNode parent, int index) {
+        expand(model, parent);
+        if (model instanceof OntologyTreeModel) {
+            ((OntologyTreeModel) model).moveNode(node, parent, index);
+        } else {
+            model.removeNode(node);
+            model.insertChildAt(parent, node, index);
+        }
+        if (listener != null)
+            listener.moved(model, parent, node);
+    }
+
+    private void doRename(StdTreeDataModel model, StdTreeDataNode node, String text) {
+        node.setText(text);
+        if (model instanceof OntologyTreeModel)
+            ((OntologyTreeModel) model).nodeChanged(node);
+        else
+            model.nodeStructureChanged(node);
+        if (listener != null)
+            listener.renamed(model, node);
+    }
+
+    /* The nodes a removed subtree keeps in memory. */
+    private static int countNodes(TreeNode top) {
+        int count = 0;
+        ArrayList<TreeNode> stack = new ArrayList<TreeNode>();
+        stack.add(top);
+        while (!stack.isEmpty()) {
+            TreeNode n = stack.remove(stack.size() - 1);
+            count++;
+            for (Enumeration<?> e = n.children(); e != null && e.hasMoreElements();)
+                stack.add((TreeNode) e.nextElement());
+        }
+        return count;
+    }
+
+    private abstract static class TreeEdit extends AbstractUndoableEdit {
+
+        final StdTreeDataModel model;
+        final long size;
+
+        TreeEdit(StdTreeDataModel model, long size) {
+            this.model = model;
+            this.size = size;
+        }
+    }
+
+    private class Insert extends TreeEdit {
+
+        private final StdTreeDataNode parent;
+        private final StdTreeDataNode node;
+        private final int index;
+
+        Insert(StdTreeDataModel model, StdTreeDataNode parent,
+                StdTreeDataNode node, int index) {
+            super(model, EDIT_BYTES + NODE_BYTES);
+            this.parent = parent;
+            this.node = node;
+            this.index = index;
+        }
+
+        public String getPresentationName() {
+            return "Add Node";
+        }
+
+        public void undo() {
+            super.undo();
+            doRemove(model, node);
+        }
+
+        public void redo() {
+            super.redo();
+            doInsert(model, parent, node, index);
+        }
+    }
+
+    private class Remove extends TreeEdit {
+
+        private final StdTreeDataNode parent;
+        private final StdTreeDataNode node;
+        private final int index;
+
+        Remove(StdTreeDataModel model, StdTreeDataNode parent,
+                StdTreeDataNode node, int index, int nodes) {
+            super(model, EDIT_BYTES + (long) nodes * NODE_BYTES);
+            this.parent = parent;
+            this.node = node;
+            this.index = index;
+        }
+
+        public String getPresentationName() {
+            return "Remove Node";
+        }
+
+        public void undo() {
+            super.undo();
+            doInsert(model, parent, node, index);
+        }
+
+        public void redo() {
+            super.redo();
+            doRemove(model, node);
+        }
+    }
+
+    private class Move extends TreeEdit {
+
+        private final StdTreeDataNode node;
+        private final StdTreeDataNode from;
+        private final int fromIndex;
+        private final StdTreeDataNode to;
+        private final int toIndex;
+
+        Move(StdTreeDataModel model, StdTreeDataNode node, StdTreeDataNode from,
+                int fromIndex, StdTreeDataNode to, int toIndex) {
+            super(model, EDIT_BYTES);
+            this.node = node;
+            this.from = from;
+            this.fromIndex = fromIndex;
+            this.to = to;
+            this.toIndex = toIndex;
+        }
+
+        public String getPresentationName() {
+            return "Move";
+        }
+
+        public void undo() {
+            super.undo();
+            doMove(model, node, from, fromIndex);
+        }
+
+        public void redo() {
+            super.redo();
+            doMove(model, node, to, toIndex);
+        }
+    }
+
+    private class Rename extends TreeEdit {
+
+        private final StdTreeDataNode node;
+        private final String oldText;
+        private final String newText;
+
+        Rename(StdTreeDataModel model, StdTreeDataNode node, String oldText,
+                String newText) {
+            super(model, EDIT_BYTES + 80 + 2L * (length(oldText) + length(newText)));
+            this.node = node;
+            this.oldText = oldText;
+            this.newText = newText;
+        }
+
+        public String getPresentationName() {
+            return "Rename";
+        }
+
+        public void undo() {
+            super.undo();
+            doRename(model, node, oldText);
+        }
+
+        public void redo() {
+            super.redo();
+            doRename(model, node, newText);
+        }
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
@@ -0,0 +1,80 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.IOException;
+
+import javax.swing.tree.TreeNode;
+
+/**
+ * Replays an {@link EditJournal} onto an {@link OntologyTreeModel}, finding
+ * nodes by id.  Edits go through the model, so its index and any views keep
+ * up; a record naming a node that is not in the tree, or one whose parent
+ * cannot be read from a mapped file, is skipped.
+ */
+public class JournalReplayer implements EditJournal.Target {
+
+    private final OntologyTreeModel model;
+
+    public JournalReplayer(OntologyTreeModel model) {
+        this.model = model;
+    }
+
+    public boolean insert(int parentId, int index, int id, String label,
+            String attributes) {
+        OntologyNode parent = model.getNode(parentId);
+        if (parent == null || model.getNode(id) != null || !expand(parent))
+            return false;
+        model.insertChildAt(parent, new OntologyNode(id, label, attributes),
+                clamp(index, parent.getChildCount()));
+        return true;
+    }
+
+    public boolean remove(int id) {
+        OntologyNode node = model.getNode(id);
+        if (node == null || node == model.getRoot())
+            return false;
+        model.removeNode(node);
+        return true;
+    }
+
+    public boolean move(int id, int parentId, int index) {
+        OntologyNode node = model.getNode(id);
+        OntologyNode parent = model.getNode(parentId);
+        if (node == null || parent == null || node == model.getRoot()
+                || isAncestor(node, parent) || !expand(parent))
+            return false;
+        int count = parent.getChildCount() - (node.getParent() == parent ? 1 : 0);
+        model.moveNode(node, parent, clamp(index, count));
+        return true;
+    }
+
+    public boolean rename(int id, String label) {
+        OntologyNode node = model.getNode(id);
+        if (node == null)
+            return false;
+        node.setText(label);
+        model.nodeChanged(node);
+        return true;
+    }
+
+    private boolean expand(OntologyNode parent) {
+        try {
+            MappedOntologyModel.expand(model, parent);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int clamp(int index, int count) {
+        return index < 0 ? 0 : Math.min(index, count);
+    }
+
+    /** Returns true if node is descendant or one of its ancestors. */
+    private static boolean isAncestor(TreeNode node, TreeNode descendant) {
+        for (TreeNode n = descendant; n != null; n = n.getParent()) {
+            if (n == node)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.inxight.st.TreeDataNode;
+
+/**
+ * Finds nodes by the start of their labels, ignoring case.
+ * <p>
+ * Labels are kept sorted in a TreeMap, so the nodes whose labels start with
+ * a prefix lie between the prefix and the prefix followed by the highest
+ * char, found in logarithmic time and read off in label order.  The
+ * index is kept up to date one node at a time as nodes are added, removed
+ * and renamed; it remembers the label each node was filed under, so a
+ * renamed node can be taken out of its old place.
+ */
+public class LabelIndex<N extends TreeDataNode> {
+
+    /* Each key maps to its node, or to an ArrayList of the nodes sharing it. */
+    private final TreeMap<String, Object> labels = new TreeMap<String, Object>();
+    private final Map<N, String> keys = new IdentityHashMap<N, String>();
+
+    /** Adds node, or files it again under its current label if it is indexed. */
+    public void add(N node) {
+        String key = fold(node.getText());
+        String old = keys.put(node, key);
+        if (old != null) {
+            if (old.equals(key))
+                return;
+            unfile(old, node);
+        }
+        file(key, node);
+    }
+
+    /** Removes node, if it is indexed. */
+    public boolean remove(N node) {
+        String key = keys.remove(node);
+        if (key == null)
+            return false;
+        unfile(key, node);
+        return true;
+    }
+
+    /** Returns true if node is indexed. */
+    public boolean contains(N node) {
+        return keys.containsKey(node);
+    }
+
+    /**
+     * Returns up to limit nodes whose labels start with prefix, ignoring
+     * case, in label order.
+     */
+    public List<N> find(String prefix, int limit) {
+        List<N> found = new ArrayList<N>();
+        String from = fold(prefix);
+        Map<String, Object> range = labels.subMap(from, from + Character.MAX_VALUE);
+        for (Iterator<Object> i = range.values().iterator();
+                i.hasNext() && found.size() < limit;) {
+            Object o = i.next();
+            if (o instanceof ArrayList) {
+                List<N> same = nodes(o);
+                for (int k = 0; k < same.size() && found.size() < limit; k++)
+                    found.add(same.get(k));
+            } else {
+                found.add(node(o));
+            }
+        }
+        return found;
+    }
+
+    /** Returns the number of indexed nodes. */
+    public int size() {
+        return keys.size();
+    }
+
+    public void clear() {
+        labels.clear();
+        keys.clear();
+    }
+
+    private void file(String key, N node) {
+        Object o = labels.get(key);
+        if (o == null) {
+            labels.put(key, node);
+        } else if (o instanceof ArrayList) {
+            nodes(o).add(node);
+        } else {
+            ArrayList<Object> same = new ArrayList<Object>(2);
+            same.add(o);
+            same.add(node);
+            labels.put(key, same);
+        }
+    }
+
+    private void unfile(String key, N node) {
+        Object o = labels.get(key);
+        if (o == node) {
+            labels.remove(key);
+        } else if (o instanceof ArrayList) {
+            List<N> same = nodes(o);
+            for (int i = 0; i < same.size(); i++) {
+                if (same.get(i) == node) {
+                    same.remove(i);
+                    break;
+                }
+            }
+            if (same.size() == 1)
+                labels.put(key, same.get(0));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private N node(Object o) {
+        return (N) o;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<N> nodes(Object o) {
+        return (List<N>) o;
+    }
+
+    private static String fold(String label) {
+        return label == null ? "" : label.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,169 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import javax.swing.tree.TreeModel;
+
+/**
+ * An {@link OntologyTreeModel} over a {@link MappedSTCFile} that only creates
+ * nodes for the parts of the tree someone has looked at.
+ * <p>
+ * A node's children are read from the file and attached, all at once, the
+ * first time it is expanded: by a JTree through a TreeWillExpandListener,
+ * from the StarTree popup, or when {@link #getNode(int)} needs a node that
+ * is still in the file.  Until then {@link #isLeaf(Object)} answers from the
+ * file's structure, so views still show which nodes can be opened.  Startup
+ * costs one scan of the file, and the heap grows with the number of nodes
+ * that have actually been shown.
+ * <p>
+ * Edits work as usual, but a node should be expanded before children are
+ * added to it or dropped on it, so that the file's children come first;
+ * {@link #expand(TreeModel, Object)} does that for any model.
+ * <p>
+ * A node whose children cannot all be read gets none of them and stays
+ * unexpanded, and the IOException goes to the caller; a tree missing some
+ * of its nodes is never shown, or saved over the file.
+ */
+public class MappedOntologyModel extends OntologyTreeModel {
+
+    private final MappedSTCFile file;
+    private final STCStructure structure;
+    private final BitSet expanded = new BitSet();
+
+    /**
+     * Creates a model showing the root of file and the levels below it, down
+     * to the given depth.
+     */
+    public MappedOntologyModel(MappedSTCFile file, int depth) throws IOException {
+        super(readNode(file, 0));
+        this.file = file;
+        this.structure = file.getStructure();
+        reserveIds(structure.getMaxId());
+        getProperties().putAll(file.getProperties());
+        expandLevels((OntologyNode) getRoot(), depth);
+    }
+
+    private static OntologyNode readNode(MappedSTCFile file, int row)
+            throws IOException {
+        STCRow data = file.readRow(row);
+        return new OntologyNode(file.getStructure().getId(row),
+                data.get(STCTreeHandler.COLUMN_LABEL),
+                data.getRawFrom(STCTreeHandler.COLUMN_ATTRIBUTES));
+    }
+
+    /** Returns the mapped file behind the model. */
+    public MappedSTCFile getFile() {
+        return file;
+    }
+
+    /** Returns the file row of node, or -1 if it was not read from the file. */
+    private int rowOf(Object node) {
+        // structure is still null while the superclass is being built.
+        if (structure == null || !(node instanceof OntologyNode))
+            return -1;
+        return structure.getRow(((OntologyNode) node).getId());
+    }
+
+    /** Returns true if node's children have been read from the file. */
+    public boolean isExpanded(Object node) {
+        int row = rowOf(node);
+        return row < 0 || expanded.get(row);
+    }
+
+    public boolean isLeaf(Object node) {
+        int row = rowOf(node);
+        if (row >= 0 && !expanded.get(row))
+            return structure.getChildCount(row) == 0;
+        return super.isLeaf(node);
+    }
+
+    /**
+     * Reads node's children from the file and attaches them, if that has not
+     * been done yet.  Must be called on the EDT once the model is showing.
+     * If any of them cannot be read, none are attached.
+     */
+    public void expand(Object node) throws IOException {
+        int row = rowOf(node);
+        if (row < 0 || expanded.get(row))
+            return;
+        OntologyNode[] children = new OntologyNode[structure.getChildCount(row)];
+        int n = 0;
+        for (int c = structure.getFirstChild(row); c >= 0; c = structure.getNextSibling(c))
+            children[n++] = readNode(file, c);
+        OntologyNode parent = (OntologyNode) node;
+        for (int i = 0; i < n; i++)
+            addChild(parent, children[i]);
+        expanded.set(row);
+    }
+
+    /** Expands node and its descendants down to depth levels below it. */
+    public void expandLevels(OntologyNode node, int depth) throws IOException {
+        if (depth <= 0)
+            return;
+        expand(node);
+        for (int i = 0; i < node.getChildCount(); i++)
+            expandLevels((OntologyNode) node.getChildAt(i), depth - 1);
+    }
+
+    /** Reads every remaining node of the file into the model. */
+    public void expandAll() throws IOException {
+        expandLevels((OntologyNode) getRoot(), Integer.MAX_VALUE);
+    }
+
+    /** Returns the number of nodes read from the file so far. */
+    public int getMaterializedCount() {
+        return getNodeCount();
+    }
+
+    /**
+     * Returns the node with the given id, reading it and its ancestors from
+     * the file if need be.  Returns null if there is no such node, if one
+     * of its ancestors has been removed, or if it cannot be read.
+     */
+    public OntologyNode getNode(int id) {
+        OntologyNode node = super.getNode(id);
+        int row = structure.getRow(id);
+        if (node != null || row < 0)
+            return node;
+        // Climb to the nearest ancestor that is in the tree, then expand down.
+        int[] path = new int[16];
+        int depth = 0;
+        OntologyNode top = null;
+        for (int r = structure.getParent(row); r >= 0; r = structure.getParent(r)) {
+            top = super.getNode(structure.getId(r));
+            if (top != null)
+                break;
+            if (depth == path.length) {
+                int[] grown = new int[depth << 1];
+                System.arraycopy(path, 0, grown, 0, depth);
+                path = grown;
+            }
+            path[depth++] = r;
+        }
+        if (top == null)
+            return null;
+        try {
+            expand(top);
+            for (int k = depth - 1; k >= 0; k--) {
+                OntologyNode n = super.getNode(structure.getId(path[k]));
+                if (n == null)
+                    return null;
+                expand(n);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return super.getNode(id);
+    }
+
+    /**
+     * Expands node if model is a MappedOntologyModel, or a paged or subtree
+     * view of one; does nothing for any other model.
+     */
+    public static void expand(TreeModel model, Object node) throws IOException {
+        model = SubtreeModel.getSource(PagedTreeModel.getSource(model));
+        if (model instanceof MappedOntologyModel)
+            ((MappedOntologyModel) model).expand(node);
+    }
+}
@@ -0,0 +1,319 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeNode;
+
+/**
+ * Times the hot paths of the editor on res/cuahsitree.stc and on generated
+ * trees of 10k, 100k and 1M nodes:
+ * <pre>
+ * java org.sdsc.spatial.ontology.OntologyBenchmark [-s sizes] [-t seconds]
+ * </pre>
+ * <ul>
+ * <li>parse, reading an STC file into an {@link OntologyStore};
+ * <li>load, reading one into a complete {@link OntologyTreeModel} through
+ * {@link OntologyLoader}, as Load Data does;
+ * <li>save, copying the model and writing it out as Save does, to nowhere;
+ * <li>drop, finding the node of an _ST_n id and checking it can be moved,
+ * as a drop from another editor does;
+ * <li>edit, inserting a node and removing it again;
+ * <li>subtree, opening and closing a {@link SubtreeModel} view, as
+ * View Subtree does.
+ * </ul>
+ * Each is run for a while to warm up and then for at least the given
+ * time, 2 seconds by default.  Besides the time per operation, the bytes
+ * allocated per operation by every thread, and the time spent in garbage
+ * collection, are reported.
+ * <p>
+ * Sizes are a comma separated list of node counts and file names; the
+ * default is res/cuahsitree.stc,10000,100000,1000000.  The results are
+ * only printed.  The paths that do not need the StarTree classes are timed
+ * under JMH by CoreBenchmark, in core/jmh, and core/jmh/baseline.txt is
+ * the one baseline kept; compare these against a run of the same build on
+ * the same machine.
+ * <p>
+ * Loads run the loader's EDT work on the EDT, so this needs AWT, but
+ * works headless.
+ */
+public class OntologyBenchmark {
+
+    private static final String DEFAULT_SIZES = "res/cuahsitree.stc,10000,100000,1000000";
+
+    /** Operations per call of the benchmarks that are too quick to time one at a time. */
+    private static final int BATCH = 1000;
+
+    /* Stands in for the StarTree a subtree view is shown in. */
+    private static final TreeModelListener listener = new TreeModelListener() {
+        public void treeNodesChanged(TreeModelEvent e) {
+        }
+
+        public void treeNodesInserted(TreeModelEvent e) {
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+        }
+    };
+
+    private final long millis;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /* What the benchmarks return, kept so their work cannot be optimized away. */
+    private long sink;
+
+    /** One benchmark on one tree. */
+    private abstract static class Bench {
+
+        final String name;
+        final int batch;
+
+        Bench(String name, int batch) {
+            this.name = name;
+            this.batch = batch;
+        }
+
+        /** Does batch operations and returns something that depends on them. */
+        abstract long run() throws Exception;
+    }
+
+    /** A result, in nanoseconds and bytes per operation. */
+    private static class Result {
+
+        final String key;
+        final double nanos;
+        final double bytes;
+        final long gcMillis;
+
+        Result(String key, double nanos, double bytes, long gcMillis) {
+            this.key = key;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.gcMillis = gcMillis;
+        }
+    }
+
+    public OntologyBenchmark(long millis) {
+        this.millis = millis;
+    }
+
+    /** Runs every benchmark on the tree of file, under the name tree. */
+    public List<Result> run(String tree, File file) throws Exception {
+        final URL url = file.toURI().toURL();
+        final OntologyTreeModel model = load(url);
+        final OntologyNode[] nodes = nodes(model);
+        final Random random = new Random(1);
+
+        List<Bench> benches = new ArrayList<Bench>();
+        benches.add(new Bench("parse", 1) {
+            long run() throws IOException {
+                return OntologyStore.read(url).getNodeCount();
+            }
+        });
+        benches.add(new Bench("load", 1) {
+            long run() throws Exception {
+                return load(url).getNodeCount();
+            }
+        });
+        benches.add(new Bench("save", 1) {
+            long run() throws IOException {
+                OntologyStore store = OntologySaver.capture(model);
+                return new STCTreeWriter().write(store, new BufferedWriter(new NullWriter(), 1 << 16));
+            }
+        });
+        benches.add(new Bench("drop", BATCH) {
+            long run() {
+                long found = 0;
+                Object root = model.getRoot();
+                for (int i = 0; i < batch; i++) {
+                    OntologyNode dragged = nodes[random.nextInt(nodes.length)];
+                    OntologyNode parent = nodes[random.nextInt(nodes.length)];
+                    OntologyNode node = model.getNode(dragged.getSTCId());
+                    if (node != null && node != root && isAncestor(root, node)
+                            && !isAncestor(node, parent))
+                        found++;
+                }
+                return found;
+            }
+        });
+        benches.add(new Bench("edit", BATCH) {
+            long run() {
+                for (int i = 0; i < batch; i++) {
+                    OntologyNode node = model.createNode("Child");
+                    model.insertChildAt(nodes[random.nextInt(nodes.length)], node, 0);
+                    model.removeNode(node);
+                }
+                return model.getNodeCount();
+            }
+        });
+        benches.add(new Bench("subtree", BATCH) {
+            long run() {
+                long count = 0;
+                for (int i = 0; i < batch; i++) {
+                    SubtreeModel view = new SubtreeModel(model, nodes[random.nextInt(nodes.length)]);
+                    view.addTreeModelListener(listener);
+                    count += view.getChildCount(view.getRoot());
+                    view.removeTreeModelListener(listener);
+                }
+                return count;
+            }
+        });
+
+        List<Result> results = new ArrayList<Result>();
+        for (int i = 0; i < benches.size(); i++)
+            results.add(measure(tree, benches.get(i)));
+        return results;
+    }
+
+    private Result measure(String tree, Bench bench) throws Exception {
+        // Warm up for half the time.
+        long end = System.currentTimeMillis() + millis / 2;
+        do {
+            sink += bench.run();
+        } while (System.currentTimeMillis() < end);
+
+        System.gc();
+        long gcBefore = gcMillis();
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = 0;
+        end = System.currentTimeMillis() + millis;
+        do {
+            sink += bench.run();
+            ops += bench.batch;
+        } while (System.currentTimeMillis() < end || ops < 2 * bench.batch);
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - bytesBefore;
+        long gc = gcMillis() - gcBefore;
+        return new Result(tree + "." + bench.name, (double) nanos / ops,
+                bytes < 0 ? Double.NaN : (double) bytes / ops, gc);
+    }
+
+    /* Bytes allocated so far by every live thread, or -1 if the JVM cannot say. */
+    private long allocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+        if (!t.isThreadAllocatedMemorySupported() || !t.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long[] ids = t.getAllThreadIds();
+        long[] bytes = t.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < bytes.length; i++)
+            total += Math.max(0, bytes[i]);
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+
+    /* Loads url as the editor does, and waits for every node to be attached. */
+    private static OntologyTreeModel load(URL url) throws Exception {
+        OntologyLoader loader = new OntologyLoader(url);
+        loader.execute();
+        return loader.get();
+    }
+
+    private static OntologyNode[] nodes(OntologyTreeModel model) {
+        List<OntologyNode> nodes = new ArrayList<OntologyNode>();
+        List<Object> stack = new ArrayList<Object>();
+        stack.add(model.getRoot());
+        while (!stack.isEmpty()) {
+            Object node = stack.remove(stack.size() - 1);
+            if (node instanceof OntologyNode)
+                nodes.add((OntologyNode) node);
+            for (int i = model.getChildCount(node) - 1; i >= 0; i--)
+                stack.add(model.getChild(node, i));
+        }
+        return nodes.toArray(new OntologyNode[nodes.size()]);
+    }
+
+    private static boolean isAncestor(Object node, TreeNode descendant) {
+        for (TreeNode n = descendant; n != null; n = n.getParent()) {
+            if (n == node)
+                return true;
+        }
+        return false;
+    }
+
+    /** Swallows what is written to it. */
+    private static class NullWriter extends Writer {
+
+        public void write(char[] buf, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String sizes = DEFAULT_SIZES;
+        long millis = 2000;
+        for (int a = 0; a < args.length; a++) {
+            if (args[a].equals("-s") && a + 1 < args.length)
+                sizes = args[++a];
+            else if (args[a].equals("-t") && a + 1 < args.length)
+                millis = (long) (1000 * Double.parseDouble(args[++a]));
+            else
+                usage();
+        }
+
+        OntologyBenchmark benchmark = new OntologyBenchmark(millis);
+        System.out.println(String.format("%-24s %14s %14s %10s %8s",
+                "benchmark", "us/op", "bytes/op", "MB/s", "gc ms"));
+        String[] trees = sizes.split(",");
+        for (int i = 0; i < trees.length; i++) {
+            String tree = trees[i].trim();
+            File file;
+            String name;
+            boolean generated = tree.matches("\\d+");
+            if (generated) {
+                name = tree;
+                file = File.createTempFile("benchmark", ".stc");
+                file.deleteOnExit();
+                OntologyBatch.write(new OntologyGenerator(Integer.parseInt(tree)).generate(), file);
+            } else {
+                file = new File(tree);
+                name = file.getName().replaceFirst("\\.stc$", "");
+            }
+            List<Result> list = benchmark.run(name, file);
+            if (generated)
+                file.delete();
+            for (int k = 0; k < list.size(); k++) {
+                Result r = list.get(k);
+                double rate = r.bytes / r.nanos * 1e9 / (1 << 20);
+                System.out.println(String.format("%-24s %14.3f %14.0f %10.1f %8d",
+                        r.key, r.nanos / 1000, r.bytes, rate, r.gcMillis));
+            }
+        }
+        // The loads leave the EDT running.
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java " + OntologyBenchmark.class.getName()
+                + " [-s sizes] [-t seconds]");
+        System.exit(2);
+    }
+}
@@ -33,6 +33,8 @@ import java.awt.dnd.DropTargetEvent;
 import java.awt.dnd.DropTargetListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
@@ -42,30 +44,48 @@ import java.awt.event.WindowListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
+import javax.swing.ButtonGroup;
 import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.JTree;
+import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.event.CellEditorListener;
 import javax.swing.event.ChangeEvent;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.ExpandVetoException;
+import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 
-import com.inxight.st.GraphDataNode;
 import com.inxight.st.Link;
 import com.inxight.st.STLicenseException;
 import com.inxight.st.STPanel2;
@@ -75,9 +95,6 @@ import com.inxight.st.StdPainter;
 import com.inxight.st.StdTreeDataModel;
 import com.inxight.st.StdTreeDataNode;
 import com.inxight.st.TreeDataModel;
-import com.inxight.st.TreeDataNode;
-import com.inxight.st.io.stc.STCReader;
-import com.inxight.st.io.stc.STCWriter;
 
 /**
  * The STMultipleView is a demonstration application that will display a default 
@@ -94,26 +111,101 @@ import com.inxight.st.io.stc.STCWriter;
  */
 public class OntologyEditor extends JFrame implements ActionListener, PropertyChangeListener {
 
-    private JMenuItem  miSplitJTree, miUnsplit;
+    private JMenuItem  miSplitJTree, miUnsplit, miCancelLoad, miSave, miUndo, miRedo;
     private Container main_pane;
     private Component st_pane;
     private STPanel2 stPanel1, stPanel2;
     private JTree jTree;
     private StarTree star1, star2;
     private TreeDataModel tree;
+
+    /** What the views show: tree, or a paged view of it. */
+    private TreeDataModel view;
+
+    /** How wide nodes are shown: -1 for all children, or a PagedTreeModel mode. */
+    private int paging = -1;
     private JTextField msg_text_field;
 
+    /** Type-ahead search of the labels in tree; Enter goes to the next hit. */
+    private JTextField find_field;
+    private OntologyNode lastHit;
+
+    /** The changes found by Compare With File, listed next to the JTree. */
+    private JList diff_list;
+    private OntologyDiff diff;
+
     private JPopupMenu popup;
     private TreePath selectionPath;
+    private OntologyLoader loader;
+    private OntologySaver saver;
+
+    /** Edits to journalModel, kept next to the file it was read from. */
+    private EditJournal journal;
+    private TreeDataModel journalModel;
+
+    /**
+     * The content hash savedModel had when it was last read or saved, and
+     * the file it was read from or saved to, as it was then.
+     */
+    private TreeDataModel savedModel;
+    private long savedHash;
+    private File savedFile;
+    private long savedFileTime;
+
+    /** Undo and redo for the edits made in the JTree, shared with subtree windows. */
+    private EditHistory history;
+
+    /** Keeps a recovery file of autosaved, the tree last loaded in this window. */
+    private Autosaver autosaver;
+    private TreeDataModel autosaved;
+
+    private static final String TITLE = "StarTree(R) Multiple View Demo";
+
+    /** The most hits a search looks through for Find Next. */
+    private static final int MAX_HITS = 1000;
+
+    /** Snapshots of the STC files read, so an unchanged file is not parsed again. */
+    private static final SnapshotCache snapshots = SnapshotCache.getDefault();
+
+    /** Repaints the StarTree panels of every window, at most once a frame. */
+    private static final RepaintScheduler repaints = RepaintScheduler.getDefault();
+
+    /**
+     * Answers other programs' questions about the tree last loaded or saved
+     * in any window; started by main if ontology.server.port is set.
+     */
+    private static OntologyServer server;
+
+    /**
+     * Where each window keeps a recovery file of the tree loaded in it,
+     * written in the background; set by main.
+     */
+    private static File recoveryDir;
+
+    /** The autosavers of every window, for exiting to finish. */
+    private static final List<Autosaver> autosavers = new ArrayList<Autosaver>();
+
+    /** How long exiting waits for the last edits to be autosaved. */
+    private static final long EXIT_AUTOSAVE_MILLIS = 5000;
 
     private static int window_count = 0;
     private static WindowListener window_listener = new WindowAdapter() {
         public void windowClosing(WindowEvent e) {
             Window window = (Window) e.getSource();
             window.setVisible(false);
+            if (window instanceof OntologyEditor)
+                ((OntologyEditor) window).closeAutosaver();
             window_count--;
-            if (window_count <= 0)
+            if (window_count <= 0) {
+                closeAutosavers();
                 System.exit(0);
+            }
+        }
+
+        // Another window may have used a history this one shares.
+        public void windowActivated(WindowEvent e) {
+            if (e.getSource() instanceof OntologyEditor)
+                ((OntologyEditor) e.getSource()).setupMenus();
         }
     };
 
@@ -122,7 +214,15 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
      * tree.
      */
     public OntologyEditor(TreeDataModel tree) {
-        super("StarTree(R) Multiple View Demo");
+        this(tree, null);
+    }
+
+    /**
+     * Constructs a window on tree that undoes and redoes edits with history,
+     * or with a history of its own if that is null.
+     */
+    public OntologyEditor(TreeDataModel tree, EditHistory history) {
+        super(TITLE);
 
         main_pane = getContentPane();
         main_pane.setLayout(new BorderLayout());
@@ -139,6 +239,26 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         msg_text_field.setColumns(50);
         main_pane.add("South", msg_text_field);
 
+        JPanel find_pane = new JPanel(new BorderLayout(4, 0));
+        find_pane.add("West", new JLabel("Find:"));
+        find_field = new JTextField();
+        find_field.setActionCommand("Find Next");
+        find_field.addActionListener(this);
+        find_field.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                search(find_field.getText());
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                search(find_field.getText());
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        find_pane.add("Center", find_field);
+        main_pane.add("North", find_pane);
+
         JMenuBar menu_bar = new JMenuBar();
         JMenuItem item;
 
@@ -146,14 +266,31 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         file_menu.setMnemonic('F');
         file_menu.add(item = new JMenuItem("Load Data", 'I'));
         item.addActionListener(this);
-        file_menu.add(item = new JMenuItem("Save", 'S'));
+        file_menu.add(item = new JMenuItem("Load Mapped Data", 'M'));
+        item.addActionListener(this);
+        file_menu.add(item = new JMenuItem("Merge Data", 'G'));
         item.addActionListener(this);
+        file_menu.add(miCancelLoad = new JMenuItem("Cancel Load", 'C'));
+        miCancelLoad.addActionListener(this);
+        file_menu.add(miSave = new JMenuItem("Save", 'S'));
+        miSave.addActionListener(this);
         file_menu.add(item = new JMenuItem("Exit", 'X'));
         item.addActionListener(this);
         menu_bar.add(file_menu);
 
         JMenu edit_menu = new JMenu("Edit");
         edit_menu.setMnemonic('E');
+        edit_menu.add(miUndo = new JMenuItem("Undo", 'U'));
+        miUndo.setActionCommand("Undo");
+        miUndo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_MASK));
+        miUndo.addActionListener(this);
+        edit_menu.add(miRedo = new JMenuItem("Redo", 'D'));
+        miRedo.setActionCommand("Redo");
+        miRedo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_MASK));
+        miRedo.addActionListener(this);
+        edit_menu.add(item = new JMenuItem("Find", 'F'));
+        item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_MASK));
+        item.addActionListener(this);
         edit_menu.add(item = new JMenuItem("Reset Tree", 'R'));
         item.addActionListener(this);
         menu_bar.add(edit_menu);
@@ -164,9 +301,23 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         miSplitJTree.addActionListener(this);
         view_menu.add(miUnsplit = new JMenuItem("Unsplit", 'U'));
         miUnsplit.addActionListener(this);
+        view_menu.add(item = new JMenuItem("Compare With File", 'C'));
+        item.addActionListener(this);
+        JMenu wide_menu = new JMenu("Wide Nodes");
+        wide_menu.setMnemonic('W');
+        ButtonGroup wide_group = new ButtonGroup();
+        String[] wide = { "All Children", "Pages", "Alphabetical" };
+        for (int i = 0; i < wide.length; i++) {
+            JRadioButtonMenuItem wide_item = new JRadioButtonMenuItem(wide[i], i == 0);
+            wide_item.addActionListener(this);
+            wide_group.add(wide_item);
+            wide_menu.add(wide_item);
+        }
+        view_menu.add(wide_menu);
         menu_bar.add(view_menu);
 
         setJMenuBar(menu_bar);
+        this.history = history != null ? history : newHistory();
         setupMenus();
 
         // Install the license
@@ -175,11 +326,36 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         if (tree == null)
             tree = new StdGraphDataModel();
         this.tree = tree;
+        this.view = tree;
         star1.setTree(tree);
 
         window_count++;
         addWindowListener(window_listener);
     }
+
+    /* A history whose edits are written to this window's journal. */
+    private EditHistory newHistory() {
+        EditHistory history = new EditHistory();
+        history.setListener(new EditHistory.Listener() {
+            public void inserted(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node) {
+                journalInsert(model, parent, node);
+            }
+
+            public void removed(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node) {
+                journalRemove(model, node);
+            }
+
+            public void moved(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node) {
+                journalMove(model, parent, node);
+            }
+
+            public void renamed(StdTreeDataModel model, StdTreeDataNode node) {
+                journalRename(model, node);
+            }
+        });
+        return history;
+    }
+
     public void load() {
     	final JFileChooser fc = new JFileChooser();
     	int returnVal = fc.showOpenDialog(this);
@@ -194,31 +370,513 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
 				return;
 			}
 
-             StdGraphDataModel newTree = new StdGraphDataModel();
-             loadData(file_url, newTree);
-             tree = newTree;
-             star1.setTree(tree);
+             loadInBackground(file_url);
     	}
     }
-    public void save(){
+
+    /** A MethodCallAction invoked from the menu. */
+    public void loadMapped() {
     	final JFileChooser fc = new JFileChooser();
     	int returnVal = fc.showOpenDialog(this);
     	if (returnVal == JFileChooser.APPROVE_OPTION) {
-             File file = fc.getSelectedFile();
-            
-			 try {
-				String pathName = file.getAbsolutePath();
-				FileWriter fw = new FileWriter(pathName);
-				STCWriter  starTreeWriter = new STCWriter();
-				starTreeWriter.writeTree(fw, tree, null);
-				fw.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+             try {
+                 startLoad(new TreeLoader(fc.getSelectedFile()));
+             } catch (IOException e) {
+                 setMessage("Cannot open " + fc.getSelectedFile() + ": " + e.getMessage());
+             }
+    	}
+    }
 
+    /** A MethodCallAction invoked from the menu. */
+    public void merge() {
+    	final JFileChooser fc = new JFileChooser();
+    	fc.setMultiSelectionEnabled(true);
+    	int returnVal = fc.showOpenDialog(this);
+    	if (returnVal == JFileChooser.APPROVE_OPTION) {
+             File[] files = fc.getSelectedFiles();
+             List<URL> urls = new ArrayList<URL>();
+             try {
+                 for (int i = 0; i < files.length; i++)
+                     urls.add(files[i].toURI().toURL());
+             } catch (MalformedURLException e) {
+                 setMessage("Cannot merge: " + e.getMessage());
+                 return;
+             }
+             if (!urls.isEmpty())
+                 startLoad(new TreeLoader(urls));
     	}
-        
+    }
+
+    /**
+     * Loads the STC file at url on a background thread, with progress shown
+     * in the message field.  The current tree stays up until the top levels
+     * of the new one are ready, and is put back if the load is cancelled or
+     * fails part way.
+     */
+    public void loadInBackground(URL url) {
+        TreeLoader next = new TreeLoader(url);
+        next.setSnapshotCache(snapshots);
+        startLoad(next);
+    }
+
+    private void startLoad(TreeLoader next) {
+        if (loader != null)
+            loader.cancel(true);
+        next.previous = tree;
+        loader = next;
+        loader.addPropertyChangeListener(this);
+        setMessage("Loading " + loader.getDescription() + "...");
+        loader.execute();
+        setupMenus();
+    }
+
+    /** Shows the tree being loaded, and puts back the old one on failure. */
+    private class TreeLoader extends OntologyLoader {
+
+        TreeDataModel previous;
+
+        TreeLoader(URL url) {
+            super(url);
+        }
+
+        TreeLoader(File file) throws IOException {
+            super(file);
+        }
+
+        TreeLoader(List<URL> urls) {
+            super(urls);
+        }
+
+        protected void install(OntologyTreeModel model) {
+            showTree(model);
+        }
+
+        protected void uninstall(OntologyTreeModel model) {
+            if (tree == model)
+                showTree(previous);
+        }
+
+        protected void finished(OntologyTreeModel model, int nodes, long millis) {
+            File file = SnapshotCache.toFile(getURL());
+            // A restored tree is saved somewhere else; its edits are autosaved, not journaled.
+            File recovery = null;
+            if (recoveryDir != null && file != null
+                    && recoveryDir.equals(file.getAbsoluteFile().getParentFile())) {
+                recovery = file.getAbsoluteFile();
+                file = null;
+            }
+            // Before the journal is replayed, as its edits are not in the file.
+            markSaved(model, getContentHash(), file);
+            String replayed = openJournal(model, file);
+            serve(model);
+            autosave(model, recovery == null ? getContentHash() : 0, file, recovery, getURL());
+            // Only the recovery file says where its tree came from.
+            if (recovery != null)
+                Autosaver.removeSource(model.getProperties());
+            List<OntologyMerger.Conflict> conflicts = getConflicts();
+            endLoad(this, "Loaded " + nodes + " nodes from " + getDescription()
+                    + (isFromSnapshot() ? " (snapshot)" : "") + " in " + millis + " ms."
+                    + (conflicts.isEmpty() ? "" : " " + conflicts.size() + " conflicts.")
+                    + (getCacheFailure() == null ? "" : " No snapshot: " + getCacheFailure())
+                    + replayed);
+            if (!conflicts.isEmpty())
+                showConflicts(conflicts);
+        }
+
+        protected void failed(Exception e) {
+            endLoad(this, "Cannot open " + getDescription() + ": " + e.getMessage());
+        }
+
+        protected void cancelled() {
+            endLoad(this, "Loading " + getDescription() + " cancelled.");
+        }
+    }
+
+    /** Lists the nodes a merge found described differently by two files. */
+    private void showConflicts(List<OntologyMerger.Conflict> conflicts) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < conflicts.size(); i++)
+            text.append(conflicts.get(i)).append('\n');
+        JTextArea area = new JTextArea(text.toString(), 12, 60);
+        area.setEditable(false);
+        JOptionPane.showMessageDialog(this, new JScrollPane(area),
+                conflicts.size() + " conflicts", JOptionPane.WARNING_MESSAGE);
+    }
+
+    /** A MethodCallAction invoked from the menu. */
+    public void cancelLoad() {
+        if (loader != null)
+            loader.cancel(true);
+    }
+
+    private void endLoad(OntologyLoader worker, String msg) {
+        if (loader == worker) {
+            loader = null;
+            setupMenus();
+        }
+        setMessage(msg);
+    }
+
+    /** Makes model the tree shown in every view. */
+    private void showTree(TreeDataModel model) {
+        if (model != tree) {
+            // Subtree windows of the old tree keep the old history.
+            history = newHistory();
+            lastHit = null;
+            setupMenus();
+        }
+        tree = model;
+        view = paging < 0 || model == null ? model
+            : new PagedTreeModel(model, paging, PagedTreeModel.DEFAULT_PAGE_SIZE);
+        star1.setTree(view);
+        repaints.repaint(stPanel1);
+        if (star2 != null) {
+            star2.setTree(view);
+            repaints.repaint(stPanel2);
+        }
+        if (jTree != null)
+            jTree.setModel(view);
+    }
+
+    /**
+     * Shows nodes with more than a page of children as pages, or as
+     * alphabetical ranges, or with mode -1 as they are.  Edits still go to
+     * the tree itself.
+     */
+    public void setPaging(int mode) {
+        if (mode == paging)
+            return;
+        paging = mode;
+        showTree(tree);
+    }
+
+    /* The model edits go to: tree, or the model a subtree window shows part of. */
+    private TreeDataModel editedModel() {
+        return (TreeDataModel) SubtreeModel.getSource(tree);
+    }
+
+    /* A path of real nodes from the root of editedModel(), as the views show it. */
+    private TreePath viewPath(TreePath path) {
+        if (tree instanceof SubtreeModel)
+            path = ((SubtreeModel) tree).toViewPath(path);
+        return path != null && view instanceof PagedTreeModel
+            ? ((PagedTreeModel) view).toViewPath(path) : path;
+    }
+    public void save(){
+    	final JFileChooser fc = new JFileChooser();
+    	int returnVal = fc.showSaveDialog(this);
+    	if (returnVal == JFileChooser.APPROVE_OPTION) {
+             saveInBackground(fc.getSelectedFile());
+    	}
+    }
+
+    /**
+     * Saves the current tree to file on a background thread.  The tree is
+     * copied first, so it can go on being edited while the file is written;
+     * the file is only replaced once the new contents are safely on disk.
+     * Saving over the file the journal belongs to compacts the journal.
+     */
+    public void saveInBackground(final File file) {
+        if (saver != null) {
+            setMessage("Still saving " + saver.getTarget() + ".");
+            return;
+        }
+        if (!isModified() && tree == savedModel && file.getAbsoluteFile().equals(savedFile)
+                && file.lastModified() == savedFileTime) {
+            setMessage("No changes to save to " + file + ".");
+            return;
+        }
+        final TreeDataModel saved = tree;
+        final long hash = contentHash(tree);
+        final EditJournal compacted = journal != null && tree == journalModel
+            && file.getAbsoluteFile().equals(journal.getBase()) ? journal : null;
+        // A mapped tree is read in full first, which can fail.
+        OntologySaver next;
+        try {
+            next = new OntologySaver(tree, file) {
+                protected void finished(int nodes, long millis) {
+                    String msg = "Saved " + nodes + " nodes to " + file + " in "
+                            + millis + " ms.";
+                    markSaved(saved, hash, file);
+                    if (autosaver != null && saved == autosaved && hash != 0)
+                        autosaver.saved(hash, file);
+                    if (server != null)
+                        server.publishLater(getStore());
+                    try {
+                        if (compacted != null)
+                            compacted.finishCompaction();
+                    } catch (IOException e) {
+                        msg += " Cannot update " + compacted.getFile() + ": " + e.getMessage();
+                    }
+                    endSave(this, msg);
+                }
+
+                protected void failed(Exception e) {
+                    String msg = "Cannot save " + file + ": " + e.getMessage();
+                    try {
+                        if (compacted != null)
+                            compacted.abortCompaction();
+                    } catch (IOException e2) {
+                        msg += " Cannot restore " + compacted.getFile() + ": " + e2.getMessage();
+                    }
+                    endSave(this, msg);
+                }
+            };
+        } catch (IOException e) {
+            setMessage("Cannot save " + file + ": " + e.getMessage());
+            return;
+        }
+        if (compacted != null) {
+            // Edits from here on go to a new journal on top of the new file.
+            try {
+                compacted.startCompaction();
+            } catch (IOException e) {
+                setMessage("Cannot save " + file + ": " + e.getMessage());
+                return;
+            }
+        }
+        saver = next;
+        saver.addPropertyChangeListener(this);
+        setMessage("Saving " + file + "...");
+        saver.execute();
+        setupMenus();
+    }
+
+    /**
+     * Returns true if the tree has been edited since it was read or last
+     * saved.  Edits that are undone, or undone by hand, do not count.
+     */
+    public boolean isModified() {
+        return savedModel != null && tree == savedModel && contentHash(tree) != savedHash;
+    }
+
+    /*
+     * The content hash of model, or 0 if it has none to go by: a mapped
+     * model only holds the nodes read so far.
+     */
+    private static long contentHash(TreeDataModel model) {
+        if (!(model instanceof OntologyTreeModel) || model instanceof MappedOntologyModel)
+            return 0;
+        return ((OntologyTreeModel) model).getContentHash();
+    }
+
+    /* Records that model, whose content hash was hash, is now the same as file, which may be null. */
+    private void markSaved(TreeDataModel model, long hash, File file) {
+        if (hash == 0) {
+            savedModel = null;
+            return;
+        }
+        savedModel = model;
+        savedHash = hash;
+        savedFile = file == null ? null : file.getAbsoluteFile();
+        savedFileTime = file == null ? 0 : file.lastModified();
+        setupMenus();
+    }
+
+    /* Gives the server, if there is one, a copy of model as it is now to answer from. */
+    private static void serve(TreeModel model) {
+        if (server == null || model instanceof MappedOntologyModel)
+            return;
+        if (model instanceof OntologyTreeModel)
+            server.publishLater(((OntologyTreeModel) model).getVersions().getCurrent());
+        else
+            server.publishLater(OntologySaver.capture(model));
+    }
+
+    /*
+     * Keeps a recovery file of model, just loaded from url, in place of the
+     * tree this window had.  model is the same as file, the local file it
+     * was read from, if it has hash.  A tree restored from recovery goes on
+     * being written to the recovery file it came from.
+     */
+    private void autosave(OntologyTreeModel model, long hash, File file, File recovery, URL url) {
+        closeAutosaver();
+        if (recoveryDir == null || model instanceof MappedOntologyModel)
+            return;
+        if (recovery == null) {
+            String name = url == null ? "merged" : url.getPath();
+            recovery = Autosaver.newFile(recoveryDir, name.substring(name.lastIndexOf('/') + 1));
+        }
+        autosaver = new Autosaver(recovery);
+        autosavers.add(autosaver);
+        autosaved = model;
+        autosaver.watch(model.getVersions(), model.getProperties(), hash, file);
+    }
+
+    /*
+     * Expands node as MappedOntologyModel.expand does.  If its children
+     * cannot be read, says so in the status line of the editor c is in and
+     * returns false.
+     */
+    static boolean expand(TreeModel model, Object node, Component c) {
+        try {
+            MappedOntologyModel.expand(model, node);
+            return true;
+        } catch (IOException e) {
+            Window window = c instanceof Window ? (Window) c : SwingUtilities.getWindowAncestor(c);
+            if (window instanceof OntologyEditor)
+                ((OntologyEditor) window).setMessage("Cannot read the children of "
+                        + node + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /* Writes the edits this window's autosaver has not yet, and stops it. */
+    private void closeAutosaver() {
+        if (autosaver == null)
+            return;
+        autosaver.close(EXIT_AUTOSAVE_MILLIS);
+        autosavers.remove(autosaver);
+        autosaver = null;
+        autosaved = null;
+    }
+
+    /* Writes the edits no autosaver has yet, before exiting. */
+    private static void closeAutosavers() {
+        for (int i = 0; i < autosavers.size(); i++)
+            autosavers.get(i).close(EXIT_AUTOSAVE_MILLIS);
+        autosavers.clear();
+    }
+
+    /* The file whose edits the recovery file f holds, for asking about them. */
+    private static String recoverySource(File f) {
+        try {
+            String source = Autosaver.readProperties(f).get(Autosaver.SOURCE);
+            if (source != null)
+                return source;
+        } catch (IOException e) {
+            // Then the recovery file itself is the best name.
+        }
+        return f.getName();
+    }
+
+    /**
+     * Loads the tree from a recovery file an autosaver left, to be saved
+     * where the user likes.
+     */
+    public void restore(File file) {
+        try {
+            startLoad(new TreeLoader(file.toURI().toURL()));
+        } catch (MalformedURLException e) {
+            setMessage("Cannot open " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void endSave(OntologySaver worker, String msg) {
+        if (saver == worker) {
+            saver = null;
+            setupMenus();
+        }
+        setMessage(msg);
+    }
+
+    /**
+     * Opens the journal of the file model was read from, if it is a local
+     * file, and replays the edits not yet written to the file.  Returns a
+     * note for the status message.
+     */
+    private String openJournal(OntologyTreeModel model, File file) {
+        closeJournal();
+        if (file == null)
+            return "";
+        try {
+            journal = EditJournal.open(file, new JournalReplayer(model));
+            journalModel = model;
+        } catch (IOException e) {
+            return " No journal: " + e.getMessage();
+        }
+        int n = journal.getReplayedCount();
+        return n == 0 ? "" : " Replayed " + n + " unsaved edits.";
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // Everything in it was already synced.
+        }
+        journal = null;
+        journalModel = null;
+    }
+
+    /* Each edit made in the JTree is appended to the journal by node id. */
+
+    /* A subtree put back by an undo is recorded node by node, parents first. */
+    private void journalInsert(TreeModel model, TreeNode parent, TreeNode node) {
+        if (model != journalModel || !(node instanceof OntologyNode)
+                || !(parent instanceof OntologyNode))
+            return;
+        ArrayList<TreeNode> stack = new ArrayList<TreeNode>();
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        stack.add(node);
+        indexes.add(parent.getIndex(node));
+        journal.beginBatch();
+        try {
+            while (!stack.isEmpty()) {
+                OntologyNode n = (OntologyNode) stack.remove(stack.size() - 1);
+                int index = indexes.remove(indexes.size() - 1);
+                journal.insert(((OntologyNode) n.getParent()).getId(), index,
+                        n.getId(), n.getText(), n.getAttributes());
+                for (int i = n.getChildCount() - 1; i >= 0; i--) {
+                    if (n.getChildAt(i) instanceof OntologyNode) {
+                        stack.add(n.getChildAt(i));
+                        indexes.add(i);
+                    }
+                }
+            }
+            journal.endBatch();
+            journalWritten();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void journalRemove(TreeModel model, TreeNode node) {
+        if (model != journalModel || !(node instanceof OntologyNode))
+            return;
+        try {
+            journal.remove(((OntologyNode) node).getId());
+            journalWritten();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void journalMove(TreeModel model, TreeNode parent, TreeNode node) {
+        if (model != journalModel || !(node instanceof OntologyNode)
+                || !(parent instanceof OntologyNode))
+            return;
+        try {
+            journal.move(((OntologyNode) node).getId(),
+                    ((OntologyNode) parent).getId(), parent.getIndex(node));
+            journalWritten();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void journalRename(TreeModel model, TreeNode node) {
+        if (model != journalModel || !(node instanceof OntologyNode))
+            return;
+        try {
+            journal.rename(((OntologyNode) node).getId(), ((OntologyNode) node).getText());
+            journalWritten();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    /** Rewrites the file in the background once the journal is big enough. */
+    private void journalWritten() {
+        if (saver == null && journal.needsCompaction())
+            saveInBackground(journal.getBase());
+    }
+
+    private void journalFailed(IOException e) {
+        setMessage("Cannot record the edit in " + journal.getFile() + ": "
+                + e.getMessage());
     }
     
     /*All of the MethodCallActions are dispatched from the 
@@ -228,22 +886,213 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
     /** A MethodCallAction invoked from the menu. */
     public void exit() {
         setVisible(false);
+        closeAutosavers();
         System.exit(0);
     }
     
+    /** A MethodCallAction invoked from the menu. */
+    public void undo() {
+        if (history.canUndo())
+            history.undo();
+        setupMenus();
+    }
+
+    /** A MethodCallAction invoked from the menu. */
+    public void redo() {
+        if (history.canRedo())
+            history.redo();
+        setupMenus();
+    }
+
+    /** A MethodCallAction invoked from the menu. */
+    public void find() {
+        find_field.selectAll();
+        find_field.requestFocusInWindow();
+    }
+
+    /** Shows the first node whose label starts with prefix, ignoring case. */
+    public void search(String prefix) {
+        lastHit = null;
+        if (prefix.length() == 0)
+            setMessage("");
+        else
+            showHit(prefix);
+    }
+
+    /** Shows the next node whose label starts with the text being searched for. */
+    public void findNext() {
+        if (find_field.getText().length() > 0)
+            showHit(find_field.getText());
+    }
+
+    /* Shows the hit after lastHit, in label order, going round at the end. */
+    private void showHit(String prefix) {
+        if (!(editedModel() instanceof OntologyTreeModel)) {
+            setMessage("Only a loaded ontology can be searched.");
+            return;
+        }
+        List<OntologyNode> hits = ((OntologyTreeModel) editedModel()).findNodes(prefix, MAX_HITS);
+        if (tree instanceof SubtreeModel) {
+            for (int i = hits.size() - 1; i >= 0; i--) {
+                if (!((SubtreeModel) tree).contains(hits.get(i)))
+                    hits.remove(i);
+            }
+        }
+        if (hits.isEmpty()) {
+            lastHit = null;
+            setMessage("No label starts with \"" + prefix + "\".");
+            return;
+        }
+        int i = (hits.indexOf(lastHit) + 1) % hits.size();
+        lastHit = hits.get(i);
+        setMessage((i + 1) + " of " + hits.size() + (hits.size() == MAX_HITS ? "+" : "")
+            + ": " + lastHit.getText());
+        showNode(lastHit);
+    }
+
+    /** Selects node in the JTree, opening the way to it, and focuses the StarTree on it. */
+    private void showNode(OntologyNode node) {
+        if (jTree != null) {
+            TreePath path = viewPath(new TreePath(((StdTreeDataModel) editedModel()).getPathToRoot(node)));
+            jTree.setSelectionPath(path);
+            jTree.scrollPathToVisible(path);
+        }
+        star1.setFocusNode(node);
+        repaints.repaint(stPanel1);
+    }
+
     /** A MethodCallAction invoked from the menu. */
     public void reset() {
-        star1.setTree(tree);
-        stPanel1.repaintAll();
+        star1.setTree(view);
+        repaints.repaint(stPanel1);
 
         if (star2 != null) {
-            star2.setTree(tree);
-            stPanel2.repaintAll();
+            star2.setTree(view);
+            repaints.repaint(stPanel2);
         }
     }
  
+    /** A MethodCallAction invoked from the menu. */
+    public void compare() {
+    	final JFileChooser fc = new JFileChooser();
+    	int returnVal = fc.showOpenDialog(this);
+    	if (returnVal == JFileChooser.APPROVE_OPTION) {
+             compareInBackground(fc.getSelectedFile());
+    	}
+    }
+
+    /**
+     * Compares the tree, as the newer version, with the STC file on a
+     * background thread, and lists the changes next to the JTree.  The tree
+     * is copied first, as for a save.  If the file hashes the same as the
+     * tree there is nothing to list.
+     */
+    public void compareInBackground(final File file) {
+        final OntologyStore current = OntologySaver.capture(editedModel());
+        final long hash = contentHash(editedModel());
+        setMessage("Comparing with " + file + "...");
+        new SwingWorker<OntologyDiff, Void>() {
+            private long millis;
+
+            protected OntologyDiff doInBackground() throws Exception {
+                OntologyStore older = OntologyStore.read(file.toURI().toURL());
+                long start = System.currentTimeMillis();
+                if (hash != 0 && ContentHash.of(older) == hash)
+                    return null;
+                OntologyDiff result = new OntologyDiff(older, current);
+                millis = System.currentTimeMillis() - start;
+                return result;
+            }
+
+            protected void done() {
+                try {
+                    OntologyDiff result = get();
+                    if (result == null) {
+                        setMessage("The tree is the same as " + file + ".");
+                        return;
+                    }
+                    showDiff(result);
+                    setMessage(diff.getChanges().size() + " changes since " + file
+                            + ", found in " + millis + " ms.");
+                } catch (ExecutionException e) {
+                    setMessage("Cannot compare with " + file + ": " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    setMessage("Comparing with " + file + " interrupted.");
+                }
+            }
+        }.execute();
+    }
+
+    private void showDiff(OntologyDiff result) {
+        diff = result;
+        if (diff_list == null) {
+            if (st_pane == stPanel1)
+                splitJTree();
+            diff_list = new JList();
+            diff_list.addListSelectionListener(new ListSelectionListener() {
+                public void valueChanged(ListSelectionEvent e) {
+                    Object change = diff_list.getSelectedValue();
+                    if (!e.getValueIsAdjusting() && change != null)
+                        showChange((OntologyDiff.Change) change);
+                }
+            });
+            main_pane.remove(st_pane);
+            JSplitPane diff_pane =
+                new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, st_pane, new JScrollPane(diff_list));
+            diff_pane.setDividerSize(4);
+            diff_pane.setResizeWeight(0.75);
+            st_pane = diff_pane;
+            main_pane.add(st_pane);
+            main_pane.validate();
+            setupMenus();
+        }
+        diff_list.setListData(diff.getChanges().toArray());
+    }
+
+    /*
+     * Shows the node a change is about, or for a removal the node it was
+     * removed from.  The compared copy has the tree's order, so the node is
+     * found by its child indices.
+     */
+    private void showChange(OntologyDiff.Change change) {
+        OntologyStore store = diff.getNewStore();
+        int node = change.getNewNode();
+        if (node == OntologyStore.NONE)
+            node = diff.getNewMatch(diff.getOldStore().getParent(change.getOldNode()));
+        int depth = 0;
+        for (int n = node; n != store.getRoot(); n = store.getParent(n))
+            depth++;
+        int[] indices = new int[depth];
+        for (int n = node; n != store.getRoot(); n = store.getParent(n))
+            indices[--depth] = store.getIndexOfChild(store.getParent(n), n);
+
+        TreeModel model = editedModel();
+        TreePath path = new TreePath(model.getRoot());
+        for (int k = 0; k < indices.length; k++) {
+            Object parent = path.getLastPathComponent();
+            if (!expand(model, parent, this))
+                return;
+            if (indices[k] >= model.getChildCount(parent)) {
+                setMessage("The tree has been edited since it was compared.");
+                return;
+            }
+            path = path.pathByAddingChild(model.getChild(parent, indices[k]));
+        }
+        path = viewPath(path);
+        if (path == null)
+            return;
+        // The tree view is there only while the window is split.
+        if (jTree != null) {
+            jTree.setSelectionPath(path);
+            jTree.scrollPathToVisible(path);
+        }
+        star1.setFocusNode(path.getLastPathComponent());
+        repaints.repaint(stPanel1);
+    }
+
     /** A MethodCallAction invoked from the menu. */
     public void unsplit() {
+        diff_list = null;
         main_pane.remove(st_pane);
         st_pane = stPanel1;
         main_pane.add(st_pane);
@@ -255,13 +1104,25 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
     
     /** A MethodCallAction invoked from the menu. */
     public void splitJTree() {
+        diff_list = null;
         main_pane.remove(st_pane);
         if (stPanel2 != null)
             stPanel2.removePropertyChangeListener(this);
-        jTree = new JTree(tree);
+        jTree = new JTree(view) {
+            // The pages of a wide node are not nodes and have no name to edit.
+            public boolean isPathEditable(TreePath path) {
+                return !(path.getLastPathComponent() instanceof PagedTreeModel.Bucket)
+                    && super.isPathEditable(path);
+            }
+        };
         TreeDragSource ds = new TreeDragSource(jTree, DnDConstants.ACTION_MOVE);
 
-        TreeDropTarget dt = new TreeDropTarget(jTree);
+        TreeDropTarget dt = new TreeDropTarget(jTree) {
+            protected void move(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node) {
+                history.move(model, node, parent, 0);
+                setupMenus();
+            }
+        };
        
         jTree.setEditable(true);
         
@@ -295,6 +1156,16 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         };
         
         jTree.addMouseListener(ml);
+        jTree.addTreeWillExpandListener(new TreeWillExpandListener() {
+
+			public void treeWillExpand(TreeExpansionEvent e) throws ExpandVetoException {
+				// Read a mapped file's children before the JTree lays them out.
+				if (!expand(jTree.getModel(), e.getPath().getLastPathComponent(), jTree))
+					throw new ExpandVetoException(e);
+			}
+
+			public void treeWillCollapse(TreeExpansionEvent e) {
+			}});
         jTree.getCellEditor().addCellEditorListener(new CellEditorListener(){
 
 			@Override
@@ -309,8 +1180,8 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
 				
 				TreePath path = jTree.getSelectionPath();
 				StdTreeDataNode node = (StdTreeDataNode) path.getLastPathComponent();
-		        node.setText(nodeValue);
-		        ((StdTreeDataModel )jTree.getModel()).nodeStructureChanged((StdTreeDataNode)node);
+		        history.rename((StdTreeDataModel) editedModel(), node, nodeValue);
+		        setupMenus();
 				
 			}});
     
@@ -328,8 +1199,10 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         setupMenus();
     }
     
-    /*There are 8 events that are handled in this method.
-     * The Events are Exit, Load Data, Save, Reset Tree, Split JTree, Unsplit,
+    /*There are 19 events that are handled in this method.
+     * The Events are Exit, Load Data, Load Mapped Data, Merge Data, Cancel Load, Save, Undo, Redo, Find, Find Next, Reset Tree, Split JTree, Unsplit,
+     * Compare With File,
+     * All Children, Pages, Alphabetical,
      * insert(Node), remove(Node)
      * A better design would be to separate the Node Action events from the Menu Events.
      * I think this could be done with anonymous ActionListener classes.
@@ -347,11 +1220,39 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
     		this.load();
     	}
     	
+    	if (event.getActionCommand().equals("Load Mapped Data")){
+    		this.loadMapped();
+    	}
+    	
+    	if (event.getActionCommand().equals("Merge Data")){
+    		this.merge();
+    	}
+    	
+    	if (event.getActionCommand().equals("Cancel Load")){
+    		this.cancelLoad();
+    	}
+    	
     	if (event.getActionCommand().equals("Save"))
     	{
     		this.save();
     	}
     	
+    	if (event.getActionCommand().equals("Undo")){
+    		this.undo();
+    	}
+    	
+    	if (event.getActionCommand().equals("Redo")){
+    		this.redo();
+    	}
+    	
+    	if (event.getActionCommand().equals("Find")){
+    		this.find();
+    	}
+    	
+    	if (event.getActionCommand().equals("Find Next")){
+    		this.findNext();
+    	}
+    	
     	if (event.getActionCommand().equals("Reset Tree")){
     		this.reset();
     	}
@@ -364,14 +1265,39 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
     	if (event.getActionCommand().equals("Unsplit")){
     		this.unsplit();
     	}
+    	
+    	if (event.getActionCommand().equals("Compare With File")){
+    		this.compare();
+    	}
+    	if (event.getActionCommand().equals("All Children")){
+    		this.setPaging(-1);
+    	}
+    	
+    	if (event.getActionCommand().equals("Pages")){
+    		this.setPaging(PagedTreeModel.PAGES);
+    	}
+    	
+    	if (event.getActionCommand().equals("Alphabetical")){
+    		this.setPaging(PagedTreeModel.ALPHABETICAL);
+    	}
+    	
     	if (event.getActionCommand().equals("insert")){
-    		StdTreeDataNode node = (StdTreeDataNode) selectionPath.getLastPathComponent();
-        	StdTreeDataModel model = (StdTreeDataModel)jTree.getModel(); 
-    	   final StdTreeDataNode newNode = new StdTreeDataNode("Child");
+    		// Adding to a page of a wide node adds to the node.
+    		StdTreeDataNode node = (StdTreeDataNode) PagedTreeModel.toModelNode(
+    				selectionPath.getLastPathComponent());
+        	StdTreeDataModel model = (StdTreeDataModel) editedModel(); 
+        	if (!expand(model, node, this))
+        		return;
+    	   final StdTreeDataNode newNode;
+    	   if (model instanceof OntologyTreeModel)
+    		   newNode = ((OntologyTreeModel) model).createNode("Child");
+    	   else
+    		   newNode = new StdTreeDataNode("Child");
            
-           model.addChild(node, newNode);
+           history.insert(model, node, newNode, node.getChildCount());
+           setupMenus();
            TreeNode[] nodes = model.getPathToRoot(newNode); 
-           TreePath path = new TreePath(nodes); 
+           TreePath path = viewPath(new TreePath(nodes)); 
            
            jTree.scrollPathToVisible(path); 
             
@@ -384,16 +1310,19 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
            
     	} 
     	
-    	if (event.getActionCommand().equals("remove"))
+    	if (event.getActionCommand().equals("remove")
+    			&& !(selectionPath.getLastPathComponent() instanceof PagedTreeModel.Bucket)
+    			&& selectionPath.getLastPathComponent() != tree.getRoot())
     	{
     		StdTreeDataNode node = (StdTreeDataNode) selectionPath.getLastPathComponent();
-        	StdTreeDataModel model = (StdTreeDataModel)jTree.getModel();
+        	StdTreeDataModel model = (StdTreeDataModel) editedModel();
     		StdTreeDataNode parent = (StdTreeDataNode) node.getParent();
-    		model.removeNode(node);
+    		history.remove(model, node);
+    		setupMenus();
     
     		
     		TreeNode[] nodes = model.getPathToRoot(parent); 
-    		TreePath path = new TreePath(nodes); 
+    		TreePath path = viewPath(new TreePath(nodes)); 
     		jTree.scrollPathToVisible(path);
     	}
     	return;
@@ -432,6 +1361,10 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
     public void propertyChange(PropertyChangeEvent e) {
         if (e.getPropertyName().equals("message"))
             setMessage((String) e.getNewValue());
+        else if (e.getPropertyName().equals("progress") && e.getSource() == loader)
+            setMessage("Loading " + loader.getDescription() + ": " + e.getNewValue() + "%");
+        else if (e.getPropertyName().equals("progress") && e.getSource() == saver)
+            setMessage("Saving " + saver.getTarget() + ": " + e.getNewValue() + "%");
     }
     
     public void setMessage(String msg) {
@@ -444,6 +1377,13 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         } else {
         	miUnsplit.setEnabled(false);
         }
+        miCancelLoad.setEnabled(loader != null);
+        miSave.setEnabled(saver == null);
+        miUndo.setEnabled(history.canUndo());
+        miUndo.setText(history.getUndoPresentationName());
+        miRedo.setEnabled(history.canRedo());
+        miRedo.setText(history.getRedoPresentationName());
+        setTitle(TITLE + (isModified() ? " *" : ""));
     }
 
     private void addLicense(StarTree star) {
@@ -481,6 +1421,8 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
 
             popup.add(item = new JMenuItem("View Subtree in New Window"));
             item.addActionListener(this);
+            popup.add(item = new JMenuItem("Expand Node"));
+            item.addActionListener(this);
             
             setNodePopup(popup);
             
@@ -492,24 +1434,24 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
         public void viewSubtree(boolean useNewWindow) {
             /* 
              * The variable useNewWindow will always be true. 
-             * We always open a new Window when we create a subtree,
-             * because it creates a new model, so the JTree is properly
-             * synchronized.
+             * The new window shows a view of this window's model, not a
+             * copy, so edits made in either show up in both, and the two
+             * share an undo history.
              */
         	Link link = getPopupNode();
             if (link != null) {
-                Object node = link.getLinkChild();
-                TreeDataModel new_tree;
-                if (node instanceof GraphDataNode)
-                    new_tree = new StdGraphDataModel((GraphDataNode) node);
-                else
-                    new_tree = new StdTreeDataModel((TreeDataNode) node);
+                // The subtree of a page is that of the node it belongs to.
+                Object node = PagedTreeModel.toModelNode(link.getLinkChild());
+                TreeDataModel new_tree = new SubtreeModel(
+                    PagedTreeModel.getSource(star.getTree()), node);
                 if (useNewWindow) {
-                    JFrame new_frame = new OntologyEditor(new_tree);
+                    Window owner = SwingUtilities.getWindowAncestor(this);
+                    JFrame new_frame = new OntologyEditor(new_tree,
+                        owner instanceof OntologyEditor ? ((OntologyEditor) owner).history : null);
                     new_frame.setVisible(true);
                 } else {
                     star.setTree(new_tree);
-                    repaintAll();
+                    repaints.repaint(this);
                 }
             }
         }
@@ -519,6 +1461,15 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
             viewSubtree(true);
         }
 
+        /** Reads the popup node's children in from a mapped file. */
+        public void expandNode() {
+            Link link = getPopupNode();
+            if (link != null) {
+                expand(star.getTree(), link.getLinkChild(), this);
+                repaints.repaint(this);
+            }
+        }
+
 		@Override
 		public void actionPerformed(ActionEvent event) {
 
@@ -527,16 +1478,19 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
 			{
 				this.viewNewSubtree();
 			}
+			if (event.getActionCommand().equals("Expand Node"))
+			{
+				this.expandNode();
+			}
 		}
     }
 
    
 
 	/** Loads STC data into the STMultipleView. */
-    public static TreeDataModel loadData(URL filename, TreeDataModel model1) {
-        STCReader reader = new STCReader();
+    public static TreeDataModel loadData(URL filename) {
         try {
-            return reader.readTree(filename, (StdTreeDataModel) model1, null);
+            return STCTreeBuilder.read(filename);
         } catch (IOException e) {
         	//setMessage(e.getMessage());
         }
@@ -550,25 +1504,63 @@ public class OntologyEditor extends JFrame implements ActionListener, PropertyCh
      */
     public static void main(String[] args) {
 
-        StdTreeDataModel model1 = new StdTreeDataModel();
         final URL filename;
 
         ClassLoader loader = OntologyEditor.class.getClassLoader();
         filename = loader.getResource("res/cuahsitree.stc");
-        
-        final TreeDataModel tree = loadData(filename, model1);
 
-        
+        String port = System.getProperty("ontology.server.port");
+        if (port != null) {
+            try {
+                server = new OntologyServer(Integer.parseInt(port), 4);
+                server.start();
+            } catch (Exception e) {
+                System.err.println("Cannot serve the ontology on port " + port + ": " + e);
+                server = null;
+            }
+        }
+
+        recoveryDir = Autosaver.getDefaultDirectory();
 
-        // ensure AWT thread safety by using invokeLater
+        // ensure AWT thread safety by using invokeLater.  The file is read
+        // in the background once the window is up.
         
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                OntologyEditor demo = new OntologyEditor(tree);
+                OntologyEditor demo = new OntologyEditor(null);
                 demo.setVisible(true);
 
-                if (tree == null)
-                    demo.setMessage("Cannot open " + filename.toString() + ".");
+                // Edits, to files still as they were, not saved when the editor last stopped.
+                List<File> recoveries = Autosaver.findRecoveries(recoveryDir);
+                OntologyEditor window = demo;
+                for (int i = 0; i < recoveries.size(); i++) {
+                    File recovery = recoveries.get(i);
+                    int answer = JOptionPane.showConfirmDialog(demo,
+                            "There are unsaved edits to " + recoverySource(recovery) + " from "
+                            + new Date(recovery.lastModified()) + ". Restore them?",
+                            "Restore", JOptionPane.YES_NO_OPTION);
+                    if (answer != JOptionPane.YES_OPTION) {
+                        try {
+                            Autosaver.decline(recovery);
+                        } catch (IOException e) {
+                            demo.setMessage(e.getMessage());
+                        }
+                        continue;
+                    }
+                    if (window == null) {
+                        window = new OntologyEditor(null);
+                        window.setVisible(true);
+                    }
+                    window.restore(recovery);
+                    window = null;
+                }
+                if (window != demo)
+                    return;
+
+                if (filename == null)
+                    demo.setMessage("Cannot find res/cuahsitree.stc.");
+                else
+                    demo.loadInBackground(filename);
             }
         }); 
     }
@@ -599,14 +1591,15 @@ class TreeDragSource implements DragSourceListener, DragGestureListener {
      */
     public void dragGestureRecognized(DragGestureEvent dge) {
       TreePath path = sourceTree.getSelectionPath();
-      if ((path == null) || (path.getPathCount() <= 1)) {
-        // We can't move the root node or an empty selection
+      if ((path == null) || (path.getPathCount() <= 1)
+          || !(path.getLastPathComponent() instanceof StdTreeDataNode)) {
+        // We can't move the root node, a page of a wide node or an empty selection
         return;
       }
       oldNode = (StdTreeDataNode) path.getLastPathComponent();
       
       
-      transferable = new TransferableTreeNode(oldNode.toString());
+      transferable = new TransferableTreeNode(path);
       
       source.startDrag(dge, DragSource.DefaultMoveNoDrop, transferable, this);
 
@@ -680,7 +1673,7 @@ class TreeDropTarget implements DropTargetListener {
 
 	  public void dragEnter(DropTargetDragEvent dtde) {
 	    TreeNode node = getNodeForEvent(dtde);
-	    if (node.isLeaf()) {
+	    if (node.isLeaf() || !isNodeDrag(dtde)) {
 	      dtde.rejectDrag();
 	    } else {
 	      // start by supporting move operations
@@ -691,7 +1684,7 @@ class TreeDropTarget implements DropTargetListener {
 
 	  public void dragOver(DropTargetDragEvent dtde) {
 	    TreeNode node = getNodeForEvent(dtde);
-	    if (node.isLeaf()) {
+	    if (node.isLeaf() || !isNodeDrag(dtde)) {
 	      dtde.rejectDrag();
 	    } else {
 	      // start by supporting move operations
@@ -700,6 +1693,12 @@ class TreeDropTarget implements DropTargetListener {
 	    }
 	  }
 
+	  /* Plain text drags are for other applications, not for moving nodes. */
+	  private boolean isNodeDrag(DropTargetDragEvent dtde) {
+	    return dtde.isDataFlavorSupported(TransferableTreeNode.NODE_FLAVOR)
+	        || dtde.isDataFlavorSupported(TransferableTreeNode.NODE_ID_FLAVOR);
+	  }
+
 	  public void dragExit(DropTargetEvent dte) {
 	  }
 
@@ -711,7 +1710,9 @@ class TreeDropTarget implements DropTargetListener {
 	    DropTargetContext dtc = dtde.getDropTargetContext();
 	    JTree tree = (JTree) dtc.getComponent();
 	    TreePath parentpath = tree.getClosestPathForLocation(pt.x, pt.y);
-	    StdTreeDataNode parent = (StdTreeDataNode) parentpath.getLastPathComponent();
+	    // A drop on a page of a wide node is a drop on the node.
+	    StdTreeDataNode parent = (StdTreeDataNode) PagedTreeModel.toModelNode(
+	        parentpath.getLastPathComponent());
 	    if (parent.isLeaf()) {
 	      dtde.rejectDrop();
 	      return;
@@ -719,67 +1720,125 @@ class TreeDropTarget implements DropTargetListener {
 
 	    try {
 	      Transferable tr = dtde.getTransferable();
-	      DataFlavor[] flavors = tr.getTransferDataFlavors();
-	      for (int i = 0; i < flavors.length; i++) {
-	        if (tr.isDataFlavorSupported(flavors[i])) {
-	          dtde.acceptDrop(dtde.getDropAction());
-	          Object p1 = (Object) tr.getTransferData(flavors[i]);
-	          String nodeText = (String) p1;
-	          StdTreeDataModel model = (StdTreeDataModel) tree.getModel();
-	          
-	          /*The best way I know how to map the node text back to the
-	           * node is to do a linear search through the graph. A hashmap
-	           * would be helpful here.
-	           */
-	        StdTreeDataNode current_node = null;
-	  		Enumeration<StdTreeDataNode> iter =  model.getNodes();
-	  		current_node = iter.nextElement();
-	  		while (!current_node.getText().equals(nodeText)){
-	  			current_node = iter.nextElement();
-	  			
-	        }
-	          model.removeNode(current_node);
-	          model.insertChildAt(parent,current_node,0);
-	          
-	          dtde.dropComplete(true);
-	          return;
-	        }
+	      StdTreeDataModel model = (StdTreeDataModel) SubtreeModel.getSource(
+	          PagedTreeModel.getSource(tree.getModel()));
+
+	      /* A drag from this JVM hands over the node itself; one from
+	       * another editor hands over its _ST_n id, which the model's
+	       * index maps back to a node in constant time.
+	       */
+	      StdTreeDataNode current_node = null;
+	      if (tr.isDataFlavorSupported(TransferableTreeNode.NODE_FLAVOR)) {
+	        current_node = (StdTreeDataNode) tr.getTransferData(
+	            TransferableTreeNode.NODE_FLAVOR);
+	      } else if (tr.isDataFlavorSupported(TransferableTreeNode.NODE_ID_FLAVOR)
+	          && model instanceof OntologyTreeModel) {
+	        String nodeId = (String) tr.getTransferData(
+	            TransferableTreeNode.NODE_ID_FLAVOR);
+	        current_node = ((OntologyTreeModel) model).getNode(nodeId);
 	      }
-	      dtde.rejectDrop();
+	      if (current_node == null || current_node == model.getRoot()
+	          || !isAncestor((TreeNode) model.getRoot(), current_node)
+	          || isAncestor(current_node, parent)) {
+	        dtde.rejectDrop();
+	        return;
+	      }
+	      if (!OntologyEditor.expand(model, parent, targetTree)) {
+	        dtde.rejectDrop();
+	        return;
+	      }
+	      dtde.acceptDrop(dtde.getDropAction());
+	      move(model, parent, current_node);
+
+	      dtde.dropComplete(true);
 	    } catch (Exception e) {
 	      e.printStackTrace();
 	      dtde.rejectDrop();
 	    }
 	  }
+
+	  /** Moves node to be the first child of parent. */
+	  protected void move(StdTreeDataModel model, StdTreeDataNode parent, StdTreeDataNode node) {
+	      model.removeNode(node);
+	      model.insertChildAt(parent, node, 0);
+	  }
+
+	  /** Returns true if node is descendant or one of its ancestors. */
+	  private static boolean isAncestor(TreeNode node, TreeNode descendant) {
+	    for (TreeNode n = descendant; n != null; n = n.getParent()) {
+	      if (n == node)
+	        return true;
+	    }
+	    return false;
+	  }
 	}
+/**
+ * Carries a dragged tree node.
+ * <p>
+ * Drops inside this JVM get the node itself, or its TreePath, so the drop
+ * target has nothing to look up.  A drop into another editor process gets
+ * the node's _ST_n id, which that editor resolves through its own index.
+ * Plain text, the node label, is offered only for targets outside the
+ * editor, such as a text field; TreeDropTarget never accepts it.
+ */
 class TransferableTreeNode implements Transferable {
 
-	  public static DataFlavor TREE_PATH_FLAVOR = new DataFlavor(TreePath.class,
-	      "Tree Path");
+	  public static final DataFlavor TREE_PATH_FLAVOR =
+	      localFlavor(TreePath.class, "Tree Path");
 
-	  DataFlavor flavors[] = { TREE_PATH_FLAVOR };
-	  
-	  String path;
-	 
-	  
-	  public TransferableTreeNode(String s){
-		  path = s;
+	  public static final DataFlavor NODE_FLAVOR =
+	      localFlavor(StdTreeDataNode.class, "Tree Node");
+
+	  public static final DataFlavor NODE_ID_FLAVOR = new DataFlavor(
+	      "application/x-stc-node-id;class=java.lang.String", "STC Node Id");
+
+	  DataFlavor flavors[];
+
+	  TreePath path;
+	  StdTreeDataNode node;
+
+	  public TransferableTreeNode(TreePath path){
+		  this.path = path;
+		  this.node = (StdTreeDataNode) path.getLastPathComponent();
+		  if (node instanceof OntologyNode)
+			  flavors = new DataFlavor[] { NODE_FLAVOR, TREE_PATH_FLAVOR,
+			      NODE_ID_FLAVOR, DataFlavor.stringFlavor };
+		  else
+			  flavors = new DataFlavor[] { NODE_FLAVOR, TREE_PATH_FLAVOR,
+			      DataFlavor.stringFlavor };
 	  }
-	  
+
 	  public synchronized DataFlavor[] getTransferDataFlavors() {
-	    return flavors;
+	    return flavors.clone();
 	  }
 
 	  public boolean isDataFlavorSupported(DataFlavor flavor) {
-	    return (flavor.getRepresentationClass() == TreePath.class);
+	    for (int i = 0; i < flavors.length; i++) {
+	      if (flavors[i].equals(flavor))
+	        return true;
+	    }
+	    return false;
 	  }
 
 	  public synchronized Object getTransferData(DataFlavor flavor)
 	      throws UnsupportedFlavorException, IOException {
-	    if (isDataFlavorSupported(flavor)) {
-	    	return (Object) path;
-	    } else {
+	    if (!isDataFlavorSupported(flavor))
 	      throw new UnsupportedFlavorException(flavor);
+	    if (flavor.equals(NODE_FLAVOR))
+	      return node;
+	    if (flavor.equals(TREE_PATH_FLAVOR))
+	      return path;
+	    if (flavor.equals(NODE_ID_FLAVOR))
+	      return ((OntologyNode) node).getSTCId();
+	    return node.getText();
+	  }
+
+	  private static DataFlavor localFlavor(Class<?> c, String name) {
+	    try {
+	      return new DataFlavor(DataFlavor.javaJVMLocalObjectMimeType
+	          + ";class=" + c.getName(), name, c.getClassLoader());
+	    } catch (ClassNotFoundException e) {
+	      throw new IllegalStateException(e);
 	    }
 	  }
 	}
@@ -0,0 +1,496 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * Loads an STC file off the Event Dispatch Thread.
+ * <p>
+ * The file is parsed on the worker thread into detached
+ * {@link OntologyNode}s.  The root and the first few thousand nodes in
+ * breadth first order, the top levels of the tree, are attached to a new
+ * model on the worker thread too, since no view can see that model yet.
+ * The model is then handed to {@link #install(OntologyTreeModel)} on the
+ * EDT in one step.  The rest of the nodes are attached on the EDT in chunks,
+ * one chunk per event, so the top of the tree can be browsed and edited
+ * while the deep levels are still arriving.  A node whose parent has been
+ * deleted by then is dropped, along with the nodes below it.
+ * <p>
+ * Given a {@link SnapshotCache}, a loader of a local file first looks for a
+ * snapshot of it and, if there is an up to date one, builds the nodes from
+ * that instead of parsing the text.  Otherwise it parses as usual and saves
+ * a snapshot for next time once the model is complete.
+ * <p>
+ * A loader created with {@link #OntologyLoader(File)} maps the file
+ * instead and installs a {@link MappedOntologyModel}, which reads nodes from
+ * the file as they are expanded.
+ * <p>
+ * A loader created with {@link #OntologyLoader(List)} parses several files
+ * in parallel and merges them into one tree with an {@link OntologyMerger};
+ * the merged nodes are then attached as if from a snapshot.
+ * <p>
+ * Before any node is attached, the loader works out the
+ * {@link ContentHash} of every subtree on the worker thread, so the model
+ * has the hash of the whole tree without the EDT ever walking it.
+ * <p>
+ * The "progress" property runs from 0 to 100 across both halves of the
+ * work.  A load can be stopped with cancel(true) at any point; if the model
+ * had already been installed, {@link #uninstall(OntologyTreeModel)} is
+ * called so the caller can put back what it had before.
+ */
+public class OntologyLoader extends SwingWorker<OntologyTreeModel, Void> {
+
+    /** Nodes attached before the model is installed. */
+    private static final int FIRST_CHUNK = 2048;
+    /** Nodes attached per event once the model is visible. */
+    private static final int CHUNK = 4096;
+    /** Rows read between progress updates. */
+    private static final int PROGRESS_ROWS = 4096;
+    /** Levels below the root read up front by a mapped load. */
+    private static final int MAPPED_DEPTH = 2;
+    /** The label of the root a merge puts the files under. */
+    private static final String MERGED_ROOT = "Merged";
+
+    private final URL url;
+    private final File mappedFile;
+    private final List<URL> mergedURLs;
+    private List<OntologyMerger.Conflict> conflicts = Collections.emptyList();
+    private final long startTime = System.currentTimeMillis();
+    private SnapshotCache cache;
+    private boolean fromSnapshot;
+    private String cacheFailure;
+    private volatile OntologyTreeModel model;
+    private boolean installed;
+    private int nodeCount;
+    private long contentHash;
+
+    /* The nodes by row, and the attach order: children[k] under parents[k]. */
+    private OntologyNode[] nodes;
+    private int[] parents;
+    private int[] children;
+    private int count;
+    private Map<String, String> properties;
+
+    public OntologyLoader(URL url) {
+        this.url = url;
+        this.mappedFile = null;
+        this.mergedURLs = null;
+    }
+
+    /** Creates a loader that memory maps file; see {@link MappedOntologyModel}. */
+    public OntologyLoader(File file) throws IOException {
+        this.url = file.toURI().toURL();
+        this.mappedFile = file;
+        this.mergedURLs = null;
+    }
+
+    /** Creates a loader that merges the files at urls under one root. */
+    public OntologyLoader(List<URL> urls) {
+        this.url = null;
+        this.mappedFile = null;
+        this.mergedURLs = urls;
+    }
+
+    /** Returns the URL being loaded, or null for a merge. */
+    public URL getURL() {
+        return url;
+    }
+
+    /** Returns what is being loaded, for messages. */
+    public String getDescription() {
+        return url != null ? url.toString() : mergedURLs.size() + " merged files";
+    }
+
+    /** Returns the conflicts found by a merge; call once the load has finished. */
+    public List<OntologyMerger.Conflict> getConflicts() {
+        return conflicts;
+    }
+
+    /** Makes the loader use and fill cache; call before execute. */
+    public void setSnapshotCache(SnapshotCache cache) {
+        this.cache = cache;
+    }
+
+    /** Returns the content hash of the tree as it was read, or 0 for a mapped load. */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Returns why the snapshot of the file could not be saved, or null if
+     * it was or there was none to save.  The load works either way.
+     */
+    public String getCacheFailure() {
+        return cacheFailure;
+    }
+
+    /** Returns true if the nodes came from a snapshot rather than the text. */
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * Called on the EDT once the top of the tree is ready.  The model
+     * keeps growing after this returns.
+     */
+    protected void install(OntologyTreeModel model) {
+    }
+
+    /** Called on the EDT if the load is cancelled or fails after install. */
+    protected void uninstall(OntologyTreeModel model) {
+    }
+
+    /** Called on the EDT when every node has been attached. */
+    protected void finished(OntologyTreeModel model, int nodes, long millis) {
+    }
+
+    /** Called on the EDT if the file could not be read. */
+    protected void failed(Exception e) {
+    }
+
+    /** Called on the EDT if the load was cancelled. */
+    protected void cancelled() {
+    }
+
+    protected OntologyTreeModel doInBackground() throws Exception {
+        if (mappedFile != null)
+            return map();
+
+        File source = cache == null ? null : SnapshotCache.toFile(url);
+        OntologyStore store = source == null ? null : cache.load(source);
+        OntologySnapshot saved = null;
+        if (mergedURLs != null) {
+            OntologyMerger merger = new OntologyMerger();
+            store = merger.merge(mergedURLs, MERGED_ROOT);
+            conflicts = merger.getConflicts();
+            plan(store);
+            properties = store.getProperties();
+            setProgress(50);
+        } else if (store != null) {
+            fromSnapshot = true;
+            plan(store);
+            properties = store.getProperties();
+            setProgress(50);
+        } else {
+            saved = parse(source);
+        }
+        checkCancelled();
+        contentHash = hash();
+        checkCancelled();
+
+        final OntologyTreeModel model = this.model = new OntologyTreeModel(nodes[0]);
+        model.getProperties().putAll(properties);
+        nodeCount = count + 1;
+        int done = attach(model, 0, Math.min(FIRST_CHUNK, count));
+        checkCancelled();
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                // done() may already have run for a cancel.
+                if (isCancelled())
+                    return;
+                installed = true;
+                install(model);
+            }
+        });
+
+        while (done < count) {
+            checkCancelled();
+            final int from = done;
+            final int to = Math.min(from + CHUNK, count);
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    if (!isCancelled())
+                        attach(model, from, to);
+                }
+            });
+            done = to;
+            setProgress(50 + (int) (50L * done / count));
+        }
+        nodes = null;
+
+        if (saved != null) {
+            try {
+                cache.save(source, saved.getSourceSize(), saved.getSourceModified(),
+                        saved.getSourceHash(), saved.getStore());
+            } catch (IOException e) {
+                // The load itself worked; the text is parsed again next time.
+                cacheFailure = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Parses the text.  If source is not null the rows are also put into an
+     * {@link OntologyStore}, returned along with a description of source
+     * for the cache.
+     */
+    private OntologySnapshot parse(File source) throws Exception {
+        long size = source == null ? 0 : source.length();
+        long modified = source == null ? 0 : source.lastModified();
+        URLConnection connection = url.openConnection();
+        long length = connection.getContentLength();
+        CountingInputStream counter = new CountingInputStream(connection.getInputStream());
+        MessageDigest digest = source == null ? null : SnapshotCache.digest();
+        InputStream in = digest == null ? counter : new DigestInputStream(counter, digest);
+        Collector collector = new Collector(counter, length,
+                source == null ? null : new OntologyStore());
+        try {
+            new STCParser().parse(in, collector);
+        } finally {
+            in.close();
+        }
+        if (collector.getRowCount() == 0)
+            throw new IOException("No nodes in " + url);
+        nodes = new OntologyNode[collector.getRowCount()];
+        for (int row = 0; row < nodes.length; row++)
+            nodes[row] = collector.getNode(row);
+        properties = collector.getProperties();
+        if (collector.store == null)
+            return null;
+        collector.store.copyHeader(collector);
+        collector.store.optimize();
+        return new OntologySnapshot(null, size, modified,
+                SnapshotCache.toHex(digest.digest()), collector.store);
+    }
+
+    /** Makes the nodes and attach order from a store, breadth first. */
+    private void plan(OntologyStore store) throws IOException {
+        if (store.getRoot() == OntologyStore.NONE)
+            throw new IOException("No nodes in snapshot of " + url);
+        int slots = store.getSlotCount();
+        nodes = new OntologyNode[slots];
+        parents = new int[Math.max(slots, 1)];
+        children = new int[Math.max(slots, 1)];
+        int root = store.getRoot();
+        nodes[0] = node(store, root);
+        // Nodes are numbered in the order they are reached, the root first.
+        int[] queue = new int[Math.max(slots, 1)];
+        queue[0] = root;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int p = queue[head++];
+            int position = head - 1;
+            for (int c = store.getFirstChild(p); c != OntologyStore.NONE;
+                    c = store.getNextSibling(c)) {
+                nodes[tail] = node(store, c);
+                queue[tail] = c;
+                parents[count] = position;
+                children[count] = tail;
+                count++;
+                tail++;
+            }
+        }
+    }
+
+    private static OntologyNode node(OntologyStore store, int slot) {
+        return new OntologyNode(store.getId(slot), store.getLabel(slot),
+                store.getAttributes(slot));
+    }
+
+    private OntologyTreeModel map() throws Exception {
+        MappedSTCFile file = MappedSTCFile.open(mappedFile);
+        checkCancelled();
+        final MappedOntologyModel model = new MappedOntologyModel(file, MAPPED_DEPTH);
+        this.model = model;
+        nodeCount = file.getRowCount();
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                if (isCancelled())
+                    return;
+                installed = true;
+                install(model);
+            }
+        });
+        setProgress(100);
+        return model;
+    }
+
+    private int attach(OntologyTreeModel model, int from, int to) {
+        for (int k = from; k < to; k++)
+            model.attachHashed(nodes[parents[k]], nodes[children[k]]);
+        return to;
+    }
+
+    /*
+     * Hashes every node as it will be once attached, and returns the hash
+     * of the root.  A child is attached after its parent, so going back
+     * through the attach order reaches every child before its parent; the
+     * children of each node are first gathered, in order, into one array.
+     */
+    private long hash() {
+        int n = nodes.length;
+        int[] first = new int[n + 1];
+        for (int k = 0; k < count; k++)
+            first[parents[k] + 1]++;
+        for (int i = 0; i < n; i++)
+            first[i + 1] += first[i];
+        int[] next = new int[n];
+        System.arraycopy(first, 0, next, 0, n);
+        int[] kids = new int[count];
+        for (int k = 0; k < count; k++)
+            kids[next[parents[k]]++] = children[k];
+        // The root, row 0, comes last.
+        for (int k = count - 1; k >= -1; k--) {
+            int row = k < 0 ? 0 : children[k];
+            OntologyNode node = nodes[row];
+            long h = ContentHash.node(node.getText(), node.getAttributes());
+            for (int c = first[row]; c < first[row + 1]; c++)
+                h = ContentHash.child(h, nodes[kids[c]].contentHash);
+            node.contentHash = ContentHash.finish(h, first[row + 1] - first[row]);
+            node.hashed = true;
+            node.prehashed = true;
+        }
+        return nodes[0].contentHash;
+    }
+
+    private void checkCancelled() {
+        if (isCancelled())
+            throw new CancellationException();
+    }
+
+    protected void done() {
+        OntologyTreeModel model = null;
+        try {
+            model = get();
+        } catch (CancellationException e) {
+            // handled below
+        } catch (InterruptedException e) {
+            // handled below
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvocationTargetException)
+                cause = cause.getCause();
+            if (!(cause instanceof CancellationException)
+                    && !(cause instanceof InterruptedException)) {
+                abandon();
+                failed(cause instanceof Exception ? (Exception) cause
+                        : new ExecutionException(cause));
+                return;
+            }
+        }
+        if (model == null) {
+            abandon();
+            cancelled();
+        } else {
+            finished(model, nodeCount, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private void abandon() {
+        if (installed) {
+            installed = false;
+            uninstall(model);
+        }
+    }
+
+    /**
+     * Collects nodes and their breadth first attach order without touching
+     * a model, and checks for cancellation as rows arrive.  Given a store,
+     * it fills that too, slot for row.
+     */
+    private class Collector extends STCTreeBuilder {
+
+        private final CountingInputStream in;
+        private final long length;
+        private final OntologyStore store;
+
+        Collector(CountingInputStream in, long length, OntologyStore store) {
+            this.in = in;
+            this.length = length;
+            this.store = store;
+            parents = new int[1024];
+            children = new int[1024];
+        }
+
+        public void node(STCRow row) {
+            if ((getRowCount() % PROGRESS_ROWS) == 0) {
+                checkCancelled();
+                if (length > 0)
+                    setProgress((int) Math.min(50, 50 * in.count / length));
+            }
+            super.node(row);
+        }
+
+        protected void createNode(int row, int id, STCRow data) {
+            super.createNode(row, id, data);
+            if (store != null)
+                store.addNode(id < 0 ? -1 : id, data);
+        }
+
+        protected void renumber(int row, int id) {
+            super.renumber(row, id);
+            if (store != null)
+                store.setId(row, id);
+        }
+
+        protected void startTree(int rootRow) {
+            if (store != null)
+                store.setRoot(rootRow);
+        }
+
+        protected void attach(int parentRow, int childRow) {
+            if (count == parents.length) {
+                parents = grow(parents);
+                children = grow(children);
+            }
+            parents[count] = parentRow;
+            children[count] = childRow;
+            count++;
+            if (store != null)
+                store.addChild(parentRow, childRow);
+        }
+
+        private int[] grow(int[] a) {
+            int[] grown = new int[a.length << 1];
+            System.arraycopy(a, 0, grown, 0, a.length);
+            return grown;
+        }
+    }
+
+    /** Counts the bytes read so that progress can be reported. */
+    private static class CountingInputStream extends FilterInputStream {
+
+        volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
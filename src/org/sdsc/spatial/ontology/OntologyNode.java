@@ -0,0 +1,53 @@
+package org.sdsc.spatial.ontology;
+
+import com.inxight.st.StdTreeDataNode;
+
+/**
+ * A StarTree node that remembers where it came from: the n of its _ST_n id,
+ * and the columns after the label exactly as they were written in the STC
+ * file, so that they can be written back out unchanged.
+ */
+public class OntologyNode extends StdTreeDataNode {
+
+    private int id;
+    private final String attributes;
+
+    /* The ContentHash of the subtree, kept by OntologyTreeModel; good only if hashed. */
+    long contentHash;
+    boolean hashed;
+    /* Set while contentHash is OntologyLoader's, which counts children still to come. */
+    boolean prehashed;
+
+    /** Creates a node with no STC attributes, such as one added by the user. */
+    public OntologyNode(int id, String text) {
+        this(id, text, null);
+    }
+
+    public OntologyNode(int id, String text, String attributes) {
+        super(text);
+        this.id = id;
+        this.attributes = attributes;
+    }
+
+    /** Returns the n of the node's _ST_n id. */
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /** Returns the node's id as it is written in an STC file. */
+    public String getSTCId() {
+        return STCRow.ID_PREFIX + id;
+    }
+
+    /**
+     * Returns the STC columns that followed the label, still escaped and
+     * comma separated, or null if the node was not read from a file.
+     */
+    public String getAttributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,168 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Replays a recorded editing session onto an STC file, without the editor,
+ * and reports how long each kind of edit took:
+ * <pre>
+ * java org.sdsc.spatial.ontology.OntologyReplay [-r runs] file.stc session.journal
+ * </pre>
+ * The session is an {@link EditJournal}, either one the editor left next
+ * to a file or one {@link OntologyGenerator} made up with -e; its records
+ * are applied whatever file it was written against, through a
+ * {@link JournalReplayer}, so they go through the model and its listeners
+ * as the editor's own edits do.  The file is loaded afresh with
+ * {@link OntologyLoader} for each run and the edits are made on the EDT,
+ * one at a time.  With more than one run, the first warms up and is not
+ * counted.
+ * <p>
+ * For inserts, removes, moves and renames the count, the number skipped
+ * because the node they name is not in the tree, and the 50th, 90th, 99th
+ * and 99.9th percentile and longest times are reported, followed by the
+ * content hash of the tree the last run ends with, which is the same for
+ * the same file and session.  Runs headless.
+ */
+public class OntologyReplay {
+
+    private static final String[] OPERATIONS = { "insert", "remove", "move", "rename" };
+
+    /** The times of one kind of edit, and how many were skipped. */
+    private static class Timings {
+
+        final Latencies nanos = new Latencies();
+        int skipped;
+
+        void add(long t, boolean applied) {
+            if (applied)
+                nanos.add(t);
+            else
+                skipped++;
+        }
+    }
+
+    /** Times each edit it passes on to the model. */
+    private static class TimingTarget implements EditJournal.Target {
+
+        private final JournalReplayer replayer;
+        private final Timings[] timings;
+
+        TimingTarget(OntologyTreeModel model, Timings[] timings) {
+            this.replayer = new JournalReplayer(model);
+            this.timings = timings;
+        }
+
+        public boolean insert(int parentId, int index, int id, String label,
+                String attributes) {
+            long start = System.nanoTime();
+            boolean applied = replayer.insert(parentId, index, id, label, attributes);
+            timings[0].add(System.nanoTime() - start, applied);
+            return applied;
+        }
+
+        public boolean remove(int id) {
+            long start = System.nanoTime();
+            boolean applied = replayer.remove(id);
+            timings[1].add(System.nanoTime() - start, applied);
+            return applied;
+        }
+
+        public boolean move(int id, int parentId, int index) {
+            long start = System.nanoTime();
+            boolean applied = replayer.move(id, parentId, index);
+            timings[2].add(System.nanoTime() - start, applied);
+            return applied;
+        }
+
+        public boolean rename(int id, String label) {
+            long start = System.nanoTime();
+            boolean applied = replayer.rename(id, label);
+            timings[3].add(System.nanoTime() - start, applied);
+            return applied;
+        }
+    }
+
+    private final File file;
+    private final File session;
+
+    public OntologyReplay(File file, File session) {
+        this.file = file;
+        this.session = session;
+    }
+
+    /** Loads the file and replays the session onto it, adding the times to timings. */
+    private OntologyTreeModel run(Timings[] timings) throws Exception {
+        OntologyLoader loader = new OntologyLoader(file.toURI().toURL());
+        loader.execute();
+        final OntologyTreeModel model = loader.get();
+        final TimingTarget target = new TimingTarget(model, timings);
+        final IOException[] failure = new IOException[1];
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                try {
+                    EditJournal.replay(session, target);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+        return model;
+    }
+
+    private static Timings[] timings() {
+        Timings[] timings = new Timings[OPERATIONS.length];
+        for (int i = 0; i < timings.length; i++)
+            timings[i] = new Timings();
+        return timings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = 2;
+        int a = 0;
+        try {
+            for (; a < args.length && args[a].startsWith("-"); a++) {
+                if (args[a].equals("-r") && a + 1 < args.length)
+                    runs = Math.max(1, Integer.parseInt(args[++a]));
+                else
+                    usage();
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (a != args.length - 2)
+            usage();
+
+        OntologyReplay replay = new OntologyReplay(new File(args[a]), new File(args[a + 1]));
+        Timings[] timings = timings();
+        OntologyTreeModel model = null;
+        for (int run = 0; run < runs; run++) {
+            if (run == 1)
+                timings = timings();
+            long start = System.nanoTime();
+            model = replay.run(timings);
+            System.out.println(String.format("Run %d: %.0f ms", run + 1,
+                    (System.nanoTime() - start) / 1e6));
+        }
+
+        System.out.println(String.format("%-8s %9s %9s", "edit", "count", "skipped")
+                + Latencies.HEADINGS);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            Timings t = timings[i];
+            System.out.println(String.format("%-8s %9d %9d", OPERATIONS[i], t.nanos.count(), t.skipped)
+                    + t.nanos.format());
+        }
+        System.out.println(String.format("Content hash %016x", model.getContentHash()));
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java " + OntologyReplay.class.getName()
+                + " [-r runs] file.stc session.journal");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,207 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+import javax.swing.tree.TreeModel;
+
+import com.inxight.st.TreeDataNode;
+
+/**
+ * Saves a tree to an STC file off the Event Dispatch Thread.
+ * <p>
+ * The constructor, which must run on the EDT, copies the tree into an
+ * {@link OntologyStore}: a few int array entries per node, quick enough not
+ * to hold up the UI, and a consistent picture of the tree however it is
+ * edited while the save runs.  The copy is then written on the worker
+ * thread through a 64 KB buffered UTF-8 writer to a temporary file next to
+ * the target, synced to disk and renamed over the target by an
+ * {@link AtomicFile}.  A crash or error part way leaves the old file as it
+ * was.
+ * <p>
+ * An {@link OntologyTreeModel} is not copied on the EDT at all: the saver
+ * takes the model's latest {@link PersistentOntology} version, which does
+ * not change, and copies that into the store on the worker thread.
+ * <p>
+ * The "progress" property runs from 0 to 100 as rows are written.
+ */
+public class OntologySaver extends SwingWorker<Integer, Void> {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File target;
+    private final PersistentOntology version;
+    private final Map<String, String> properties;
+    private volatile OntologyStore store;
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Copies model, for writing to target once executed.  Call on the EDT.
+     * Throws an IOException if model is mapped and the nodes not yet read
+     * from its file cannot be, as the copy would then leave them out.
+     */
+    public OntologySaver(TreeModel model, File target) throws IOException {
+        this.target = target;
+        if (model instanceof MappedOntologyModel)
+            ((MappedOntologyModel) model).expandAll();
+        if (model instanceof OntologyTreeModel && !(model instanceof MappedOntologyModel)) {
+            OntologyTreeModel m = (OntologyTreeModel) model;
+            this.version = m.getVersions().getCurrent();
+            this.properties = new LinkedHashMap<String, String>(m.getProperties());
+        } else {
+            this.version = null;
+            this.properties = null;
+            this.store = capture(model);
+        }
+    }
+
+    /** Returns the file being written. */
+    public File getTarget() {
+        return target;
+    }
+
+    /** Returns the copy of the tree being written, or null until it has been made. */
+    public OntologyStore getStore() {
+        return store;
+    }
+
+    /** Called on the EDT once the file has been replaced. */
+    protected void finished(int nodes, long millis) {
+    }
+
+    /** Called on the EDT if the file could not be written; it is unchanged. */
+    protected void failed(Exception e) {
+    }
+
+    protected Integer doInBackground() throws Exception {
+        if (store == null) {
+            OntologyStore copy = version.toStore();
+            copy.getProperties().putAll(properties);
+            store = copy;
+        }
+        AtomicFile file = new AtomicFile(target);
+        FileOutputStream out = file.startWrite();
+        int nodes;
+        try {
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+            final int total = Math.max(STCTreeWriter.rowCount(store), 1);
+            nodes = new STCTreeWriter() {
+                protected void rowsWritten(int rows) {
+                    setProgress(Math.min(100, (int) (100L * rows / total)));
+                }
+            }.write(store, writer);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        } catch (RuntimeException e) {
+            file.failWrite(out);
+            throw e;
+        }
+        file.finishWrite(out);
+        return nodes;
+    }
+
+    protected void done() {
+        try {
+            finished(get().intValue(), System.currentTimeMillis() - startTime);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            failed(cause instanceof Exception ? (Exception) cause : e);
+        } catch (CancellationException e) {
+            failed(e);
+        } catch (InterruptedException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Copies the tree under model's root into a new store.  Nodes keep their
+     * ids and STC columns where they have them; other nodes, and any that
+     * repeat an id, get fresh ids.
+     */
+    public static OntologyStore capture(TreeModel model) {
+        OntologyStore store = new OntologyStore();
+        if (model instanceof OntologyTreeModel)
+            store.getProperties().putAll(((OntologyTreeModel) model).getProperties());
+        else if (model instanceof OntologyStoreModel)
+            store.getProperties().putAll(((OntologyStoreModel) model).getStore().getProperties());
+        Object root = model.getRoot();
+        if (root == null)
+            return store;
+
+        // Depth first with an explicit stack; the store keeps child order.
+        Object[] nodes = new Object[64];
+        int[] parents = new int[64];
+        int top = 0;
+        int[] unnumbered = new int[16];
+        int unnumberedCount = 0;
+        nodes[top] = root;
+        parents[top++] = OntologyStore.NONE;
+        while (top > 0) {
+            Object node = nodes[--top];
+            int parent = parents[top];
+            nodes[top] = null;
+
+            int id = -1;
+            String attributes = null;
+            if (node instanceof OntologyNode) {
+                id = ((OntologyNode) node).getId();
+                attributes = ((OntologyNode) node).getAttributes();
+            } else if (node instanceof OntologyStoreModel.Node) {
+                id = ((OntologyStoreModel.Node) node).getId();
+                attributes = ((OntologyStoreModel.Node) node).getAttributes();
+            }
+            if (id >= 0 && store.getNode(id) != OntologyStore.NONE)
+                id = -1;
+            String label = node instanceof TreeDataNode
+                ? ((TreeDataNode) node).getText() : String.valueOf(node);
+            int slot = store.addNode(id, label);
+            if (attributes != null)
+                store.setAttributes(slot, attributes);
+            if (id < 0) {
+                if (unnumberedCount == unnumbered.length)
+                    unnumbered = grow(unnumbered);
+                unnumbered[unnumberedCount++] = slot;
+            }
+            if (parent == OntologyStore.NONE)
+                store.setRoot(slot);
+            else
+                store.addChild(parent, slot);
+
+            int n = model.getChildCount(node);
+            while (top + n > nodes.length) {
+                Object[] grown = new Object[nodes.length << 1];
+                System.arraycopy(nodes, 0, grown, 0, top);
+                nodes = grown;
+                parents = grow(parents);
+            }
+            // Pushed last child first, but fetched in order, which is
+            // cheaper for models that walk a sibling list.
+            for (int i = 0; i < n; i++) {
+                nodes[top + n - 1 - i] = model.getChild(node, i);
+                parents[top + n - 1 - i] = slot;
+            }
+            top += n;
+        }
+        for (int k = 0; k < unnumberedCount; k++)
+            store.setId(unnumbered[k], store.getMaxId() + 1);
+        store.optimize();
+        return store;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] grown = new int[a.length << 1];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
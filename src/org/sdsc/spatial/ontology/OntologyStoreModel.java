@@ -0,0 +1,246 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+import com.inxight.st.TreeDataModel;
+import com.inxight.st.TreeDataNode;
+
+/**
+ * Shows an {@link OntologyStore} in a JTree or StarTree.
+ * <p>
+ * The nodes handed to the views are {@link Node}s: two-field flyweights
+ * made on demand, equal whenever they name the same slot, so nothing per
+ * node is kept beyond the store itself.  Edits should go through the model
+ * rather than the store so that the views hear about them; a burst of them
+ * under one parent reaches the views as one event, through a
+ * {@link TreeEventBatcher}.
+ */
+public class OntologyStoreModel implements TreeDataModel {
+
+    private final OntologyStore store;
+    private final TreeEventBatcher events = new TreeEventBatcher(this);
+
+    public OntologyStoreModel(OntologyStore store) {
+        this.store = store;
+    }
+
+    public OntologyStore getStore() {
+        return store;
+    }
+
+    /** Returns the flyweight for slot, or null for {@link OntologyStore#NONE}. */
+    public Node getNode(int slot) {
+        return slot == OntologyStore.NONE ? null : new Node(store, slot);
+    }
+
+    private static int slot(Object node) {
+        return ((Node) node).slot;
+    }
+
+    public Object getRoot() {
+        return getNode(store.getRoot());
+    }
+
+    public Object getChild(Object parent, int index) {
+        events.flush();
+        return getNode(store.getChild(slot(parent), index));
+    }
+
+    public int getChildCount(Object parent) {
+        events.flush();
+        return store.getChildCount(slot(parent));
+    }
+
+    public boolean isLeaf(Object node) {
+        events.flush();
+        return store.getChildCount(slot(node)) == 0;
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        events.flush();
+        if (parent == null || child == null)
+            return -1;
+        return store.getIndexOfChild(slot(parent), slot(child));
+    }
+
+    /** Renames the node at the end of path. */
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        Node node = (Node) path.getLastPathComponent();
+        store.setLabel(node.slot, String.valueOf(newValue));
+        int p = store.getParent(node.slot);
+        if (p == OntologyStore.NONE) {
+            fire(EVENT_CHANGED, new TreeModelEvent(this, path, null, null));
+        } else {
+            fire(EVENT_CHANGED, new TreeModelEvent(this, path.getParentPath(),
+                    new int[] { store.getIndexOfChild(p, node.slot) },
+                    new Object[] { node }));
+        }
+    }
+
+    /** Adds a new node with a fresh id as the index-th child of parent. */
+    public Node insertNode(Node parent, String label, int index) {
+        int child = store.createNode(label);
+        store.insertChild(parent.slot, child, index);
+        Node node = getNode(child);
+        fire(EVENT_INSERTED, new TreeModelEvent(this, getPathToRoot(parent),
+                new int[] { index }, new Object[] { node }));
+        return node;
+    }
+
+    /** Removes node and its subtree. */
+    public void removeNode(Node node) {
+        int p = store.getParent(node.slot);
+        if (p == OntologyStore.NONE)
+            return;
+        int index = store.getIndexOfChild(p, node.slot);
+        TreePath parentPath = getPathToRoot(getNode(p));
+        store.remove(node.slot);
+        fire(EVENT_REMOVED, new TreeModelEvent(this, parentPath,
+                new int[] { index }, new Object[] { node }));
+    }
+
+    /** Moves node and its subtree to be the last child of parent. */
+    public void moveNode(Node node, Node parent) {
+        if (store.isAncestor(node.slot, parent.slot))
+            throw new IllegalArgumentException(node + " is above " + parent);
+        removeNode(node);
+        store.addChild(parent.slot, node.slot);
+        fire(EVENT_INSERTED, new TreeModelEvent(this, getPathToRoot(parent),
+                new int[] { store.getChildCount(parent.slot) - 1 },
+                new Object[] { node }));
+    }
+
+    /** Returns the path from the root down to node. */
+    public TreePath getPathToRoot(Node node) {
+        int depth = 0;
+        for (int n = node.slot; n != OntologyStore.NONE; n = store.getParent(n))
+            depth++;
+        Object[] path = new Object[depth];
+        for (int n = node.slot; n != OntologyStore.NONE; n = store.getParent(n))
+            path[--depth] = getNode(n);
+        return new TreePath(path);
+    }
+
+    /** Sends any changes the listeners have not heard of yet. */
+    public void flushEvents() {
+        events.flush();
+    }
+
+    public void addTreeModelListener(TreeModelListener l) {
+        events.addTreeModelListener(l);
+    }
+
+    public void removeTreeModelListener(TreeModelListener l) {
+        events.removeTreeModelListener(l);
+    }
+
+    private static final int EVENT_CHANGED = TreeEventBatcher.CHANGED;
+    private static final int EVENT_INSERTED = TreeEventBatcher.INSERTED;
+    private static final int EVENT_REMOVED = TreeEventBatcher.REMOVED;
+
+    private void fire(int type, TreeModelEvent e) {
+        events.post(type, e);
+    }
+
+    /**
+     * A node of an {@link OntologyStore}: the store and a slot.  Two Nodes
+     * are equal if they name the same slot of the same store.
+     */
+    public static final class Node implements TreeDataNode, TreeNode {
+
+        private final OntologyStore store;
+        private final int slot;
+
+        Node(OntologyStore store, int slot) {
+            this.store = store;
+            this.slot = slot;
+        }
+
+        /** Returns the node's slot in the store. */
+        public int getSlot() {
+            return slot;
+        }
+
+        /** Returns the n of the node's _ST_n id. */
+        public int getId() {
+            return store.getId(slot);
+        }
+
+        public String getText() {
+            return store.getLabel(slot);
+        }
+
+        /** Returns the STC columns after the label; see {@link OntologyStore#getAttributes(int)}. */
+        public String getAttributes() {
+            return store.getAttributes(slot);
+        }
+
+        public TreeNode getChildAt(int index) {
+            int c = store.getChild(slot, index);
+            if (c == OntologyStore.NONE)
+                throw new ArrayIndexOutOfBoundsException(index);
+            return new Node(store, c);
+        }
+
+        public int getChildCount() {
+            return store.getChildCount(slot);
+        }
+
+        public TreeNode getParent() {
+            int p = store.getParent(slot);
+            return p == OntologyStore.NONE ? null : new Node(store, p);
+        }
+
+        public int getIndex(TreeNode node) {
+            if (!(node instanceof Node) || ((Node) node).store != store)
+                return -1;
+            return store.getIndexOfChild(slot, ((Node) node).slot);
+        }
+
+        public boolean getAllowsChildren() {
+            return true;
+        }
+
+        public boolean isLeaf() {
+            return store.getChildCount(slot) == 0;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Enumeration children() {
+            return new Enumeration<TreeNode>() {
+                private int next = store.getFirstChild(slot);
+
+                public boolean hasMoreElements() {
+                    return next != OntologyStore.NONE;
+                }
+
+                public TreeNode nextElement() {
+                    if (next == OntologyStore.NONE)
+                        throw new NoSuchElementException();
+                    Node n = new Node(store, next);
+                    next = store.getNextSibling(next);
+                    return n;
+                }
+            };
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Node && ((Node) o).slot == slot
+                && ((Node) o).store == store;
+        }
+
+        public int hashCode() {
+            return slot;
+        }
+
+        public String toString() {
+            return getText();
+        }
+    }
+}
@@ -0,0 +1,665 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+import com.inxight.st.StdTreeDataModel;
+import com.inxight.st.StdTreeDataNode;
+import com.inxight.st.TreeDataNode;
+
+/**
+ * A StarTree data model of {@link OntologyNode}s that can find any of its
+ * nodes by id in constant time.
+ * <p>
+ * The model listens to its own change events and keeps a {@link NodeIndex}
+ * in step with them, so the index stays right however the tree is edited:
+ * addChild, insertChildAt, removeNode, or a drag and drop move (which is a
+ * remove followed by an insert of the same subtree).  Renames do not touch
+ * the index, since ids do not change.  As a last line of defence a lookup
+ * only returns a node that is still under this model's root.
+ * <p>
+ * {@link #moveNode} moves a subtree without walking it, and
+ * {@link #nodeChanged} reports a rename without the subtree being laid out
+ * again as nodeStructureChanged would have it.
+ * <p>
+ * Listeners other than the index hear of changes through a
+ * {@link TreeEventBatcher}, which merges a burst of changes under one
+ * parent into one event at the end of the EDT event, so the views lay out
+ * and repaint once for the burst.  The structure queries flush it first.
+ * <p>
+ * {@link #findNodes} finds nodes by the start of their labels through a
+ * {@link LabelIndex}, built the first time it is asked for and then kept
+ * up to date with each change like the id index.
+ * <p>
+ * Every node carries a {@link ContentHash} of its subtree.  A change only
+ * marks the nodes from the one changed up to the root as out of date,
+ * stopping at the first that already is, and {@link #getContentHash}
+ * works out again just the marked ones; so after an edit the hash of the
+ * whole tree costs the child counts along one path, not a walk of the
+ * tree.
+ * <p>
+ * {@link #getVersions} gives the tree as a series of immutable
+ * {@link PersistentOntology} versions, the latest made from the one before
+ * by each change, which other threads can read, save or search while the
+ * tree goes on being edited here.
+ */
+public class OntologyTreeModel extends StdTreeDataModel {
+
+    private final NodeIndex<OntologyNode> index = new NodeIndex<OntologyNode>();
+    private final Map<String, String> properties =
+        new LinkedHashMap<String, String>();
+    private final TreeEventBatcher events = new TreeEventBatcher(this);
+    private LabelIndex<OntologyNode> labels;
+    private OntologyVersions versions;
+
+    /* The node being moved, whose ids the index already has. */
+    private Object moving;
+
+    /* The node being attached, whose hash its parent's already counts. */
+    private Object attaching;
+
+    public OntologyTreeModel(OntologyNode root) {
+        super(root);
+        addSubtree(root);
+        super.addTreeModelListener(new IndexUpdater());
+        super.addTreeModelListener(new HashUpdater());
+        super.addTreeModelListener(new Forwarder());
+    }
+
+    /** Returns the node with the given id, or null if it is not in the tree. */
+    public OntologyNode getNode(int id) {
+        OntologyNode node = index.get(id);
+        if (node != null && !isInTree(node))
+            return null;
+        return node;
+    }
+
+    /** Returns the node with the given _ST_n id, or null. */
+    public OntologyNode getNode(String stcId) {
+        if (stcId == null || !stcId.startsWith(STCRow.ID_PREFIX))
+            return null;
+        try {
+            return getNode(Integer.parseInt(stcId.substring(STCRow.ID_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns up to limit nodes whose labels start with prefix, ignoring
+     * case, in label order.  A mapped model only finds nodes it has read.
+     */
+    public List<OntologyNode> findNodes(String prefix, int limit) {
+        if (labels == null) {
+            labels = new LabelIndex<OntologyNode>();
+            addLabels(getRoot());
+            super.addTreeModelListener(new LabelUpdater());
+        }
+        List<OntologyNode> found = labels.find(prefix, limit);
+        for (int i = found.size() - 1; i >= 0; i--) {
+            if (!isInTree(found.get(i)))
+                found.remove(i);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the versions of the tree, the latest of which is the tree as
+     * it is now.  The first call copies the tree; from then on each change
+     * makes a new version, in a few allocations for most edits.  Call on
+     * the EDT; the versions can then be read on any thread.  Nodes that are
+     * not {@link OntologyNode}s are left out, and a mapped model's versions
+     * hold only the nodes it has read.
+     */
+    public OntologyVersions getVersions() {
+        if (versions == null) {
+            versions = new OntologyVersions(copyVersion(getRoot()));
+            super.addTreeModelListener(new VersionUpdater());
+        }
+        return versions;
+    }
+
+    /** Returns true if node is part of this model. */
+    public boolean contains(OntologyNode node) {
+        return node != null && index.contains(node.getId(), node) && isInTree(node);
+    }
+
+    /**
+     * Creates a node with a fresh id.  The node is not part of the tree
+     * until it is added with addChild or insertChildAt.
+     */
+    public OntologyNode createNode(String text) {
+        return new OntologyNode(index.allocateId(), text);
+    }
+
+    /**
+     * Keeps {@link #createNode(String)} from handing out ids up to maxId,
+     * for nodes that belong to the tree but have not been added to it yet.
+     */
+    protected void reserveIds(int maxId) {
+        index.reserve(maxId);
+    }
+
+    /**
+     * Returns the STC header properties (caption, layoutprops and so on) of
+     * the file the tree was read from, to be written back when it is saved.
+     * The map can be changed.
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Moves node and its subtree to be the index-th child of parent.  The
+     * views hear of a removal and an insertion as usual, but the index is
+     * left alone, so the cost does not depend on the size of the subtree.
+     */
+    public void moveNode(StdTreeDataNode node, StdTreeDataNode parent, int index) {
+        moving = node;
+        try {
+            removeNode(node);
+            insertChildAt(parent, node, index);
+        } finally {
+            moving = null;
+        }
+    }
+
+    /**
+     * Adds child as the last child of parent, for a loader that has already
+     * hashed the whole tree as it will be: the hashes of parent and its
+     * ancestors are kept, unless parent has been hashed again here since,
+     * as it is if an edit is made during the load and the hash then asked
+     * for.  If parent has been removed from the tree in the meantime, child
+     * is dropped; its own children then are too.  See {@link OntologyLoader}.
+     */
+    void attachHashed(StdTreeDataNode parent, StdTreeDataNode child) {
+        if (!isInTree(parent)) {
+            // Put back by an undo, parent is hashed with what it has.
+            invalidate(parent);
+            return;
+        }
+        // Such a hash counts only the children parent had at the time.
+        if (!(parent instanceof OntologyNode) || !((OntologyNode) parent).prehashed)
+            invalidate(parent);
+        attaching = child;
+        try {
+            addChild(parent, child);
+        } finally {
+            attaching = null;
+        }
+    }
+
+    /** Tells the views that node's text has changed, and nothing else. */
+    public void nodeChanged(TreeNode node) {
+        TreeNode parent = node.getParent();
+        TreeModelEvent e;
+        if (parent == null)
+            e = new TreeModelEvent(this, new TreePath(node), null, null);
+        else
+            e = new TreeModelEvent(this, getPathToRoot(parent),
+                    new int[] { parent.getIndex(node) }, new Object[] { node });
+        events.post(TreeEventBatcher.CHANGED, e);
+        if (labels != null && node instanceof OntologyNode)
+            labels.add((OntologyNode) node);
+        if (versions != null && node instanceof OntologyNode)
+            versions.rename(((OntologyNode) node).getId(), ((OntologyNode) node).getText());
+        invalidate(node);
+    }
+
+    /**
+     * Returns the {@link ContentHash} of the whole tree.  It is the same as
+     * {@link ContentHash#of(OntologyStore)} gives for a copy of the tree or
+     * for the file it was saved to, so it tells whether the tree has
+     * changed since without looking at it again.
+     */
+    public long getContentHash() {
+        return getContentHash(getRoot());
+    }
+
+    /** Returns the {@link ContentHash} of the subtree of node. */
+    public long getContentHash(Object node) {
+        if (node instanceof OntologyNode && ((OntologyNode) node).hashed)
+            return ((OntologyNode) node).contentHash;
+        // Post order, going down only into nodes that are out of date.
+        ArrayList<Object> stack = new ArrayList<Object>();
+        ArrayList<Object> ready = new ArrayList<Object>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Object o = stack.get(stack.size() - 1);
+            if (ready.isEmpty() || ready.get(ready.size() - 1) != o) {
+                ready.add(o);
+                if (o instanceof TreeNode) {
+                    TreeNode t = (TreeNode) o;
+                    for (int i = t.getChildCount() - 1; i >= 0; i--) {
+                        TreeNode c = t.getChildAt(i);
+                        if (!(c instanceof OntologyNode) || !((OntologyNode) c).hashed)
+                            stack.add(c);
+                    }
+                }
+                continue;
+            }
+            stack.remove(stack.size() - 1);
+            ready.remove(ready.size() - 1);
+            hash(o);
+        }
+        return hash(node);
+    }
+
+    /* Hashes o from its children, which must be up to date, and keeps it. */
+    private long hash(Object o) {
+        if (o instanceof OntologyNode && ((OntologyNode) o).hashed)
+            return ((OntologyNode) o).contentHash;
+        long h;
+        int count = 0;
+        if (o instanceof OntologyNode)
+            h = ContentHash.node(((OntologyNode) o).getText(), ((OntologyNode) o).getAttributes());
+        else if (o instanceof TreeDataNode)
+            h = ContentHash.node(((TreeDataNode) o).getText(), null);
+        else
+            h = ContentHash.node(String.valueOf(o), null);
+        if (o instanceof TreeNode) {
+            TreeNode t = (TreeNode) o;
+            count = t.getChildCount();
+            for (int i = 0; i < count; i++) {
+                TreeNode c = t.getChildAt(i);
+                h = ContentHash.child(h, c instanceof OntologyNode && ((OntologyNode) c).hashed
+                        ? ((OntologyNode) c).contentHash : hash(c));
+            }
+        }
+        h = ContentHash.finish(h, count);
+        if (o instanceof OntologyNode) {
+            ((OntologyNode) o).contentHash = h;
+            ((OntologyNode) o).hashed = true;
+            ((OntologyNode) o).prehashed = false;
+        }
+        return h;
+    }
+
+    /*
+     * Marks node and its ancestors out of date.  An out of date node's
+     * ancestors always are too, so the walk stops at the first one found.
+     */
+    private void invalidate(Object node) {
+        for (Object n = node; n instanceof TreeNode; n = ((TreeNode) n).getParent()) {
+            if (n instanceof OntologyNode) {
+                if (!((OntologyNode) n).hashed)
+                    return;
+                ((OntologyNode) n).hashed = false;
+            }
+        }
+    }
+
+    /* Marks every node of the subtree of top out of date. */
+    private void invalidateSubtree(Object top) {
+        ArrayList<Object> stack = new ArrayList<Object>();
+        stack.add(top);
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o instanceof OntologyNode)
+                ((OntologyNode) o).hashed = false;
+            if (o instanceof TreeNode) {
+                TreeNode t = (TreeNode) o;
+                for (int i = t.getChildCount() - 1; i >= 0; i--)
+                    stack.add(t.getChildAt(i));
+            }
+        }
+        invalidate(top);
+    }
+
+    /** Sends any changes the listeners have not heard of yet. */
+    public void flushEvents() {
+        events.flush();
+    }
+
+    public void addTreeModelListener(TreeModelListener l) {
+        events.addTreeModelListener(l);
+    }
+
+    public void removeTreeModelListener(TreeModelListener l) {
+        events.removeTreeModelListener(l);
+    }
+
+    public Object getChild(Object parent, int index) {
+        events.flush();
+        return super.getChild(parent, index);
+    }
+
+    public int getChildCount(Object parent) {
+        events.flush();
+        return super.getChildCount(parent);
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        events.flush();
+        return super.getIndexOfChild(parent, child);
+    }
+
+    public boolean isLeaf(Object node) {
+        events.flush();
+        return super.isLeaf(node);
+    }
+
+    /** Returns the number of nodes in the tree. */
+    public int getNodeCount() {
+        return index.size();
+    }
+
+    /** Returns true if node is at or below the root of this model. */
+    private boolean isInTree(TreeNode node) {
+        Object root = getRoot();
+        for (TreeNode n = node; n != null; n = n.getParent()) {
+            if (n == root)
+                return true;
+        }
+        return false;
+    }
+
+    private void addSubtree(Object top) {
+        ArrayList<Object> stack = new ArrayList<Object>();
+        stack.add(top);
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o instanceof OntologyNode) {
+                OntologyNode node = (OntologyNode) o;
+                index.put(node.getId(), node);
+            }
+            if (o instanceof TreeNode) {
+                TreeNode t = (TreeNode) o;
+                for (int i = t.getChildCount() - 1; i >= 0; i--)
+                    stack.add(t.getChildAt(i));
+            }
+        }
+    }
+
+    private void removeSubtree(Object top) {
+        ArrayList<Object> stack = new ArrayList<Object>();
+        stack.add(top);
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o instanceof OntologyNode) {
+                OntologyNode node = (OntologyNode) o;
+                index.remove(node.getId(), node);
+            }
+            if (o instanceof TreeNode) {
+                TreeNode t = (TreeNode) o;
+                for (int i = t.getChildCount() - 1; i >= 0; i--)
+                    stack.add(t.getChildAt(i));
+            }
+        }
+    }
+
+    /* Indexes the labels of top and its subtree; indexed nodes are refiled. */
+    private void addLabels(Object top) {
+        ArrayList<Object> stack = new ArrayList<Object>();
+        stack.add(top);
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o instanceof OntologyNode)
+                labels.add((OntologyNode) o);
+            if (o instanceof TreeNode) {
+                TreeNode t = (TreeNode) o;
+                for (int i = t.getChildCount() - 1; i >= 0; i--)
+                    stack.add(t.getChildAt(i));
+            }
+        }
+    }
+
+    private void removeLabels(Object top) {
+        ArrayList<Object> stack = new ArrayList<Object>();
+        stack.add(top);
+        while (!stack.isEmpty()) {
+            Object o = stack.remove(stack.size() - 1);
+            if (o instanceof OntologyNode)
+                labels.remove((OntologyNode) o);
+            if (o instanceof TreeNode) {
+                TreeNode t = (TreeNode) o;
+                for (int i = t.getChildCount() - 1; i >= 0; i--)
+                    stack.add(t.getChildAt(i));
+            }
+        }
+    }
+
+    /* A version holding just the subtree of top. */
+    private PersistentOntology copyVersion(Object top) {
+        PersistentOntology.Builder builder = new PersistentOntology.Builder();
+        if (!(top instanceof OntologyNode))
+            return builder.build();
+        ArrayList<Object> stack = new ArrayList<Object>();
+        ArrayList<Integer> parents = new ArrayList<Integer>();
+        stack.add(top);
+        parents.add(Integer.valueOf(OntologyStore.NONE));
+        while (!stack.isEmpty()) {
+            OntologyNode node = (OntologyNode) stack.remove(stack.size() - 1);
+            int parent = parents.remove(parents.size() - 1).intValue();
+            int added = builder.add(parent, node.getId(), node.getText(), node.getAttributes());
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                TreeNode c = node.getChildAt(i);
+                if (c instanceof OntologyNode) {
+                    stack.add(c);
+                    parents.add(Integer.valueOf(added));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /* Adds node and its subtree to v as the index-th child of parentId. */
+    private static PersistentOntology insertVersion(PersistentOntology v, int parentId, int index,
+            OntologyNode node) {
+        v = v.insert(parentId, index, node.getId(), node.getText(), node.getAttributes());
+        // Below node, each child goes after the ones added before it.
+        ArrayList<OntologyNode> stack = new ArrayList<OntologyNode>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            OntologyNode n = stack.remove(stack.size() - 1);
+            if (n != node)
+                v = v.insert(((OntologyNode) n.getParent()).getId(), Integer.MAX_VALUE,
+                        n.getId(), n.getText(), n.getAttributes());
+            for (int i = n.getChildCount() - 1; i >= 0; i--) {
+                TreeNode c = n.getChildAt(i);
+                if (c instanceof OntologyNode)
+                    stack.add((OntologyNode) c);
+            }
+        }
+        return v;
+    }
+
+    /** Passes the superclass's events on through the batcher. */
+    private class Forwarder implements TreeModelListener {
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            events.post(TreeEventBatcher.CHANGED, e);
+        }
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            events.post(TreeEventBatcher.INSERTED, e);
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            events.post(TreeEventBatcher.REMOVED, e);
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            events.post(TreeEventBatcher.STRUCTURE_CHANGED, e);
+        }
+    }
+
+    /** Keeps the index in step with the model's own change events. */
+    private class IndexUpdater implements TreeModelListener {
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] != moving)
+                        addSubtree(children[i]);
+                }
+            }
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] != moving)
+                        removeSubtree(children[i]);
+                }
+            }
+        }
+
+        public void treeNodesChanged(TreeModelEvent e) {
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            if (e.getTreePath() != null)
+                addSubtree(e.getTreePath().getLastPathComponent());
+        }
+    }
+
+    /** Marks the nodes a change touches, and their ancestors, as needing a new hash. */
+    private class HashUpdater implements TreeModelListener {
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] == attaching)
+                        return;
+                    // A moved subtree keeps its hash; a new one may be stale.
+                    if (children[i] != moving && children[i] instanceof OntologyNode)
+                        ((OntologyNode) children[i]).hashed = false;
+                }
+            }
+            parentChanged(e);
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            parentChanged(e);
+        }
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children == null) {
+                parentChanged(e);
+                return;
+            }
+            for (int i = 0; i < children.length; i++)
+                invalidate(children[i]);
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            if (e.getTreePath() != null)
+                invalidateSubtree(e.getTreePath().getLastPathComponent());
+        }
+
+        private void parentChanged(TreeModelEvent e) {
+            if (e.getTreePath() != null)
+                invalidate(e.getTreePath().getLastPathComponent());
+        }
+    }
+
+    /** Keeps the label index in step, as IndexUpdater does the id index. */
+    private class LabelUpdater implements TreeModelListener {
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] != moving)
+                        addLabels(children[i]);
+                }
+            }
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] != moving)
+                        removeLabels(children[i]);
+                }
+            }
+        }
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children == null && e.getTreePath() != null)
+                children = new Object[] { e.getTreePath().getLastPathComponent() };
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] instanceof OntologyNode)
+                        labels.add((OntologyNode) children[i]);
+                }
+            }
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            if (e.getTreePath() != null)
+                addLabels(e.getTreePath().getLastPathComponent());
+        }
+    }
+
+    /** Makes a new version for each change, as IndexUpdater keeps the index. */
+    private class VersionUpdater implements TreeModelListener {
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            Object parent = e.getTreePath() == null ? null : e.getTreePath().getLastPathComponent();
+            Object[] children = e.getChildren();
+            int[] indices = e.getChildIndices();
+            if (!(parent instanceof OntologyNode) || children == null || indices == null)
+                return;
+            int parentId = ((OntologyNode) parent).getId();
+            PersistentOntology v = versions.getCurrent();
+            for (int i = 0; i < children.length; i++) {
+                if (!(children[i] instanceof OntologyNode))
+                    continue;
+                OntologyNode child = (OntologyNode) children[i];
+                // The removal of a moving node left it in the version, to be moved now.
+                if (child == moving)
+                    v = v.move(child.getId(), parentId, indices[i]);
+                else
+                    v = insertVersion(v, parentId, indices[i], child);
+            }
+            versions.setCurrent(v);
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children == null)
+                return;
+            PersistentOntology v = versions.getCurrent();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != moving && children[i] instanceof OntologyNode)
+                    v = v.remove(((OntologyNode) children[i]).getId());
+            }
+            versions.setCurrent(v);
+        }
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            Object[] children = e.getChildren();
+            if (children == null && e.getTreePath() != null)
+                children = new Object[] { e.getTreePath().getLastPathComponent() };
+            if (children == null)
+                return;
+            PersistentOntology v = versions.getCurrent();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] instanceof OntologyNode) {
+                    OntologyNode node = (OntologyNode) children[i];
+                    v = v.rename(node.getId(), node.getText());
+                }
+            }
+            versions.setCurrent(v);
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            versions.setCurrent(copyVersion(getRoot()));
+        }
+    }
+}
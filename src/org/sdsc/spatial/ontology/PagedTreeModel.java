@@ -0,0 +1,532 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+import com.inxight.st.TreeDataModel;
+import com.inxight.st.TreeDataNode;
+
+/**
+ * A view of another tree model in which a node with more than a page of
+ * children shows them in {@link Bucket}s: pages of consecutive children
+ * labelled by the first and last, or alphabetical ranges such as "A-C".
+ * <p>
+ * Nothing is copied.  The buckets of a node are worked out the first time a
+ * view asks for its children, in one pass over them, and a bucket is only
+ * asked for its own children when it is expanded, so a JTree lays out, and
+ * a StarTree draws, one page at a time.  The model underneath is not
+ * touched: edits, saves and drag and drop should go to {@link #getSource()}
+ * with real nodes, {@link #toModelNode(Object)} mapping a bucket to the node
+ * it belongs to, and {@link #toViewPath(TreePath)} turning a path of real
+ * nodes into one the views can show.
+ * <p>
+ * Events from the source are passed on with their paths translated.  A
+ * change to the children of a paged node is passed on as a structure change
+ * of that node, since it can move children between buckets; a rename that
+ * leaves the node in its bucket is passed on as a change within it.
+ * Buckets are equal when they have the same parent, place and label, so a
+ * view's expanded buckets stay expanded when they are worked out again.
+ */
+public class PagedTreeModel implements TreeDataModel {
+
+    /** Buckets of consecutive children. */
+    public static final int PAGES = 0;
+
+    /** Buckets of children by the first letter of their labels. */
+    public static final int ALPHABETICAL = 1;
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final char DASH = '\u2013';
+
+    private final TreeModel source;
+    private final int mode;
+    private final int pageSize;
+    private final EventListenerList listeners = new EventListenerList();
+    private final Map<Object, Bucket[]> buckets = new HashMap<Object, Bucket[]>();
+    private final TreeModelListener forwarder = new Forwarder();
+
+    public PagedTreeModel(TreeModel source, int mode, int pageSize) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("Page size " + pageSize);
+        this.source = source;
+        this.mode = mode;
+        this.pageSize = pageSize;
+    }
+
+    public TreeModel getSource() {
+        return source;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** Returns the model under model if it is a paged view, or else model. */
+    public static TreeModel getSource(TreeModel model) {
+        return model instanceof PagedTreeModel ? ((PagedTreeModel) model).source : model;
+    }
+
+    /** Returns the real node a bucket belongs to, or node itself. */
+    public static Object toModelNode(Object node) {
+        return node instanceof Bucket ? ((Bucket) node).parent : node;
+    }
+
+    /** Returns path without its buckets. */
+    public static TreePath toModelPath(TreePath path) {
+        Object[] p = path.getPath();
+        int n = 0;
+        for (int i = 0; i < p.length; i++) {
+            if (!(p[i] instanceof Bucket))
+                p[n++] = p[i];
+        }
+        if (n == p.length)
+            return path;
+        Object[] real = new Object[n];
+        System.arraycopy(p, 0, real, 0, n);
+        return new TreePath(real);
+    }
+
+    /**
+     * Returns path, a path of real nodes from the root, with the bucket
+     * holding each node put in below its parent where the parent is paged.
+     */
+    public TreePath toViewPath(TreePath path) {
+        Object[] p = path.getPath();
+        ArrayList<Object> view = new ArrayList<Object>(p.length + 4);
+        for (int i = 0; i < p.length; i++) {
+            view.add(p[i]);
+            if (i + 1 < p.length && isPaged(p[i])) {
+                Bucket b = bucketOf(p[i], source.getIndexOfChild(p[i], p[i + 1]));
+                if (b != null)
+                    view.add(b);
+            }
+        }
+        return view.size() == p.length ? path : new TreePath(view.toArray());
+    }
+
+    private boolean isPaged(Object node) {
+        return !(node instanceof Bucket) && source.getChildCount(node) > pageSize;
+    }
+
+    public Object getRoot() {
+        return source.getRoot();
+    }
+
+    public Object getChild(Object parent, int index) {
+        if (parent instanceof Bucket) {
+            Bucket b = current((Bucket) parent);
+            if (b == null || index < 0 || index >= b.count)
+                return null;
+            return source.getChild(b.parent, b.indices[index]);
+        }
+        if (isPaged(parent)) {
+            Bucket[] bs = bucketsOf(parent);
+            return index >= 0 && index < bs.length ? bs[index] : null;
+        }
+        return source.getChild(parent, index);
+    }
+
+    public int getChildCount(Object parent) {
+        if (parent instanceof Bucket) {
+            Bucket b = current((Bucket) parent);
+            return b == null ? 0 : b.count;
+        }
+        int n = source.getChildCount(parent);
+        return n > pageSize ? bucketsOf(parent).length : n;
+    }
+
+    public boolean isLeaf(Object node) {
+        return node instanceof Bucket ? false : source.isLeaf(node);
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        if (parent == null || child == null)
+            return -1;
+        if (parent instanceof Bucket) {
+            Bucket b = current((Bucket) parent);
+            if (b == null)
+                return -1;
+            return b.indexOf(source.getIndexOfChild(b.parent, child));
+        }
+        if (isPaged(parent)) {
+            Bucket[] bs = bucketsOf(parent);
+            for (int i = 0; i < bs.length; i++) {
+                if (bs[i].equals(child))
+                    return i;
+            }
+            return -1;
+        }
+        return source.getIndexOfChild(parent, child);
+    }
+
+    /** Renames a real node; buckets cannot be renamed. */
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        if (!(path.getLastPathComponent() instanceof Bucket))
+            source.valueForPathChanged(toModelPath(path), newValue);
+    }
+
+    /* The source is listened to only while someone listens to the view. */
+    public void addTreeModelListener(TreeModelListener l) {
+        if (listeners.getListenerCount() == 0)
+            source.addTreeModelListener(forwarder);
+        listeners.add(TreeModelListener.class, l);
+    }
+
+    public void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(TreeModelListener.class, l);
+        if (listeners.getListenerCount() == 0) {
+            source.removeTreeModelListener(forwarder);
+            buckets.clear();
+        }
+    }
+
+    /** Returns the buckets of parent as they are now. */
+    private Bucket[] bucketsOf(Object parent) {
+        Bucket[] bs = buckets.get(parent);
+        if (bs == null) {
+            bs = mode == ALPHABETICAL ? alphabetical(parent) : pages(parent);
+            buckets.put(parent, bs);
+        }
+        return bs;
+    }
+
+    /* A bucket a view still holds may have been worked out again since. */
+    private Bucket current(Bucket b) {
+        Bucket[] bs = bucketsOf(b.parent);
+        if (b.place < bs.length && bs[b.place].equals(b))
+            return bs[b.place];
+        return null;
+    }
+
+    /** Returns the bucket holding the index-th child of parent, or null. */
+    private Bucket bucketOf(Object parent, int index) {
+        if (index < 0)
+            return null;
+        Bucket[] bs = bucketsOf(parent);
+        for (int i = 0; i < bs.length; i++) {
+            if (bs[i].indexOf(index) >= 0)
+                return bs[i];
+        }
+        return null;
+    }
+
+    private Bucket[] pages(Object parent) {
+        int n = source.getChildCount(parent);
+        Bucket[] bs = new Bucket[(n + pageSize - 1) / pageSize];
+        for (int p = 0; p < bs.length; p++) {
+            int from = p * pageSize;
+            int to = Math.min(n, from + pageSize);
+            int[] indices = new int[to - from];
+            for (int i = 0; i < indices.length; i++)
+                indices[i] = from + i;
+            String text = label(source.getChild(parent, from)) + " " + DASH + " "
+                    + label(source.getChild(parent, to - 1));
+            bs[p] = new Bucket(source, parent, p, text, indices, (char) 0, (char) 0);
+        }
+        return bs;
+    }
+
+    /*
+     * Children are grouped by first letter, letters being run together
+     * until a bucket would pass a page; a letter with more than a page of
+     * children gets as many buckets as it needs.
+     */
+    private Bucket[] alphabetical(Object parent) {
+        int n = source.getChildCount(parent);
+        char[] keys = new char[n];
+        TreeMap<Character, int[]> counts = new TreeMap<Character, int[]>();
+        for (int i = 0; i < n; i++) {
+            keys[i] = key(label(source.getChild(parent, i)));
+            int[] c = counts.get(keys[i]);
+            if (c == null)
+                counts.put(keys[i], c = new int[1]);
+            c[0]++;
+        }
+
+        // Work out the letter ranges, then fill them in one more pass.
+        ArrayList<char[]> ranges = new ArrayList<char[]>();
+        ArrayList<int[]> sizes = new ArrayList<int[]>();
+        char lo = 0;
+        char hi = 0;
+        int size = 0;
+        for (Map.Entry<Character, int[]> e : counts.entrySet()) {
+            char k = e.getKey().charValue();
+            int c = e.getValue()[0];
+            if (size > 0 && size + c > pageSize) {
+                ranges.add(new char[] { lo, hi });
+                sizes.add(new int[] { size });
+                size = 0;
+            }
+            if (size == 0)
+                lo = k;
+            hi = k;
+            size += c;
+        }
+        if (size > 0) {
+            ranges.add(new char[] { lo, hi });
+            sizes.add(new int[] { size });
+        }
+
+        Map<Character, Integer> rangeOf = new HashMap<Character, Integer>();
+        int[][] members = new int[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            char[] range = ranges.get(r);
+            for (Character k : counts.subMap(range[0], true, range[1], true).keySet())
+                rangeOf.put(k, r);
+            members[r] = new int[sizes.get(r)[0]];
+        }
+        int[] filled = new int[members.length];
+        for (int i = 0; i < n; i++) {
+            int r = rangeOf.get(keys[i]).intValue();
+            members[r][filled[r]++] = i;
+        }
+
+        ArrayList<Bucket> bs = new ArrayList<Bucket>();
+        for (int r = 0; r < members.length; r++) {
+            char[] range = ranges.get(r);
+            String text = range[0] == range[1] ? String.valueOf(range[0])
+                : range[0] + String.valueOf(DASH) + range[1];
+            int parts = (members[r].length + pageSize - 1) / pageSize;
+            for (int p = 0; p < parts; p++) {
+                int from = p * pageSize;
+                int[] indices = new int[Math.min(pageSize, members[r].length - from)];
+                System.arraycopy(members[r], from, indices, 0, indices.length);
+                bs.add(new Bucket(source, parent, bs.size(),
+                        parts == 1 ? text : text + " (" + (p + 1) + ")",
+                        indices, range[0], range[1]));
+            }
+        }
+        return bs.toArray(new Bucket[bs.size()]);
+    }
+
+    private static String label(Object node) {
+        if (node instanceof TreeDataNode)
+            return ((TreeDataNode) node).getText();
+        return String.valueOf(node);
+    }
+
+    /* The upper-cased first letter; anything else goes under '#'. */
+    private static char key(String label) {
+        if (label == null || label.length() == 0)
+            return '#';
+        char c = Character.toUpperCase(label.charAt(0));
+        return Character.isLetter(c) ? c : '#';
+    }
+
+    private void fire(int type, TreeModelEvent e) {
+        Object[] l = listeners.getListenerList();
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] != TreeModelListener.class)
+                continue;
+            TreeModelListener listener = (TreeModelListener) l[i + 1];
+            if (type == TreeEventBatcher.CHANGED)
+                listener.treeNodesChanged(e);
+            else if (type == TreeEventBatcher.INSERTED)
+                listener.treeNodesInserted(e);
+            else if (type == TreeEventBatcher.REMOVED)
+                listener.treeNodesRemoved(e);
+            else
+                listener.treeStructureChanged(e);
+        }
+    }
+
+    /** Passes the source's events on in terms of the view. */
+    private class Forwarder implements TreeModelListener {
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            Object parent = e.getTreePath().getLastPathComponent();
+            Object[] children = e.getChildren();
+            if (children == null || (!buckets.containsKey(parent) && !isPaged(parent))) {
+                forward(TreeEventBatcher.CHANGED, e);
+                return;
+            }
+            // A rename that keeps a node in its bucket, and does not change
+            // the bucket's label, is a change within the bucket.
+            int[] indices = e.getChildIndices();
+            Bucket b = children.length == 1 ? bucketOf(parent, indices[0]) : null;
+            if (b != null && stays(b, indices[0], children[0])) {
+                fire(TreeEventBatcher.CHANGED, new TreeModelEvent(PagedTreeModel.this,
+                        toViewPath(e.getTreePath()).pathByAddingChild(b),
+                        new int[] { b.indexOf(indices[0]) }, children));
+                return;
+            }
+            restructure(e.getTreePath(), parent);
+        }
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            changedChildren(TreeEventBatcher.INSERTED, e, 0);
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            // Removed children may hold buckets of their own.
+            buckets.clear();
+            Object[] children = e.getChildren();
+            changedChildren(TreeEventBatcher.REMOVED, e,
+                    children == null ? 0 : children.length);
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            buckets.clear();
+            forward(TreeEventBatcher.STRUCTURE_CHANGED, e);
+        }
+
+        private boolean stays(Bucket b, int index, Object child) {
+            if (mode == PAGES) {
+                int i = b.indexOf(index);
+                return i > 0 && i < b.count - 1;
+            }
+            char k = key(label(child));
+            return k >= b.lo && k <= b.hi;
+        }
+
+        /* removed is how many more children the parent had before e. */
+        private void changedChildren(int type, TreeModelEvent e, int removed) {
+            Object parent = e.getTreePath().getLastPathComponent();
+            int n = source.getChildCount(parent);
+            if (buckets.containsKey(parent) || n > pageSize || n + removed > pageSize)
+                restructure(e.getTreePath(), parent);
+            else
+                forward(type, e);
+        }
+
+        private void restructure(TreePath path, Object parent) {
+            buckets.remove(parent);
+            fire(TreeEventBatcher.STRUCTURE_CHANGED,
+                    new TreeModelEvent(PagedTreeModel.this, toViewPath(path)));
+        }
+
+        private void forward(int type, TreeModelEvent e) {
+            TreePath path = e.getTreePath();
+            fire(type, new TreeModelEvent(PagedTreeModel.this,
+                    path == null ? null : toViewPath(path),
+                    e.getChildIndices(), e.getChildren()));
+        }
+    }
+
+    /**
+     * A group of the children of a paged node.  Its label says which; its
+     * children are real nodes of the source.
+     */
+    public static final class Bucket implements TreeDataNode, TreeNode {
+
+        private final TreeModel source;
+        private final Object parent;
+        private final int place;
+        private final String text;
+        private final int[] indices;
+        private final int count;
+        private final char lo;
+        private final char hi;
+
+        Bucket(TreeModel source, Object parent, int place, String text,
+                int[] indices, char lo, char hi) {
+            this.source = source;
+            this.parent = parent;
+            this.place = place;
+            this.text = text;
+            this.indices = indices;
+            this.count = indices.length;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        /** Returns the real node whose children these are. */
+        public Object getModelParent() {
+            return parent;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /* Where the parent's index-th child is in the bucket, or -1. */
+        int indexOf(int index) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indices[mid] < index)
+                    low = mid + 1;
+                else if (indices[mid] > index)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        public TreeNode getChildAt(int index) {
+            if (index < 0 || index >= count)
+                throw new ArrayIndexOutOfBoundsException(index);
+            return (TreeNode) source.getChild(parent, indices[index]);
+        }
+
+        public int getChildCount() {
+            return count;
+        }
+
+        public TreeNode getParent() {
+            return parent instanceof TreeNode ? (TreeNode) parent : null;
+        }
+
+        public int getIndex(TreeNode node) {
+            return indexOf(source.getIndexOfChild(parent, node));
+        }
+
+        public boolean getAllowsChildren() {
+            return true;
+        }
+
+        public boolean isLeaf() {
+            return false;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Enumeration children() {
+            return new Enumeration<TreeNode>() {
+                private int next;
+
+                public boolean hasMoreElements() {
+                    return next < count;
+                }
+
+                public TreeNode nextElement() {
+                    if (next >= count)
+                        throw new NoSuchElementException();
+                    return getChildAt(next++);
+                }
+            };
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Bucket))
+                return false;
+            Bucket b = (Bucket) o;
+            return b.place == place && b.text.equals(text) && b.parent.equals(parent);
+        }
+
+        public int hashCode() {
+            return parent.hashCode() * 31 + place;
+        }
+
+        public String toString() {
+            return text;
+        }
+    }
+}
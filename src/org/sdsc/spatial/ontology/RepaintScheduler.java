@@ -0,0 +1,136 @@
+package org.sdsc.spatial.ontology;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ComponentListener;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.swing.Timer;
+
+import com.inxight.st.STPanel2;
+
+/**
+ * Repaints StarTree panels at most once a frame.
+ * <p>
+ * Asking for a repaint only marks the panel; a Swing timer then repaints
+ * every marked panel once, at the next frame, however many times each was
+ * asked for in between.  A panel that cannot be seen, because its window is
+ * hidden, it has been taken out of the window, or a split pane has shrunk
+ * it to nothing, is skipped and repainted when it is next shown or resized.
+ * <p>
+ * The counts of repaints asked for, done and skipped show how much the
+ * scheduler saves.  For use on the EDT.
+ */
+public class RepaintScheduler {
+
+    public static final int DEFAULT_FRAME_RATE = 60;
+
+    private static final RepaintScheduler shared = new RepaintScheduler(DEFAULT_FRAME_RATE);
+
+    private final int period;
+    private final Timer timer;
+    private final Set<STPanel2> dirty = new LinkedHashSet<STPanel2>();
+
+    /* Skipped panels, held weakly so a closed view can go. */
+    private final Set<Component> hidden =
+        Collections.newSetFromMap(new WeakHashMap<Component, Boolean>());
+    private long lastFrame;
+    private long requests;
+    private long repaints;
+    private long skips;
+    private long frames;
+
+    private final ComponentListener shown = new ComponentAdapter() {
+        public void componentResized(ComponentEvent e) {
+            reshown(e.getComponent());
+        }
+
+        public void componentShown(ComponentEvent e) {
+            reshown(e.getComponent());
+        }
+    };
+
+    /** Repaints at most framesPerSecond times a second. */
+    public RepaintScheduler(int framesPerSecond) {
+        if (framesPerSecond < 1)
+            throw new IllegalArgumentException("Frame rate " + framesPerSecond);
+        period = Math.max(1, 1000 / framesPerSecond);
+        timer = new Timer(period, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                frame();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    /** Returns the scheduler shared by every editor window. */
+    public static RepaintScheduler getDefault() {
+        return shared;
+    }
+
+    /** Has panel repainted with the next frame. */
+    public void repaint(STPanel2 panel) {
+        requests++;
+        if (!dirty.add(panel) || timer.isRunning())
+            return;
+        long since = (System.nanoTime() - lastFrame) / 1000000L;
+        timer.setInitialDelay((int) Math.max(0, period - Math.min(since, period)));
+        timer.start();
+    }
+
+    /** Returns the number of repaints asked for. */
+    public long getRequestCount() {
+        return requests;
+    }
+
+    /** Returns the number of repaints done. */
+    public long getRepaintCount() {
+        return repaints;
+    }
+
+    /** Returns the number of repaints left for later because the panel could not be seen. */
+    public long getSkipCount() {
+        return skips;
+    }
+
+    /** Returns the number of frames in which anything was repainted or skipped. */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public String toString() {
+        return "Repaints: " + requests + " asked for, " + repaints + " done, "
+            + skips + " skipped in " + frames + " frames";
+    }
+
+    private void frame() {
+        lastFrame = System.nanoTime();
+        frames++;
+        STPanel2[] panels = dirty.toArray(new STPanel2[dirty.size()]);
+        dirty.clear();
+        for (int i = 0; i < panels.length; i++) {
+            STPanel2 panel = panels[i];
+            if (panel.isShowing() && panel.getWidth() > 0 && panel.getHeight() > 0) {
+                panel.repaintAll();
+                repaints++;
+            } else {
+                skips++;
+                if (hidden.add(panel))
+                    panel.addComponentListener(shown);
+            }
+        }
+    }
+
+    private void reshown(Component c) {
+        if (c.getWidth() > 0 && c.getHeight() > 0 && hidden.remove(c)) {
+            c.removeComponentListener(shown);
+            repaint((STPanel2) c);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.sdsc.spatial.ontology;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Builds an {@link OntologyTreeModel} out of an STC file, with one
+ * {@link OntologyNode} per node row.
+ */
+public class STCTreeBuilder extends STCTreeHandler {
+
+    private OntologyNode[] nodes = new OntologyNode[1024];
+    private OntologyTreeModel model;
+
+    /** Reads the STC file at url into a new model. */
+    public static OntologyTreeModel read(URL url) throws IOException {
+        STCTreeBuilder builder = new STCTreeBuilder();
+        new STCParser().parse(url, builder);
+        return builder.getModel();
+    }
+
+    protected void createNode(int row, int id, STCRow data) {
+        if (row == nodes.length) {
+            OntologyNode[] grown = new OntologyNode[row << 1];
+            System.arraycopy(nodes, 0, grown, 0, row);
+            nodes = grown;
+        }
+        nodes[row] = new OntologyNode(id, data.get(COLUMN_LABEL),
+                data.getRawFrom(COLUMN_ATTRIBUTES));
+    }
+
+    protected void renumber(int row, int id) {
+        nodes[row].setId(id);
+    }
+
+    protected void startTree(int rootRow) {
+        model = new OntologyTreeModel(nodes[rootRow]);
+    }
+
+    protected void attach(int parentRow, int childRow) {
+        model.addChild(nodes[parentRow], nodes[childRow]);
+    }
+
+    /** Returns the node created for row. */
+    protected OntologyNode getNode(int row) {
+        return nodes[row];
+    }
+
+    /**
+     * Returns the model built from the file, or a model with a single empty
+     * node if the file had no nodes.
+     */
+    public OntologyTreeModel getModel() {
+        if (model == null)
+            model = new OntologyTreeModel(new OntologyNode(0, ""));
+        model.getProperties().putAll(getProperties());
+        return model;
+    }
+}
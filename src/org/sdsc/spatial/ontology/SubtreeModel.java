@@ -0,0 +1,208 @@
+package org.sdsc.spatial.ontology;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+import com.inxight.st.StdTreeDataModel;
+import com.inxight.st.TreeDataModel;
+
+/**
+ * A view of the subtree of one node of another tree model.
+ * <p>
+ * Nothing is copied: the view answers every question by asking the model
+ * underneath, so a view costs the same however big its subtree, and any
+ * number of views of one model see the same nodes and each other's edits.
+ * A view of a view is a view of the model underneath.  Edits should be made
+ * to {@link #getSource()}, with paths from {@link #toModelPath(TreePath)}.
+ * <p>
+ * The model is listened to only while someone listens to the view.  Events
+ * inside the subtree are passed on with their paths cut to start at its
+ * root; the rest are dropped, except that a rename of the root is passed on
+ * as a change of the root, and taking the subtree out of the model, or a
+ * structure change above it, as a structure change of the root.
+ */
+public class SubtreeModel implements TreeDataModel {
+
+    private final TreeModel source;
+    private final Object root;
+    private final EventListenerList listeners = new EventListenerList();
+    private final TreeModelListener forwarder = new Forwarder();
+
+    public SubtreeModel(TreeModel source, Object root) {
+        this.source = getSource(source);
+        this.root = root;
+    }
+
+    public TreeModel getSource() {
+        return source;
+    }
+
+    /** Returns the model under model if it is a subtree view, or else model. */
+    public static TreeModel getSource(TreeModel model) {
+        return model instanceof SubtreeModel ? ((SubtreeModel) model).source : model;
+    }
+
+    /** Returns true if node is the root of the view or below it. */
+    public boolean contains(Object node) {
+        if (root.equals(node))
+            return true;
+        return node instanceof TreeNode && isAncestor(root, (TreeNode) node);
+    }
+
+    /**
+     * Returns path, a path from the root of the model, cut to start at the
+     * root of the view, or null if it does not go through it.
+     */
+    public TreePath toViewPath(TreePath path) {
+        Object[] p = path.getPath();
+        for (int i = 0; i < p.length; i++) {
+            if (root.equals(p[i])) {
+                if (i == 0)
+                    return path;
+                Object[] view = new Object[p.length - i];
+                System.arraycopy(p, i, view, 0, view.length);
+                return new TreePath(view);
+            }
+        }
+        return null;
+    }
+
+    /** Returns path, a path from the root of the view, as one from the root of the model. */
+    public TreePath toModelPath(TreePath path) {
+        if (!(source instanceof StdTreeDataModel) || !(root instanceof TreeNode))
+            return path;
+        TreePath model = new TreePath(((StdTreeDataModel) source).getPathToRoot((TreeNode) root));
+        Object[] p = path.getPath();
+        for (int i = 1; i < p.length; i++)
+            model = model.pathByAddingChild(p[i]);
+        return model;
+    }
+
+    public Object getRoot() {
+        return root;
+    }
+
+    public Object getChild(Object parent, int index) {
+        return source.getChild(parent, index);
+    }
+
+    public int getChildCount(Object parent) {
+        return source.getChildCount(parent);
+    }
+
+    public boolean isLeaf(Object node) {
+        return source.isLeaf(node);
+    }
+
+    public int getIndexOfChild(Object parent, Object child) {
+        return source.getIndexOfChild(parent, child);
+    }
+
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        source.valueForPathChanged(toModelPath(path), newValue);
+    }
+
+    public void addTreeModelListener(TreeModelListener l) {
+        if (listeners.getListenerCount() == 0)
+            source.addTreeModelListener(forwarder);
+        listeners.add(TreeModelListener.class, l);
+    }
+
+    public void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(TreeModelListener.class, l);
+        if (listeners.getListenerCount() == 0)
+            source.removeTreeModelListener(forwarder);
+    }
+
+    /** Returns true if node is the root of the view or one of its ancestors. */
+    private boolean isAncestor(Object node) {
+        if (!(root instanceof TreeNode))
+            return root.equals(node);
+        return isAncestor(node, (TreeNode) root);
+    }
+
+    private static boolean isAncestor(Object node, TreeNode descendant) {
+        for (TreeNode n = descendant; n != null; n = n.getParent()) {
+            if (n.equals(node))
+                return true;
+        }
+        return false;
+    }
+
+    private void fire(int type, TreeModelEvent e) {
+        Object[] l = listeners.getListenerList();
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] != TreeModelListener.class)
+                continue;
+            TreeModelListener listener = (TreeModelListener) l[i + 1];
+            if (type == TreeEventBatcher.CHANGED)
+                listener.treeNodesChanged(e);
+            else if (type == TreeEventBatcher.INSERTED)
+                listener.treeNodesInserted(e);
+            else if (type == TreeEventBatcher.REMOVED)
+                listener.treeNodesRemoved(e);
+            else
+                listener.treeStructureChanged(e);
+        }
+    }
+
+    /** Passes on the model's events that fall inside the subtree. */
+    private class Forwarder implements TreeModelListener {
+
+        public void treeNodesChanged(TreeModelEvent e) {
+            if (forward(TreeEventBatcher.CHANGED, e))
+                return;
+            Object[] children = e.getChildren();
+            for (int i = 0; children != null && i < children.length; i++) {
+                if (root.equals(children[i])) {
+                    fire(TreeEventBatcher.CHANGED, new TreeModelEvent(SubtreeModel.this,
+                            new TreePath(root), null, null));
+                    return;
+                }
+            }
+        }
+
+        public void treeNodesInserted(TreeModelEvent e) {
+            forward(TreeEventBatcher.INSERTED, e);
+        }
+
+        public void treeNodesRemoved(TreeModelEvent e) {
+            if (forward(TreeEventBatcher.REMOVED, e))
+                return;
+            Object[] children = e.getChildren();
+            for (int i = 0; children != null && i < children.length; i++) {
+                if (isAncestor(children[i])) {
+                    rootChanged();
+                    return;
+                }
+            }
+        }
+
+        public void treeStructureChanged(TreeModelEvent e) {
+            if (e.getTreePath() == null
+                    || isAncestor(e.getTreePath().getLastPathComponent()))
+                rootChanged();
+            else
+                forward(TreeEventBatcher.STRUCTURE_CHANGED, e);
+        }
+
+        private void rootChanged() {
+            fire(TreeEventBatcher.STRUCTURE_CHANGED,
+                    new TreeModelEvent(SubtreeModel.this, new TreePath(root)));
+        }
+
+        /* Returns false if e is not inside the subtree. */
+        private boolean forward(int type, TreeModelEvent e) {
+            TreePath path = e.getTreePath() == null ? null : toViewPath(e.getTreePath());
+            if (path == null)
+                return false;
+            fire(type, new TreeModelEvent(SubtreeModel.this, path,
+                    e.getChildIndices(), e.getChildren()));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.sdsc.spatial.ontology;
+
+import java.util.Arrays;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreePath;
+
+/**
+ * Delivers a tree model's events to its listeners, merging a run of
+ * changes, insertions or removals under the same parent into one event.
+ * <p>
+ * A run is held until the end of the current EDT event, when it goes out as
+ * a single treeNodesChanged, treeNodesInserted or treeNodesRemoved with the
+ * indices sorted, so the views lay out and repaint once for the lot; adding
+ * the children of a node one at a time costs the views one event.  An event
+ * of another kind or under another parent sends the run first, so listeners
+ * always see the events in the order the changes were made.  The model
+ * should call {@link #flush()} before it answers a question about its
+ * structure, so that a view never asks about a change it has not heard of.
+ * <p>
+ * Indices are kept as they must be reported: insertions by where the
+ * children are at the end of the run, removals by where they were at its
+ * start.  Adding at the end of a run, the usual case, is constant time.
+ * <p>
+ * For use on the EDT once anyone is listening.  Events with no listener to
+ * hear them, as while a loader builds a tree off the EDT, are dropped.
+ */
+final class TreeEventBatcher {
+
+    static final int CHANGED = 0;
+    static final int INSERTED = 1;
+    static final int REMOVED = 2;
+    static final int STRUCTURE_CHANGED = 3;
+
+    private final Object source;
+    private final EventListenerList listeners = new EventListenerList();
+
+    private int type = -1;
+    private TreePath parent;
+    private int[] indices = new int[16];
+    private Object[] children = new Object[16];
+    private int count;
+    private boolean scheduled;
+
+    private final Runnable flusher = new Runnable() {
+        public void run() {
+            scheduled = false;
+            flush();
+        }
+    };
+
+    TreeEventBatcher(Object source) {
+        this.source = source;
+    }
+
+    void addTreeModelListener(TreeModelListener l) {
+        listeners.add(TreeModelListener.class, l);
+    }
+
+    void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(TreeModelListener.class, l);
+    }
+
+    /** Queues e, an event of the given type, merging it into the run if it can. */
+    void post(int type, TreeModelEvent e) {
+        TreePath path = e.getTreePath();
+        int[] eventIndices = e.getChildIndices();
+        Object[] eventChildren = e.getChildren();
+        if (listeners.getListenerCount() == 0)
+            return;
+        if (type == STRUCTURE_CHANGED || path == null || eventIndices == null
+                || eventChildren == null) {
+            flush();
+            fire(type, e);
+            return;
+        }
+        if (type != this.type || !path.equals(parent)) {
+            flush();
+            this.type = type;
+            parent = path;
+        }
+        if (type == REMOVED) {
+            // Indices in one event are all from before it, so take them
+            // highest first; each removal then leaves the rest where they were.
+            for (int i = eventIndices.length - 1; i >= 0; i--)
+                removed(eventIndices[i], eventChildren[i]);
+        } else {
+            for (int i = 0; i < eventIndices.length; i++) {
+                if (type == INSERTED)
+                    inserted(eventIndices[i], eventChildren[i]);
+                else
+                    changed(eventIndices[i], eventChildren[i]);
+            }
+        }
+        if (!scheduled) {
+            scheduled = true;
+            SwingUtilities.invokeLater(flusher);
+        }
+    }
+
+    /** Sends the run held, if there is one. */
+    void flush() {
+        if (count == 0) {
+            type = -1;
+            parent = null;
+            return;
+        }
+        int[] i = new int[count];
+        Object[] c = new Object[count];
+        System.arraycopy(indices, 0, i, 0, count);
+        System.arraycopy(children, 0, c, 0, count);
+        TreeModelEvent e = new TreeModelEvent(source, parent, i, c);
+        int t = type;
+        type = -1;
+        parent = null;
+        Arrays.fill(children, 0, count, null);
+        count = 0;
+        fire(t, e);
+    }
+
+    private void changed(int index, Object child) {
+        int at = search(index);
+        if (at < count && indices[at] == index)
+            return;
+        add(at, index, child);
+    }
+
+    /* Children inserted before the later ones move those along. */
+    private void inserted(int index, Object child) {
+        int at = search(index);
+        for (int k = at; k < count; k++)
+            indices[k]++;
+        add(at, index, child);
+    }
+
+    /* The index of a child now is less one for each child before it removed. */
+    private void removed(int index, Object child) {
+        int original = index;
+        int at = 0;
+        while (at < count && indices[at] <= original) {
+            original++;
+            at++;
+        }
+        add(at, original, child);
+    }
+
+    /* Returns where index goes in the sorted run. */
+    private int search(int index) {
+        if (count == 0 || indices[count - 1] < index)
+            return count;
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indices[mid] < index)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void add(int at, int index, Object child) {
+        if (count == indices.length) {
+            int[] grownIndices = new int[count << 1];
+            Object[] grownChildren = new Object[count << 1];
+            System.arraycopy(indices, 0, grownIndices, 0, count);
+            System.arraycopy(children, 0, grownChildren, 0, count);
+            indices = grownIndices;
+            children = grownChildren;
+        }
+        System.arraycopy(indices, at, indices, at + 1, count - at);
+        System.arraycopy(children, at, children, at + 1, count - at);
+        indices[at] = index;
+        children[at] = child;
+        count++;
+    }
+
+    private void fire(int type, TreeModelEvent e) {
+        Object[] l = listeners.getListenerList();
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] != TreeModelListener.class)
+                continue;
+            TreeModelListener listener = (TreeModelListener) l[i + 1];
+            if (type == CHANGED)
+                listener.treeNodesChanged(e);
+            else if (type == INSERTED)
+                listener.treeNodesInserted(e);
+            else if (type == REMOVED)
+                listener.treeNodesRemoved(e);
+            else
+                listener.treeStructureChanged(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.sdsc.spatial.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OntologyLoaderTest {
+
+    /* Enough nodes that most are attached after the model is installed. */
+    private static final int TOP = 10;
+    private static final int MIDDLE = 500;
+    private static final int BOTTOM = 2;
+
+    private OntologyStore store;
+    private File file;
+
+    @Before
+    public void writeFile() throws IOException {
+        store = new OntologyStore();
+        int root = store.addNode(0, "Root");
+        store.setRoot(root);
+        // Ids in breadth first order, as the loader attaches the nodes.
+        int[] tops = new int[TOP];
+        for (int i = 0; i < TOP; i++) {
+            tops[i] = store.addNode(1 + i, "T" + i);
+            store.addChild(root, tops[i]);
+        }
+        int[] middles = new int[TOP * MIDDLE];
+        for (int m = 0; m < middles.length; m++) {
+            middles[m] = store.addNode(1 + TOP + m, "M" + m);
+            store.addChild(tops[m / MIDDLE], middles[m]);
+        }
+        for (int b = 0; b < middles.length * BOTTOM; b++)
+            store.addChild(middles[b / BOTTOM],
+                    store.addNode(1 + TOP + middles.length + b, "B" + b));
+
+        File dir = File.createTempFile("ontology", "test");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Cannot create " + dir);
+        dir.deleteOnExit();
+        file = new File(dir, "tree.stc");
+        file.deleteOnExit();
+        OntologyBatch.write(store, file);
+    }
+
+    /* Loads file, calling edit on the EDT once the model is installed. */
+    private OntologyTreeModel load(final Edit edit) throws Exception {
+        OntologyLoader loader = new OntologyLoader(file.toURI().toURL()) {
+            protected void install(OntologyTreeModel model) {
+                edit.apply(model);
+            }
+        };
+        loader.execute();
+        OntologyTreeModel model = loader.get();
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+            }
+        });
+        return model;
+    }
+
+    private interface Edit {
+        void apply(OntologyTreeModel model);
+    }
+
+    private void rename(OntologyTreeModel model, int id, String text) {
+        OntologyNode node = model.getNode(id);
+        node.setText(text);
+        model.nodeChanged(node);
+        store.setLabel(store.getNode(id), text);
+    }
+
+    private OntologyNode remove(OntologyTreeModel model, int id) {
+        OntologyNode node = model.getNode(id);
+        model.removeNode(node);
+        store.remove(store.getNode(id));
+        return node;
+    }
+
+    @Test
+    public void untouchedLoadHasTheFileHash() throws Exception {
+        OntologyTreeModel model = load(new Edit() {
+            public void apply(OntologyTreeModel model) {
+                model.getContentHash();
+            }
+        });
+        assertEquals(ContentHash.of(store), model.getContentHash());
+    }
+
+    @Test
+    public void hashCountsNodesAttachedAfterAnEdit() throws Exception {
+        OntologyTreeModel model = load(new Edit() {
+            public void apply(OntologyTreeModel model) {
+                // A top node whose last children, and a middle node whose
+                // children, are still to come; the editor then asks for
+                // the hash to see whether the tree is modified.
+                rename(model, TOP, "Last top");
+                rename(model, TOP + 1, "First middle");
+                model.getContentHash();
+            }
+        });
+        assertEquals(ContentHash.of(store), model.getContentHash());
+    }
+
+    @Test
+    public void childrenOfDeletedNodesAreDropped() throws Exception {
+        OntologyTreeModel model = load(new Edit() {
+            public void apply(OntologyTreeModel model) {
+                // A top node and a middle node whose children are still to come.
+                remove(model, TOP);
+                remove(model, TOP + 1);
+            }
+        });
+        assertEquals(store.getNodeCount(), model.getNodeCount());
+        assertNull(model.getNode(1 + TOP + TOP * MIDDLE));
+        assertEquals(ContentHash.of(store), model.getContentHash());
+    }
+
+    @Test
+    public void deletedNodePutBackHasTheNodesItHad() throws Exception {
+        int top = store.getNode(1);
+        final OntologyNode[] removed = new OntologyNode[1];
+        OntologyTreeModel model = load(new Edit() {
+            public void apply(OntologyTreeModel model) {
+                // A top node whose children are here but not theirs.
+                removed[0] = remove(model, 1);
+            }
+        });
+        // As an undo of the delete would, once the load is done.
+        model.insertChildAt((OntologyNode) model.getRoot(), removed[0], 0);
+        store.insertChild(store.getRoot(), top, 0);
+        for (int m = store.getFirstChild(top); m != OntologyStore.NONE;
+                m = store.getNextSibling(m)) {
+            while (store.getFirstChild(m) != OntologyStore.NONE)
+                store.remove(store.getFirstChild(m));
+        }
+        assertEquals(store.getNodeCount(), model.getNodeCount());
+        assertEquals(ContentHash.of(store), model.getContentHash());
+    }
+}